@@ -0,0 +1,214 @@
+package com.example.socket.bench;
+
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.Transport;
+import com.example.socket.chat.TransportType;
+import com.example.socket.util.VirtualThreads;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @description: 在同一负载下对比bio（线程池/虚拟线程）、nio、aio三种聊天服务器
+ * 每个服务器在本进程内用独立端口启动；connections个客户端全部在线，其中senders个各发送messages条消息，
+ * 消息内容带发送时刻的nanoTime，接收方据此计算端到端延迟
+ * 用法：ChatServerBenchmark [connections] [senders] [messages] [payloadSize]
+ * @author: chenzhuo
+ * @create: 2021-03-25 22:10
+ */
+public class ChatServerBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final int MAX_SAMPLES = 10_000_000;
+
+    private final int connections;
+    private final int senders;
+    private final int messages;
+    private final int payloadSize;
+
+    public ChatServerBenchmark(int connections, int senders, int messages, int payloadSize) {
+        this.connections = connections;
+        this.senders = Math.min(senders, connections);
+        this.messages = messages;
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * 被测服务器，都运行同一个ChatCore，只有I/O模型不同
+     */
+    enum ServerKind {
+        BIO(TransportType.BIO, 9101),
+        BIO_VIRTUAL(TransportType.BIO_VIRTUAL, 9102),
+        NIO(TransportType.NIO, 9103),
+        AIO(TransportType.AIO, 9104);
+
+        final TransportType transportType;
+        final int port;
+
+        ServerKind(TransportType transportType, int port) {
+            this.transportType = transportType;
+            this.port = port;
+        }
+    }
+
+    /**
+     * 在后台线程中启动服务器，返回后服务器可能还没有完成bind，连接时需要重试
+     */
+    static Transport start(ServerKind kind) {
+        Transport server = kind.transportType.create(kind.port);
+        Thread serverThread = new Thread(() -> server.start(new ChatCore()), kind + "-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    public void run(ServerKind kind) throws Exception {
+        Transport server = start(kind);
+
+        ExecutorService readers = VirtualThreads.isSupported()
+                ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+        List<Socket> sockets = new ArrayList<>(connections);
+        LongAdder delivered = new LongAdder();
+        long[] samples = new long[(int) Math.min(MAX_SAMPLES, (long) senders * messages * (connections - 1))];
+        AtomicInteger sampleCount = new AtomicInteger();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = connect(kind.port);
+                sockets.add(socket);
+                readers.execute(() -> read(socket, delivered, samples, sampleCount));
+            }
+            // 等待服务器完成所有连接的注册（nio在worker线程上异步注册）
+            Thread.sleep(1000);
+
+            long expected = (long) senders * messages * (connections - 1);
+            long start = System.nanoTime();
+            ExecutorService writers = Executors.newFixedThreadPool(senders);
+            for (int i = 0; i < senders; i++) {
+                Socket socket = sockets.get(i);
+                writers.execute(() -> send(socket));
+            }
+            writers.shutdown();
+
+            long deadline = start + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (delivered.sum() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            long elapsed = System.nanoTime() - start;
+            report(kind, delivered.sum(), expected, elapsed, samples, Math.min(sampleCount.get(), samples.length));
+        } finally {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            readers.shutdownNow();
+            server.close();
+        }
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        // 服务器线程可能还没有完成bind
+        for (int retry = 0; ; retry++) {
+            try {
+                return new Socket(HOST, port);
+            } catch (IOException e) {
+                if (retry >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void send(Socket socket) {
+        char[] padding = new char[payloadSize];
+        Arrays.fill(padding, 'x');
+        String suffix = " " + new String(padding) + "\n";
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < messages; i++) {
+                writer.write(System.nanoTime() + suffix);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 转发的消息格式为"客户端#id[port]:<nanoTime> <padding>"
+    private static void read(Socket socket, LongAdder delivered, long[] samples, AtomicInteger sampleCount) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long now = System.nanoTime();
+                int start = line.indexOf("]:") + 2;
+                int end = line.indexOf(' ', start);
+                if (start < 2 || end < 0) {
+                    continue;
+                }
+                long sentAt = Long.parseLong(line.substring(start, end));
+                int index = sampleCount.getAndIncrement();
+                if (index < samples.length) {
+                    samples[index] = now - sentAt;
+                }
+                delivered.increment();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 连接被关闭，测试结束
+        }
+    }
+
+    private static void report(ServerKind kind, long delivered, long expected, long elapsedNanos,
+                               long[] samples, int count) {
+        Arrays.sort(samples, 0, count);
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%-12s delivered %d/%d in %.2fs, %.0f msgs/s, latency p50=%.2fms p99=%.2fms p999=%.2fms%n",
+                kind, delivered, expected, seconds, delivered / seconds,
+                percentile(samples, count, 0.50), percentile(samples, count, 0.99), percentile(samples, count, 0.999));
+    }
+
+    private static double percentile(long[] sorted, int count, double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        ChatServerBenchmark benchmark = new ChatServerBenchmark(connections, senders, messages, payloadSize);
+        for (ServerKind kind : ServerKind.values()) {
+            if (kind == ServerKind.BIO_VIRTUAL && !VirtualThreads.isSupported()) {
+                System.out.println(kind + " skipped: virtual threads require JDK 21+");
+                continue;
+            }
+            benchmark.run(kind);
+        }
+    }
+}
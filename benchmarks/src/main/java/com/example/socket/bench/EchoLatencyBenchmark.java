@@ -0,0 +1,172 @@
+package com.example.socket.bench;
+
+import com.example.socket.aio.Server;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 回显往返延迟压测，得到本机一次网络往返的延迟下限，作为聊天服务器延迟的参照
+ * connections个连接各用一个线程，每次发出payloadSize字节后阻塞等待完整回显再发下一条，同一连接上只有一条消息在途；
+ * 这是闭环测试，测的是没有排队时的服务时间，不反映过载时的延迟，过载下的对比用LoadGenerator；
+ * 预热warmup秒之后再开始记录，每个线程记录自己的HdrHistogram，最后合并输出p50/p99/p999
+ * 用法：EchoLatencyBenchmark [connections] [payloadSize] [duration] [host:port]，不指定host:port时压测本进程内启动的aio.Server
+ * @author: chenzhuo
+ * @create: 2021-04-09 21:10
+ */
+public class EchoLatencyBenchmark {
+
+    private static final int SERVER_PORT = 9105;
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int WARMUP_SECONDS = 2;
+    private static final int CONNECT_RETRIES = 50;
+
+    private final int connections;
+    private final int payloadSize;
+    private final int durationSeconds;
+    private volatile boolean recording;
+    private volatile boolean stopped;
+
+    public EchoLatencyBenchmark(int connections, int payloadSize, int durationSeconds) {
+        if (connections < 1 || payloadSize < 1) {
+            throw new IllegalArgumentException("need at least 1 connection and a positive payload size");
+        }
+        this.connections = connections;
+        this.payloadSize = payloadSize;
+        this.durationSeconds = durationSeconds;
+    }
+
+    public void run(String label, InetSocketAddress address) throws IOException, InterruptedException {
+        recording = false;
+        stopped = false;
+        List<PingPong> clients = new ArrayList<>(connections);
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            PingPong client = new PingPong(open(address));
+            clients.add(client);
+            Thread thread = new Thread(client, "echo-client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+        recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        recording = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+
+        Histogram histogram = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        for (int i = 0; i < connections; i++) {
+            threads.get(i).join();
+            histogram.add(clients.get(i).histogram);
+            clients.get(i).close();
+        }
+        System.out.printf("%-12s %d round trips (%.0f/s), latency p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+                label, histogram.getTotalCount(), histogram.getTotalCount() / (elapsed / 1e9),
+                micros(histogram, 50.0), micros(histogram, 99.0), micros(histogram, 99.9),
+                histogram.getMaxValue() / 1e3);
+    }
+
+    private static double micros(Histogram histogram, double percentile) {
+        return histogram.getTotalCount() == 0 ? Double.NaN : histogram.getValueAtPercentile(percentile) / 1e3;
+    }
+
+    /**
+     * 一个连接上的请求-应答循环，发送和接收的缓冲区都只分配一次
+     */
+    private final class PingPong implements Runnable {
+        private final SocketChannel channel;
+        private final ByteBuffer request;
+        private final ByteBuffer response;
+        // 只在本线程访问，结束后由主线程合并
+        private final Histogram histogram = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+
+        PingPong(SocketChannel channel) {
+            this.channel = channel;
+            this.request = ByteBuffer.allocateDirect(payloadSize);
+            this.response = ByteBuffer.allocateDirect(payloadSize);
+            while (request.hasRemaining()) {
+                request.put((byte) 'x');
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    long start = System.nanoTime();
+                    request.clear();
+                    while (request.hasRemaining()) {
+                        channel.write(request);
+                    }
+                    // 回显可能分多次到达，收齐payloadSize字节才算一次往返
+                    response.clear();
+                    while (response.hasRemaining()) {
+                        if (channel.read(response) < 0) {
+                            throw new IOException("connection closed by server");
+                        }
+                    }
+                    if (recording) {
+                        histogram.recordValue(Math.min(System.nanoTime() - start, HIGHEST_TRACKABLE_NANOS));
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopped) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static SocketChannel open(InetSocketAddress address) throws IOException, InterruptedException {
+        // 服务器线程可能还没有完成bind
+        for (int retry = 0; ; retry++) {
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                return channel;
+            } catch (IOException e) {
+                if (retry >= CONNECT_RETRIES) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int duration = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        EchoLatencyBenchmark benchmark = new EchoLatencyBenchmark(connections, payloadSize, duration);
+        if (args.length > 3) {
+            String[] hostPort = args[3].split(":");
+            benchmark.run(args[3], new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+            return;
+        }
+        Server server = new Server(SERVER_PORT);
+        Thread serverThread = new Thread(server::start, "echo-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            benchmark.run("AIO_ECHO", new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.socket.bench;
+
+import com.example.socket.nio.FileCopyDemo;
+import com.example.socket.nio.FileCopyRunner;
+import com.example.socket.nio.FileCopyStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 各种FileCopyRunner在不同文件大小、缓冲区大小下的JMH基准测试
+ * Throughput给出每秒复制次数，SampleTime给出单次复制耗时的分位数，配合-prof gc得到分配速率
+ * 逐字节复制（NO_BUFFER_STREAM）大文件需要数分钟，默认不测，需要时用-p strategy=NO_BUFFER_STREAM指定
+ * 不使用缓冲区的方式（NO_BUFFER_STREAM、NIO_TRANSFER、MAPPED_WINDOW）与bufferSize无关，结果只需看其中一组
+ * @author: chenzhuo
+ * @create: 2021-03-26 20:30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCopyBenchmark {
+
+    @Param({"BUFFERED_STREAM", "NIO_BUFFER", "NIO_TRANSFER", "MAPPED_WINDOW", "PARALLEL_CHUNK"})
+    public String strategy;
+
+    @Param({"4096", "1048576", "104857600"})
+    public long fileSize;
+
+    @Param({"1024", "8192", "65536"})
+    public int bufferSize;
+
+    private File dir;
+    private File source;
+    private File target;
+    private FileCopyRunner runner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("filecopy-bench").toFile();
+        source = FileCopyDemo.createFile(new File(dir, "source"), fileSize);
+        // 目标文件每次都以截断方式打开，无需在每次调用后删除
+        target = new File(dir, "target");
+        runner = FileCopyStrategy.valueOf(strategy).create(bufferSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void copy() {
+        runner.fileCopy(source, target);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FileCopyBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
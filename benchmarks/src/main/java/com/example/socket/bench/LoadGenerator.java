@@ -0,0 +1,388 @@
+package com.example.socket.bench;
+
+import com.example.socket.chat.Transport;
+import com.example.socket.codec.FrameDecoder;
+import com.example.socket.codec.Framing;
+import com.example.socket.util.VirtualThreads;
+import org.HdrHistogram.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @description: 无界面的压测客户端，用少量Selector线程模拟成千上万个在线用户
+ * connections个连接全部在线，其中senders个按总速率rate（条/秒）轮流发送payloadSize字节的消息，持续duration秒；
+ * 消息中嵌入的是按速率计算出的计划发送时刻而不是实际发送时刻，发送被阻塞时延迟照样计入，避免协调遗漏（coordinated omission）；
+ * 接收方用HdrHistogram记录端到端延迟，最后输出吞吐量和p50/p99/p999
+ * 用法：LoadGenerator [connections] [senders] [rate] [payloadSize] [duration] [host:port]，不指定host:port时依次压测本进程内启动的各个服务器
+ * @author: chenzhuo
+ * @create: 2021-03-31 20:30
+ */
+public class LoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int OUTBOUND_BUFFER_SIZE = 16 * 1024;
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int CONNECT_RETRIES = 50;
+    private static final byte[] PING = "/ping".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "/pong\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int connections;
+    private final int senders;
+    private final int rate;
+    private final int payloadSize;
+    private final int durationSeconds;
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    // 客户端自己的发送缓冲区已满而没有发出的消息，说明服务器读得不够快
+    private final LongAdder skipped = new LongAdder();
+    private volatile boolean sending;
+    private volatile boolean stopped;
+
+    public LoadGenerator(int connections, int senders, int rate, int payloadSize, int durationSeconds) {
+        if (connections < 2 || senders < 1 || rate < 1) {
+            throw new IllegalArgumentException("need at least 2 connections, 1 sender and a positive rate");
+        }
+        this.connections = connections;
+        this.senders = Math.min(senders, connections);
+        this.rate = rate;
+        this.payloadSize = payloadSize;
+        this.durationSeconds = durationSeconds;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * 对指定地址的服务器压测一轮并输出结果
+     */
+    public void run(String label, InetSocketAddress address) throws IOException, InterruptedException {
+        sent.reset();
+        delivered.reset();
+        skipped.reset();
+        sending = false;
+        stopped = false;
+
+        int threads = Math.min(ioThreads, connections);
+        EventLoop[] loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop();
+        }
+        // 第i个连接交给第i % threads个线程，前senders个连接负责发送
+        for (int i = 0; i < connections; i++) {
+            loops[i % threads].connect(address, i < senders);
+        }
+        // 等待服务器完成所有连接的注册（nio在worker线程上异步注册）
+        Thread.sleep(1000);
+
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i].prepare(start);
+            workers[i] = new Thread(loops[i], "load-generator-" + i);
+            workers[i].start();
+        }
+        sending = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        sending = false;
+        long sendElapsed = System.nanoTime() - start;
+
+        // 等待已发出的消息全部送达，服务器丢弃的消息永远不会到达，所以有超时
+        long expected = sent.sum() * (connections - 1);
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (delivered.sum() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        Histogram histogram = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        for (int i = 0; i < threads; i++) {
+            loops[i].selector.wakeup();
+            workers[i].join();
+            histogram.add(loops[i].histogram);
+            loops[i].close();
+        }
+        report(label, sendElapsed, elapsed, expected, histogram);
+    }
+
+    private void report(String label, long sendElapsedNanos, long elapsedNanos, long expected, Histogram histogram) {
+        System.out.printf("%-12s sent %d (%.0f msgs/s, skipped %d), delivered %d/%d (%.0f msgs/s), "
+                        + "latency p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                label, sent.sum(), sent.sum() / (sendElapsedNanos / 1e9), skipped.sum(),
+                delivered.sum(), expected, delivered.sum() / (elapsedNanos / 1e9),
+                millis(histogram, 50.0), millis(histogram, 99.0), millis(histogram, 99.9),
+                histogram.getMaxValue() / 1e3);
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getTotalCount() == 0 ? Double.NaN : histogram.getValueAtPercentile(percentile) / 1e3;
+    }
+
+    /**
+     * 一个Selector线程，负责一部分连接的发送和接收
+     */
+    private final class EventLoop implements Runnable, Closeable {
+        private final Selector selector;
+        private final List<Connection> all = new ArrayList<>();
+        private final List<Connection> senderConnections = new ArrayList<>();
+        // 只在本线程访问，结束后由主线程合并
+        private final Histogram histogram = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        private final byte[] padding;
+        private long intervalNanos;
+        private long nextSendTime;
+        private int nextSender;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+            padding = new byte[payloadSize + 1];
+            Arrays.fill(padding, (byte) 'x');
+            padding[0] = ' ';
+        }
+
+        // 阻塞模式连接，连上之后再切换为非阻塞模式注册到selector
+        void connect(InetSocketAddress address, boolean sender) throws IOException, InterruptedException {
+            SocketChannel channel = open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, sender);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            all.add(connection);
+            if (sender) {
+                senderConnections.add(connection);
+            }
+        }
+
+        void prepare(long start) {
+            // 本线程分到的发送方按比例分担总速率
+            if (!senderConnections.isEmpty()) {
+                intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) * senders / ((long) rate * senderConnections.size()));
+            }
+            nextSendTime = start;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    sendDue();
+                    select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.receive();
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            LoadGenerator.close(key.channel());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (ClosedSelectorException e) {
+                // 压测结束
+            }
+        }
+
+        // 发出所有计划时刻已到的消息，计划时刻按固定间隔递增，与实际发出的时刻无关
+        private void sendDue() throws IOException {
+            if (senderConnections.isEmpty() || !sending) {
+                return;
+            }
+            long now = System.nanoTime();
+            while (nextSendTime <= now) {
+                Connection connection = senderConnections.get(nextSender);
+                nextSender = (nextSender + 1) % senderConnections.size();
+                connection.send(nextSendTime);
+                nextSendTime += intervalNanos;
+            }
+        }
+
+        private void select() throws IOException {
+            if (senderConnections.isEmpty() || !sending) {
+                selector.select(10);
+                return;
+            }
+            long waitNanos = nextSendTime - System.nanoTime();
+            if (waitNanos <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Connection connection : all) {
+                LoadGenerator.close(connection.channel);
+            }
+            LoadGenerator.close(selector);
+        }
+
+        private final class Connection {
+            private final SocketChannel channel;
+            private final FrameDecoder decoder = Framing.LINE.newDecoder(Framing.DEFAULT_MAX_FRAME_LENGTH);
+            // 只有发送方需要出站缓冲区
+            private final ByteBuffer outbound;
+            private SelectionKey key;
+
+            Connection(SocketChannel channel, boolean sender) {
+                this.channel = channel;
+                this.outbound = sender ? ByteBuffer.allocateDirect(OUTBOUND_BUFFER_SIZE) : null;
+            }
+
+            // 消息格式"<计划发送时刻> <padding>\n"
+            void send(long sendTime) throws IOException {
+                String timestamp = Long.toString(sendTime);
+                if (outbound.remaining() < timestamp.length() + padding.length + 1) {
+                    skipped.increment();
+                    return;
+                }
+                outbound.put(timestamp.getBytes(StandardCharsets.US_ASCII)).put(padding).put((byte) '\n');
+                sent.increment();
+                flush();
+            }
+
+            void flush() throws IOException {
+                outbound.flip();
+                channel.write(outbound);
+                outbound.compact();
+                int ops = outbound.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                if (key.interestOps() != ops) {
+                    key.interestOps(ops);
+                }
+            }
+
+            void receive() throws IOException {
+                int read;
+                while ((read = channel.read(decoder.readBuffer())) > 0) {
+                    decoder.decode(this::record);
+                }
+                if (read < 0) {
+                    throw new IOException("connection closed by server");
+                }
+            }
+
+            // 转发的消息格式为"[房间]客户端#id[port]:<计划发送时刻> <padding>"，直接在字节上解析，UTF-8中ASCII字节不会出现在多字节字符内部
+            private boolean record(ByteBuffer frame) {
+                long now = System.nanoTime();
+                int start = -1;
+                for (int i = frame.position(); i < frame.limit() - 1; i++) {
+                    if (frame.get(i) == ']' && frame.get(i + 1) == ':') {
+                        start = i + 2;
+                        break;
+                    }
+                }
+                if (start < 0) {
+                    if (isPing(frame)) {
+                        // 只接收不发送的连接靠回复心跳避免被服务器当作空闲连接断开，6个字节总能一次写进发送缓冲区
+                        try {
+                            channel.write(ByteBuffer.wrap(PONG));
+                        } catch (IOException e) {
+                            // 连接已经断开，下一次read时发现
+                        }
+                    }
+                    return true;
+                }
+                long sendTime = 0;
+                int i = start;
+                for (; i < frame.limit(); i++) {
+                    byte b = frame.get(i);
+                    if (b < '0' || b > '9') {
+                        break;
+                    }
+                    sendTime = sendTime * 10 + (b - '0');
+                }
+                if (i == start) {
+                    return true;
+                }
+                histogram.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - sendTime), HIGHEST_TRACKABLE_MICROS));
+                delivered.increment();
+                return true;
+            }
+        }
+    }
+
+    private static boolean isPing(ByteBuffer frame) {
+        if (frame.remaining() != PING.length) {
+            return false;
+        }
+        for (int i = 0; i < PING.length; i++) {
+            if (frame.get(frame.position() + i) != PING[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static SocketChannel open(InetSocketAddress address) throws IOException, InterruptedException {
+        // 服务器线程可能还没有完成bind
+        for (int retry = 0; ; retry++) {
+            try {
+                return SocketChannel.open(address);
+            } catch (IOException e) {
+                if (retry >= CONNECT_RETRIES) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int duration = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        LoadGenerator generator = new LoadGenerator(connections, senders, rate, payloadSize, duration);
+        if (args.length > 5) {
+            String[] hostPort = args[5].split(":");
+            generator.run(args[5], new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+            return;
+        }
+        for (ChatServerBenchmark.ServerKind kind : ChatServerBenchmark.ServerKind.values()) {
+            if (kind == ChatServerBenchmark.ServerKind.BIO_VIRTUAL && !VirtualThreads.isSupported()) {
+                System.out.println(kind + " skipped: virtual threads require JDK 21+");
+                continue;
+            }
+            Transport server = ChatServerBenchmark.start(kind);
+            try {
+                generator.run(kind.name(), new InetSocketAddress("127.0.0.1", kind.port));
+            } finally {
+                server.close();
+            }
+        }
+    }
+}
@@ -1,128 +1,194 @@
 package com.example.socket.aio;
 
+import com.example.socket.buffer.BufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
- * @description:
+ * @description: 回显服务器（AIO），作为聊天服务器延迟的下限参照
+ * 每个连接在建立时从池中借一个缓冲区，读写都在这一个缓冲区上进行，连接关闭时归还；
+ * 读、写、accept各用一个所有连接共用的CompletionHandler，attachment就是连接本身，
+ * 发起读写时不创建Map、回调对象或者新的缓冲区（完成结果的Integer由JDK装箱，不在我们的控制范围内）；
+ * 写只完成了一部分时从剩余位置继续写，整个缓冲区写完之后才发起下一次读
  * @author: chenzhuo
  * @create: 2021-03-16 22:22
  */
-public class Server {
+public class Server implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(Server.class);
+
+    private static final int DEFAULT_PORT = 8888;
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final int port;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private AsynchronousChannelGroup channelGroup;
+    private AsynchronousServerSocketChannel serverChannel;
+    // 所有连接共用，attachment是发起读写的连接
+    private final ReadHandler readHandler = new ReadHandler();
+    private final WriteHandler writeHandler = new WriteHandler();
+
+    public Server() {
+        this(DEFAULT_PORT);
+    }
+
+    public Server(int port) {
+        this.port = port;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
 
-    final String LOCALHOST = "localhost";
-    final int DEFAULT_PORT = 8888;
-    AsynchronousServerSocketChannel serverChannel;
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
-    private void close(Closeable closeable) {
+    /**
+     * 阻塞当前线程直到close()
+     */
+    public void start() {
+        try {
+            channelGroup = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
+            serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
+            serverChannel.bind(new InetSocketAddress(port));
+            log.info("启动回显服务器，监听端口[{}]，线程数[{}]", port, threads);
+            // AcceptHandler在每次回调中发起下一次accept，这里只需要发起第一次
+            serverChannel.accept(null, new AcceptHandler());
+            channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            log.error("回显服务器异常，端口[{}]", port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(serverChannel);
+        }
+    }
+
+    // group中所有通道一起关闭，挂起的读写随之失败并归还缓冲区，start()随之返回
+    @Override
+    public void close() {
+        if (channelGroup != null) {
+            try {
+                channelGroup.shutdownNow();
+            } catch (IOException e) {
+                log.warn("关闭channel group失败", e);
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
         if (closeable != null) {
             try {
                 closeable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("关闭{}失败", closeable, e);
             }
         }
     }
 
-    public void start() {
-        try {
-            serverChannel = AsynchronousServerSocketChannel.open();
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, DEFAULT_PORT));
-            System.out.println("启动服务器，监听端口" + DEFAULT_PORT);
-
-            while (true) {
-                // 异步调用，可以马上执行完成
-                serverChannel.accept(null, new AcceptHandler());
-                System.in.read();
-            }
+    /**
+     * 一个连接：通道和它唯一的缓冲区，同一时刻只有一个挂起的读或者写
+     */
+    private static final class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer buffer;
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            close(serverChannel);
+        Connection(AsynchronousSocketChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
         }
 
+        void close() {
+            Server.close(channel);
+            BufferPool.DEFAULT.release(buffer);
+        }
     }
 
-    // 服务器accept-回调接口类实现
     private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object> {
 
         @Override
-        public void completed(AsynchronousSocketChannel result, Object attachment) {
-            // 新一轮的监听
+        public void completed(AsynchronousSocketChannel channel, Object attachment) {
+            // 先发起下一次accept，再处理这个连接
             if (serverChannel.isOpen()) {
                 serverChannel.accept(null, this);
             }
-
-            AsynchronousSocketChannel clientChannel = result;
-            if (clientChannel != null && clientChannel.isOpen()) {
-                ClientHandler handler = new ClientHandler(clientChannel);
-
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                Map<String, Object> info = new HashMap<>();
-                info.put("type", "read");
-                info.put("buffer", buffer);
-                clientChannel.read(buffer, info, handler);
+            try {
+                // 回显的消息都很小，不能等Nagle算法凑满一个报文
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                log.warn("设置连接参数失败", e);
             }
+            Connection connection = new Connection(channel, BufferPool.DEFAULT.acquire(bufferSize));
+            channel.read(connection.buffer, connection, readHandler);
         }
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            // 处理错误
+            // 监听通道已经被close()关闭时不需要处理
+            if (serverChannel.isOpen()) {
+                log.warn("连接失败", exc);
+                serverChannel.accept(null, this);
+            }
         }
     }
 
+    // 读到的数据原样写回
+    private class ReadHandler implements CompletionHandler<Integer, Connection> {
 
-    // 客户端read-回调接口类实现
-    private class ClientHandler implements CompletionHandler<Integer, Object> {
-
-        private AsynchronousSocketChannel clientChannel;
+        @Override
+        public void completed(Integer read, Connection connection) {
+            if (read < 0) {
+                // 客户端已关闭
+                connection.close();
+                return;
+            }
+            connection.buffer.flip();
+            connection.channel.write(connection.buffer, connection, writeHandler);
+        }
 
-        public ClientHandler(AsynchronousSocketChannel channel) {
-            this.clientChannel = channel;
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            connection.close();
         }
+    }
+
+    // 缓冲区还有剩余说明只写出了一部分，继续写；写完之后清空缓冲区发起下一次读
+    private class WriteHandler implements CompletionHandler<Integer, Connection> {
 
         @Override
-        public void completed(Integer result, Object attachment) {
-            Map<String, Object> info = (Map<String, Object>) attachment;
-            String type = (String) info.get("type");
-
-            if ("read".equals(type)) {
-                ByteBuffer buffer = (ByteBuffer) info.get("buffer");
-                buffer.flip();
-                info.put("type", "write");
-                clientChannel.write(buffer, info, this);
-                buffer.clear();
-            } else if ("write".equals(type)) {
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                info.put("type", "read");
-                info.put("buffer", buffer);
-                clientChannel.read(buffer, info, this);
+        public void completed(Integer written, Connection connection) {
+            ByteBuffer buffer = connection.buffer;
+            if (buffer.hasRemaining()) {
+                connection.channel.write(buffer, connection, this);
+                return;
             }
+            buffer.clear();
+            connection.channel.read(buffer, connection, readHandler);
         }
 
         @Override
-        public void failed(Throwable exc, Object attachment) {
-
+        public void failed(Throwable exc, Connection connection) {
+            connection.close();
         }
     }
 
     public static void main(String[] args) {
-        Server server = new Server();
+        Server server = new Server(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
         server.start();
     }
 
 }
-
-
-
-
-
-
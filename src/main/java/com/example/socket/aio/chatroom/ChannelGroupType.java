@@ -0,0 +1,51 @@
+package com.example.socket.aio.chatroom;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @description: AIO服务器使用的AsynchronousChannelGroup类型
+ * @author: chenzhuo
+ * @create: 2021-03-30 20:40
+ */
+public enum ChannelGroupType {
+
+    /**
+     * 固定数量的线程，既等待I/O事件也执行回调；回调中不能阻塞，否则会占住处理I/O事件的线程
+     */
+    FIXED {
+        @Override
+        public AsynchronousChannelGroup create(int threads) throws IOException {
+            return AsynchronousChannelGroup.withFixedThreadPool(threads, threadFactory());
+        }
+    },
+    /**
+     * 按需创建线程的线程池执行回调，由group内部的线程等待I/O事件，threads为初始线程数
+     */
+    CACHED {
+        @Override
+        public AsynchronousChannelGroup create(int threads) throws IOException {
+            return AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(threadFactory()), threads);
+        }
+    },
+    /**
+     * 使用parallelism为threads的ForkJoinPool执行回调，工作窃取适合大量短小的回调
+     */
+    FORK_JOIN {
+        @Override
+        public AsynchronousChannelGroup create(int threads) throws IOException {
+            return AsynchronousChannelGroup.withThreadPool(new ForkJoinPool(threads));
+        }
+    };
+
+    public abstract AsynchronousChannelGroup create(int threads) throws IOException;
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, "aio-worker-" + count.getAndIncrement());
+    }
+}
@@ -1,5 +1,8 @@
 package com.example.socket.aio.chatroom;
 
+import com.example.socket.codec.FrameDecoder;
+import com.example.socket.codec.Framing;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -23,7 +26,8 @@ public class ChatClient {
     private static final String LOCALHOST = "localhost";
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
 
     /**
      * 异步通道
@@ -51,9 +55,10 @@ public class ChatClient {
             new Thread(new UserInputHandler(this)).start();
 
             // 主线程中循环中读取服务器转发过来的其他客户端消息
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+            // 服务器转发的消息以换行符分隔，半包留在解码器中
+            FrameDecoder decoder = Framing.LINE.newDecoder(Framing.DEFAULT_MAX_FRAME_LENGTH);
             while (true) {
-                Future<Integer> readResult = clientChannel.read(buffer);
+                Future<Integer> readResult = clientChannel.read(decoder.readBuffer());
                 // 阻塞式读取数据
                 int result = readResult.get();
                 if (result <= 0) {
@@ -63,10 +68,20 @@ public class ChatClient {
                     System.exit(1);
                 } else {
                     // 正常打印消息
-                    buffer.flip();
-                    String message = String.valueOf(charset.decode(buffer));
-                    buffer.clear();
-                    System.out.println(message);
+                    decoder.decode(frame -> {
+                        String msg = String.valueOf(charset.decode(frame));
+                        if (PING.equals(msg)) {
+                            // 服务器的心跳，回复后服务器不会把这个连接当作空闲连接断开
+                            try {
+                                send(PONG);
+                            } catch (Exception e) {
+                                close(clientChannel);
+                            }
+                            return true;
+                        }
+                        System.out.println(msg);
+                        return true;
+                    });
                 }
             }
         } catch (Exception e) {
@@ -82,11 +97,12 @@ public class ChatClient {
      * @param message
      * @throws Exception
      */
-    public void send(String message) throws Exception {
+    // 用户输入线程和读线程（回复心跳）都会发送，同一时刻只能有一个挂起的写
+    public synchronized void send(String message) throws Exception {
         if (message.isEmpty()) {
             return;
         }
-        ByteBuffer byteBuffer = charset.encode(message);
+        ByteBuffer byteBuffer = Framing.LINE.encode(charset.encode(message));
         Future<Integer> writeResult = clientChannel.write(byteBuffer);
         writeResult.get();
     }
@@ -1,35 +1,97 @@
 package com.example.socket.aio.chatroom;
 
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.ChatSession;
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.chat.Transport;
+import com.example.socket.codec.FrameDecoder;
+import com.example.socket.codec.Framing;
+import com.example.socket.util.HashedWheelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * @description:
+ * @description: 聊天服务器（AIO）
+ * 每个连接同一时刻只有一个挂起的读和一个挂起的写；发送给连接的消息先进入它的无锁出站队列，
+ * 由WriteHandler在上一次写完成后把队首的多条消息合并成一次gathering write发出，写了一部分的消息留在队首继续写；
+ * 一个AsynchronousServerSocketChannel同时只能有一个挂起的accept，acceptors大于1时用SO_REUSEPORT
+ * 在同一端口上打开多个监听通道，各自发起accept，由内核在它们之间分配新连接，应对重连风暴；
+ * channel group的线程不能执行定时任务，空闲检测用一个专用线程驱动的时间轮，到期时发送心跳或者关闭空闲连接；
+ * ChatCore限速时不发起下一次读，而是挂到同一个时间轮上，到期后时间轮线程只把恢复任务交给channel group的线程，
+ * 由group线程解码剩下的帧再发起读，时间轮线程不做转发，不会拖慢其它连接的空闲检查；
+ * accept失败（例如文件描述符耗尽）时也由时间轮退避之后再发起，退避时间逐次加倍，accept成功后复位；
+ * 房间、私聊和退出等聊天逻辑由ChatCore完成
  * @author: chenzhuo
  * @create: 2021-03-17 21:01
  */
-public class ChatServer {
-    private static final String LOCALHOST = "localhost";
+public class ChatServer implements Transport {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatServer.class);
+
     private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
     private static final int THREADPOOL_SIZE = 8;
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final long DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024L;
+    private static final long TICK_MILLIS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+    // accept连续失败时的退避时间，从一个tick开始加倍
+    private static final long MIN_ACCEPT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final long MAX_ACCEPT_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(5);
 
     private AsynchronousChannelGroup channelGroup;
-    private AsynchronousServerSocketChannel serverChannel;
-    private List<ClientHandler> connectedClients;
-    private Charset charset = Charset.forName("UTF-8");
+    // 执行限速恢复任务，默认实现的channel group本身就是提交到group线程池的Executor
+    private Executor groupExecutor;
+    // stopAccepting()可能在其它线程上遍历
+    private List<AsynchronousServerSocketChannel> serverChannels = new CopyOnWriteArrayList<>();
+    private ChannelGroupType channelGroupType = ChannelGroupType.FIXED;
+    private int threads = THREADPOOL_SIZE;
+    // 为null时监听所有网卡
+    private String bindAddress;
+    private int backlog = DEFAULT_BACKLOG;
+    private int acceptors = 1;
+    private boolean reusePort;
+    private boolean tcpNoDelay = true;
+    // 为0时使用操作系统默认值
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    // 在线客户端和房间，可能与其它Transport共用
+    private ChatCore chatCore;
+    private Framing framing = Framing.LINE;
+    private int maxFrameLength = Framing.DEFAULT_MAX_FRAME_LENGTH;
+    private FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+    // 单个连接出站队列的上限，超过时断开这个接收太慢的连接，而不是无限占用内存或者悄悄丢弃消息
+    private long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    private IdlePolicy idlePolicy = IdlePolicy.DEFAULT;
+    private ReceiveBufferSizer receiveBufferSizer = ReceiveBufferSizer.DEFAULT;
+    // 空闲检查、限速之后恢复读取以及accept失败之后退避的时间轮
+    private HashedWheelTimer timer;
+    // 所有连接共用，attachment是写完成的连接
+    private WriteHandler writeHandler = new WriteHandler();
     private int port;
 
     public ChatServer() {
@@ -38,7 +100,100 @@ public class ChatServer {
 
     public ChatServer(int port) {
         this.port = port;
-        this.connectedClients = new ArrayList<>();
+    }
+
+    /**
+     * 只对start()生效，start(ChatCore)使用chatCore的Framing
+     */
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 只使用maxBatchBytes：消息在上一次写进行期间自然积累，写完成时一起发出；
+     * 忽略maxDelay：唯一的定时器是空闲检测和限速恢复用的时间轮，精度TICK_MILLIS，
+     * 而刷新延迟通常不到1毫秒，用时间轮延迟写会让每一批消息多等一个tick
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public void setIdlePolicy(IdlePolicy idlePolicy) {
+        this.idlePolicy = idlePolicy;
+    }
+
+    /**
+     * 每个连接的读缓冲区按最近读到的字节数在minimum和maximum之间伸缩
+     */
+    public void setReceiveBufferSizer(ReceiveBufferSizer receiveBufferSizer) {
+        this.receiveBufferSizer = receiveBufferSizer;
+    }
+
+    /**
+     * @param threads FIXED的线程数，CACHED的初始线程数，FORK_JOIN的并行度
+     */
+    public void setChannelGroup(ChannelGroupType channelGroupType, int threads) {
+        this.channelGroupType = channelGroupType;
+        this.threads = threads;
+    }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * 同时挂起的accept个数，大于1时需要操作系统支持SO_REUSEPORT（Linux 3.9+），会自动开启reusePort
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    // 关闭所有监听通道，挂起的accept随之失败，AcceptHandler不再发起下一次accept
+    @Override
+    public void stopAccepting() {
+        for (AsynchronousServerSocketChannel serverChannel : serverChannels) {
+            close(serverChannel);
+        }
+    }
+
+    // 关闭服务器，group中所有通道一起关闭，挂起的读随之失败并从ChatCore中移除连接，start()随之返回
+    @Override
+    public void close() {
+        if (channelGroup != null) {
+            try {
+                channelGroup.shutdownNow();
+            } catch (IOException e) {
+                log.warn("关闭channel group失败", e);
+            }
+        }
     }
 
     private void close(Closeable closeable) {
@@ -46,75 +201,209 @@ public class ChatServer {
             try {
                 closeable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("关闭{}失败", closeable, e);
             }
         }
     }
 
-    private String getClientName(AsynchronousSocketChannel clientChannel) {
+    private String getClientName(long id, AsynchronousSocketChannel clientChannel) {
         int clientPort = -1;
         try {
             InetSocketAddress inetSocketAddress = (InetSocketAddress) clientChannel.getRemoteAddress();
             clientPort = inetSocketAddress.getPort();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.debug("无法获取客户端地址", e);
         }
-        return "客户端[" + clientPort + "]:";
+        return ChatCore.clientName(id, clientPort);
     }
 
-    private void start() {
-        ExecutorService executorService = Executors.newFixedThreadPool(THREADPOOL_SIZE);
-        try {
-            channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
-            // 将channel绑定到group中
-            serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
-            System.out.println("启动服务器，监听端口[" + port + "]");
+    public void start() {
+        start(new ChatCore(framing));
+    }
 
-            while (true) {
-                serverChannel.accept(null, new AcceptHandler());
-                System.in.read();
+    @Override
+    public void start(ChatCore chatCore) {
+        this.chatCore = chatCore;
+        try {
+            channelGroup = channelGroupType.create(threads);
+            groupExecutor = groupExecutor(channelGroup);
+            timer = new HashedWheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+            timer.start("aio-timer");
+            int count = acceptors;
+            for (int i = 0; i < count; i++) {
+                // 将channel绑定到group中
+                AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
+                if ((reusePort || count > 1) && !enableReusePort(serverChannel)) {
+                    log.warn("操作系统不支持SO_REUSEPORT，只使用一个监听通道");
+                    count = 1;
+                }
+                if (receiveBufferSize > 0) {
+                    // 在bind之前设置，accept得到的连接继承这个值，大于64KB时才能协商窗口扩大
+                    serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                }
+                InetSocketAddress address = bindAddress == null
+                        ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port);
+                serverChannel.bind(address, backlog);
+                serverChannels.add(serverChannel);
+                // AcceptHandler在每次回调中发起下一次accept，这里只需要发起第一次；每个监听通道各自退避
+                serverChannel.accept(serverChannel, new AcceptHandler());
             }
+            log.info("启动服务器，监听端口[{}]，group[{}，{}]，监听通道数[{}]",
+                    port, channelGroupType, threads, serverChannels.size());
+            // 阻塞当前线程直到group被关闭，替代原来靠System.in.read()阻塞的做法
+            channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("服务器异常，端口[{}]", port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            close(serverChannel);
+            for (AsynchronousServerSocketChannel serverChannel : serverChannels) {
+                close(serverChannel);
+            }
+            if (timer != null) {
+                timer.stop();
+            }
+        }
+    }
+
+    // JDK默认实现的AsynchronousChannelGroup实现了Executor，任务在执行回调的线程上运行；
+    // 其它实现退回到在调用线程上执行
+    private static Executor groupExecutor(AsynchronousChannelGroup channelGroup) {
+        if (channelGroup instanceof Executor) {
+            return (Executor) channelGroup;
+        }
+        log.warn("channel group[{}]不支持提交任务，限速恢复在时间轮线程上执行", channelGroup.getClass().getName());
+        return Runnable::run;
+    }
+
+    // SO_REUSEPORT在JDK 9才加入StandardSocketOptions，按名称查找以兼容JDK 8
+    @SuppressWarnings("unchecked")
+    private static boolean enableReusePort(AsynchronousServerSocketChannel serverChannel) throws IOException {
+        for (SocketOption<?> option : serverChannel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name())) {
+                serverChannel.setOption((SocketOption<Boolean>) option, true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void configure(AsynchronousSocketChannel clientChannel) throws IOException {
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
         }
     }
 
 
-    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object> {
+    // attachment是发起accept的监听通道，一个监听通道一个AcceptHandler
+    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, AsynchronousServerSocketChannel> {
+        // 同一个监听通道上的accept依次进行，回调和时间轮任务不会同时访问
+        private long backoffNanos;
 
         @Override
-        public void completed(AsynchronousSocketChannel clientChannel, Object attachment) {
+        public void completed(AsynchronousSocketChannel clientChannel, AsynchronousServerSocketChannel serverChannel) {
+            backoffNanos = 0;
+            // 先发起下一次accept，再处理这个连接
             if (serverChannel.isOpen()) {
-                serverChannel.accept(null, this);
+                serverChannel.accept(serverChannel, this);
             }
             if (clientChannel != null && clientChannel.isOpen()) {
+                try {
+                    configure(clientChannel);
+                } catch (IOException e) {
+                    log.warn("设置连接参数失败", e);
+                }
                 // 通过构造方法，将channel与handler进行绑定
-                ClientHandler handler = new ClientHandler(clientChannel);
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
-                // 第二个参数是attachment，可以传入到Hanler的回调函数
-                clientChannel.read(buffer, buffer, handler);
-                addClient(handler);
+                long id = chatCore.nextId();
+                ClientHandler handler = new ClientHandler(id, getClientName(id, clientChannel), clientChannel);
+                chatCore.connected(handler);
+                handler.startIdleCheck();
+                handler.read();
             }
         }
 
         @Override
-        public void failed(Throwable exc, Object attachment) {
-            System.out.println("连接失败" + exc);
+        public void failed(Throwable exc, AsynchronousServerSocketChannel serverChannel) {
+            // 例如文件描述符耗尽，监听通道仍然可用时继续accept，否则服务器再也不会接受新连接；
+            // 立即重试会让group线程空转并刷屏，退避之后再在时间轮线程上发起；
+            // 监听通道已经被stopAccepting()或者close()关闭时不需要处理
+            if (!serverChannel.isOpen()) {
+                return;
+            }
+            backoffNanos = backoffNanos == 0
+                    ? MIN_ACCEPT_BACKOFF_NANOS : Math.min(backoffNanos * 2, MAX_ACCEPT_BACKOFF_NANOS);
+            log.warn("连接失败，{}毫秒后重试：{}", TimeUnit.NANOSECONDS.toMillis(backoffNanos), exc.toString());
+            timer.newTimeout(() -> {
+                if (serverChannel.isOpen()) {
+                    serverChannel.accept(serverChannel, this);
+                }
+            }, backoffNanos, TimeUnit.NANOSECONDS);
         }
     }
 
-    private class ClientHandler implements CompletionHandler<Integer, Object> {
+    private class ClientHandler extends ChatSession implements CompletionHandler<Integer, Object> {
         private AsynchronousSocketChannel clientChannel;
+        // 每个连接一个解码器，保存尚未凑成完整帧的半包
+        private FrameDecoder decoder;
+        // 出站队列，任意线程都可以入队
+        private final Queue<PendingWrite> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        // 为true时有一个写操作正在进行，只有把它从false改为true的线程可以发起写
+        private final AtomicBoolean writing = new AtomicBoolean();
+        // 连接已经关闭，队列中的帧由下一个持有writing的线程归还，进行中的写还引用着batch里的缓冲区，不能提前归还
+        private volatile boolean closed;
+        // 正在进行的gathering write的缓冲区，只由持有writing的线程访问
+        private final ByteBuffer[] batch = new ByteBuffer[FlushPolicy.MAX_BATCH_BUFFERS];
+        private int batchSize;
+        private final Runnable idleCheck = this::checkIdle;
+        private final Runnable resumeTask = this::resume;
+        private final Runnable dispatchResumeTask = this::dispatchResume;
+        // 令牌用完时ChatCore设置的暂停时间，只由当前处理读取的线程访问：读回调或者恢复任务，两者不会同时进行
+        private long suspendNanos;
+        // 读回调中写，时间轮线程上读
+        private volatile long lastReadNanos = System.nanoTime();
+        private volatile HashedWheelTimer.Timeout idleTimeout;
 
         public AsynchronousSocketChannel getClientChannel() {
             return clientChannel;
         }
 
-        public ClientHandler(AsynchronousSocketChannel clientChannel) {
+        public ClientHandler(long id, String name, AsynchronousSocketChannel clientChannel) {
+            super(id, name);
             this.clientChannel = clientChannel;
+            this.decoder = chatCore.framing().newDecoder(maxFrameLength, BufferPool.DEFAULT, receiveBufferSizer);
+        }
+
+        void startIdleCheck() {
+            if (idlePolicy.isEnabled()) {
+                idleTimeout = timer.newTimeout(idleCheck, idlePolicy.initialDelayNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // 时间轮到期，在时间轮线程上执行
+        private void checkIdle() {
+            if (!clientChannel.isOpen()) {
+                return;
+            }
+            long idleNanos = System.nanoTime() - lastReadNanos;
+            if (idlePolicy.isExpired(idleNanos)) {
+                log.debug("{}空闲超时，断开连接", name());
+                chatCore.metrics().connectionEvicted();
+                // 挂起的读随之失败，由读回调从ChatCore中移除连接
+                ChatServer.this.close(clientChannel);
+                return;
+            }
+            if (idlePolicy.shouldPing(idleNanos)) {
+                chatCore.ping(this);
+            }
+            idleTimeout = timer.newTimeout(idleCheck, idlePolicy.nextCheckNanos(idleNanos), TimeUnit.NANOSECONDS);
+        }
+
+        // 发起下一次读取，第二个参数是attachment，可以传入到Hanler的回调函数
+        public void read() {
+            ByteBuffer buffer = decoder.readBuffer();
+            clientChannel.read(buffer, buffer, this);
         }
 
         @Override
@@ -123,72 +412,208 @@ public class ChatServer {
             if (buffer != null) {
                 if (result <= 0) {
                     // 客户端异常，移除客户端
-                    removeClient(this);
-                } else {
-                    buffer.flip();
-                    String fwdMsg = receive(buffer);
-                    System.out.println(getClientName(clientChannel) + ":" + fwdMsg);
-                    // 转发消息
-                    forwardMsg(clientChannel, fwdMsg);
-                    buffer.clear();
-                    if (readyToQuit(fwdMsg)) {
-                        removeClient(this);
-                    } else {
-                        // 继续接收消息并转发
-                        clientChannel.read(buffer, buffer, this);
-                    }
+                    chatCore.disconnect(this);
+                    return;
                 }
+                decoder.readComplete(result);
+                chatCore.metrics().bytesRead(result);
+                lastReadNanos = System.nanoTime();
+                decodeAndRead();
             }
         }
 
+        @Override
+        protected void suspendRead(long delayNanos) {
+            suspendNanos = delayNanos;
+        }
+
+        // 限速到期，在时间轮线程上执行：只提交恢复任务，解码和转发在group线程上进行
+        private void dispatchResume() {
+            try {
+                groupExecutor.execute(resumeTask);
+            } catch (RejectedExecutionException e) {
+                // group已经关闭，暂停期间没有挂起的读，在这里完成清理
+                chatCore.disconnect(this);
+            }
+        }
+
+        // 在group线程上执行；暂停期间数据留在socket接收缓冲区中，不算空闲
+        private void resume() {
+            lastReadNanos = System.nanoTime();
+            decodeAndRead();
+        }
+
+        // 解码累积缓冲区中的帧，再发起下一次读；被限速时改为在时间轮上延迟发起
+        private void decodeAndRead() {
+            try {
+                // 一次读取可能包含多个帧，也可能只是半个帧；用户退出时ChatCore已经关闭连接
+                decoder.decode(frame -> chatCore.onMessage(this, frame));
+            } catch (IOException e) {
+                log.warn("{}消息解析失败：{}", name(), e.getMessage());
+                chatCore.disconnect(this);
+                return;
+            }
+            if (!clientChannel.isOpen()) {
+                // 连接在处理消息期间被关闭，没有挂起的读，在这里完成清理
+                chatCore.disconnect(this);
+                return;
+            }
+            if (suspendNanos > 0) {
+                long delayNanos = suspendNanos;
+                suspendNanos = 0;
+                timer.newTimeout(dispatchResumeTask, delayNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+            // 继续接收消息并转发
+            read();
+        }
 
+        /**
+         * 将一个已编码的帧放入出站队列，可以在任意线程调用
+         *
+         * @param frame 调用方转交一个引用，写完或者被丢弃时release
+         */
         @Override
-        public void failed(Throwable exc, Object attachment) {
-            System.out.println("读写操作失败：" + exc.getMessage());
+        public boolean write(SharedBuffer frame, ChatSession sender) {
+            outbound.offer(new PendingWrite(frame));
+            if (pendingBytes.addAndGet(frame.readableBytes()) > maxPendingBytes && !closed) {
+                log.warn("{}接收太慢，断开连接", name());
+                markClosed();
+            }
+            // 连接关闭后由flush()归还刚入队的帧，有写正在进行时交给它的回调
+            if (writing.compareAndSet(false, true)) {
+                flush();
+            }
+            return !closed;
         }
-    }
 
-    // 是否准备退出
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
-    }
+        @Override
+        public long pendingBytes() {
+            return pendingBytes.get();
+        }
 
+        // 由ChatCore.disconnect()在读回调中调用，此时没有挂起的读操作，可以安全归还缓冲区
+        @Override
+        public void close() {
+            ChatServer.this.close(clientChannel);
+            HashedWheelTimer.Timeout timeout = idleTimeout;
+            if (timeout != null) {
+                // 时间轮线程可能正在执行检查，那时它会发现通道已经关闭，不再重新调度
+                timeout.cancel();
+            }
+            decoder.release();
+            markClosed();
+            if (writing.compareAndSet(false, true)) {
+                flush();
+            }
+        }
 
-    // 接收消息
-    private String receive(ByteBuffer buffer) {
-        return String.valueOf(charset.decode(buffer));
-    }
+        private void markClosed() {
+            closed = true;
+            ChatServer.this.close(clientChannel);
+        }
+
+        // 由持有writing的线程调用：把队首的多条消息合并成一次gathering write；连接已经关闭时归还队列中的帧
+        private void flush() {
+            while (true) {
+                if (closed) {
+                    // 持有writing说明没有进行中的写，可以安全归还
+                    discardOutbound();
+                } else if (startWrite()) {
+                    return;
+                }
+                writing.set(false);
+                // 其它线程可能在writing复位之前入队，需要再检查一次
+                if (outbound.isEmpty() || !writing.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        // 发起一次gathering write，队列为空或者通道已经关闭时返回false
+        private boolean startWrite() {
+            int count = 0;
+            long bytes = 0;
+            for (PendingWrite pending : outbound) {
+                if (count == batch.length || bytes >= flushPolicy.maxBatchBytes()) {
+                    break;
+                }
+                batch[count++] = pending.buffer;
+                bytes += pending.buffer.remaining();
+            }
+            if (count == 0) {
+                return false;
+            }
+            batchSize = count;
+            try {
+                clientChannel.write(batch, 0, count, 0L, TimeUnit.MILLISECONDS, this, writeHandler);
+                return true;
+            } catch (RuntimeException e) {
+                // 通道或者group已经关闭，写没有发起
+                Arrays.fill(batch, 0, count, null);
+                markClosed();
+                return false;
+            }
+        }
+
+        // 写完成：写完的消息出队，最后一个可能只写了一部分，留在队首继续写
+        private void onWritten(long written) {
+            pendingBytes.addAndGet(-written);
+            chatCore.metrics().bytesWritten(written);
+            for (int i = 0; i < batchSize && !batch[i].hasRemaining(); i++) {
+                outbound.poll().frame.release();
+            }
+            Arrays.fill(batch, 0, batchSize, null);
+            flush();
+        }
 
-    // 添加客户端
-    private synchronized void addClient(ClientHandler clientHandler) {
-        connectedClients.add(clientHandler);
-        System.out.println(getClientName(clientHandler.getClientChannel()) + "已经连接");
+        // 写失败：这次写引用的缓冲区不再被使用，连同队列中其它的帧一起归还
+        private void onWriteFailed() {
+            Arrays.fill(batch, 0, batchSize, null);
+            markClosed();
+            flush();
+        }
+
+        // 只由持有writing的线程调用
+        private void discardOutbound() {
+            PendingWrite pending;
+            while ((pending = outbound.poll()) != null) {
+                pendingBytes.addAndGet(-pending.buffer.remaining());
+                pending.frame.release();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Object attachment) {
+            log.debug("{}读取失败：{}", name(), exc.getMessage());
+            chatCore.disconnect(this);
+        }
     }
 
-    // 移除客户端
-    private synchronized void removeClient(ClientHandler clientHandler) {
-        AsynchronousSocketChannel clientChannel = clientHandler.getClientChannel();
-        connectedClients.remove(clientHandler);
-        System.out.println(getClientName(clientChannel) + "已经断开连接");
-        close(clientChannel);
+    private static final class PendingWrite {
+        private final SharedBuffer frame;
+        // 每个接收方一个独立position的只读视图
+        private final ByteBuffer buffer;
+
+        PendingWrite(SharedBuffer frame) {
+            this.frame = frame;
+            this.buffer = frame.view();
+        }
     }
 
-    // 转发消息
-    private synchronized void forwardMsg(AsynchronousSocketChannel clientChannel, String fwdMsg) {
-        for (ClientHandler connectedHandler : connectedClients) {
-            AsynchronousSocketChannel client = connectedHandler.getClientChannel();
-            if (!client.equals(clientChannel)) {
-                try {
-                    // 将消息存入缓存区中
-                    ByteBuffer buffer = charset.encode(getClientName(client) + fwdMsg);
-                    // 写给每个客户端
-                    client.write(buffer, null, connectedHandler);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+    private class WriteHandler implements CompletionHandler<Long, ClientHandler> {
+
+        @Override
+        public void completed(Long written, ClientHandler clientHandler) {
+            clientHandler.onWritten(written);
         }
 
+        // 写失败只关闭连接，挂起的读随之失败，由读回调移除客户端并归还解码器的缓冲区
+        @Override
+        public void failed(Throwable exc, ClientHandler clientHandler) {
+            log.debug("{}写入失败：{}", clientHandler.name(), exc.getMessage());
+            clientHandler.onWriteFailed();
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,137 @@
+package com.example.socket.autoconfigure;
+
+import com.example.socket.buffer.ReceiveBufferSizer;
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.chat.RateLimitPolicy;
+import com.example.socket.chat.Transport;
+import com.example.socket.history.MessageLog;
+import com.example.socket.nio.WriteBufferWaterMark;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * @description: 按chat.server.*配置创建聊天服务器
+ * 只为chat.server.{bio,nio,aio}.enabled=true的I/O模型创建Transport，未启用的模型不会创建任何Selector或者线程；
+ * 所有Transport共用一个ChatCore，由ChatServerLifecycle随容器启动和关闭；
+ * 容器中有MeterRegistry（引入了actuator）时ChatCore的埋点注册为chat.*指标；
+ * chat.server.history.enabled=true时广播的消息追加到MessageLog，客户端可以用"/history"回放；
+ * chat.server.messages-per-second和room-messages-per-second大于0时按连接和房间限速
+ * @author: chenzhuo
+ * @create: 2021-04-03 14:30
+ */
+@Configuration(proxyBeanMethods = false)
+@EnableConfigurationProperties(ChatServerProperties.class)
+public class ChatServerAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ChatCore chatCore(ChatServerProperties properties, ObjectProvider<MeterRegistry> meterRegistry,
+                             ObjectProvider<MessageLog> messageLog) {
+        ChatCore chatCore = new ChatCore(properties.getFraming());
+        if (properties.getMessagesPerSecond() > 0) {
+            chatCore.setSessionRateLimit(new RateLimitPolicy(properties.getMessagesPerSecond(),
+                    properties.getMessageBurst()));
+        }
+        if (properties.getRoomMessagesPerSecond() > 0) {
+            chatCore.setRoomRateLimit(new RateLimitPolicy(properties.getRoomMessagesPerSecond(),
+                    properties.getRoomMessageBurst()));
+        }
+        meterRegistry.ifAvailable(registry -> chatCore.setMetrics(new MicrometerChatMetrics(registry, chatCore)));
+        messageLog.ifAvailable(chatCore::setMessageLog);
+        return chatCore;
+    }
+
+    // 容器关闭时调用close()，此时ChatServerLifecycle已经停止，写完已经入队的消息
+    @Bean
+    @ConditionalOnProperty(prefix = "chat.server.history", name = "enabled", havingValue = "true")
+    public MessageLog messageLog(ChatServerProperties properties) throws IOException {
+        ChatServerProperties.History history = properties.getHistory();
+        File directory = history.getDirectory() != null
+                ? new File(history.getDirectory()) : new File(System.getProperty("java.io.tmpdir"), "chat-history");
+        return new MessageLog(directory, history.getSegmentSize(), history.getMaxSegments());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "chat.server.bio", name = "enabled", havingValue = "true")
+    public com.example.socket.bio.server.ChatServer bioChatServer(ChatServerProperties properties) {
+        ChatServerProperties.Bio bio = properties.getBio();
+        com.example.socket.bio.server.ChatServer server =
+                new com.example.socket.bio.server.ChatServer(bio.getPort(), bio.isVirtualThreads(), bio.getThreads());
+        server.setMaxFrameLength(properties.getMaxFrameLength());
+        server.setMaxPendingBytes(bio.getMaxPendingBytes());
+        server.setIdlePolicy(idlePolicy(properties));
+        server.setReceiveBufferSizer(receiveBufferSizer(properties));
+        return server;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "chat.server.nio", name = "enabled", havingValue = "true")
+    public com.example.socket.nio.ChatServer nioChatServer(ChatServerProperties properties) {
+        ChatServerProperties.Nio nio = properties.getNio();
+        com.example.socket.nio.ChatServer server = new com.example.socket.nio.ChatServer(nio.getPort(), nio.getWorkers());
+        server.setMaxFrameLength(properties.getMaxFrameLength());
+        server.setWriteBufferWaterMark(new WriteBufferWaterMark(nio.getLowWaterMark(), nio.getHighWaterMark()));
+        server.setOverflowPolicy(nio.getOverflowPolicy());
+        server.setFlushPolicy(new FlushPolicy(nio.getMaxBatchBytes(), nio.getFlushDelay().toNanos(), TimeUnit.NANOSECONDS));
+        server.setIdlePolicy(idlePolicy(properties));
+        server.setReceiveBufferSizer(receiveBufferSizer(properties));
+        if (nio.getFileDirectory() != null) {
+            server.setFileDirectory(new File(nio.getFileDirectory()));
+        }
+        server.setMaxFileSize(nio.getMaxFileSize());
+        server.setMaxFiles(nio.getMaxFiles());
+        server.setMaxStoredBytes(nio.getMaxStoredBytes());
+        return server;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "chat.server.aio", name = "enabled", havingValue = "true")
+    public com.example.socket.aio.chatroom.ChatServer aioChatServer(ChatServerProperties properties) {
+        ChatServerProperties.Aio aio = properties.getAio();
+        com.example.socket.aio.chatroom.ChatServer server = new com.example.socket.aio.chatroom.ChatServer(aio.getPort());
+        server.setMaxFrameLength(properties.getMaxFrameLength());
+        server.setChannelGroup(aio.getChannelGroup(), aio.getThreads());
+        server.setBindAddress(aio.getBindAddress());
+        server.setBacklog(aio.getBacklog());
+        server.setAcceptors(aio.getAcceptors());
+        server.setReusePort(aio.isReusePort());
+        server.setTcpNoDelay(aio.isTcpNoDelay());
+        server.setReceiveBufferSize(aio.getReceiveBufferSize());
+        server.setSendBufferSize(aio.getSendBufferSize());
+        server.setMaxPendingBytes(aio.getMaxPendingBytes());
+        // AIO的时间轮精度太粗，不支持刷新延迟，见ChatServer.setFlushPolicy()
+        server.setFlushPolicy(new FlushPolicy(aio.getMaxBatchBytes(), 0, TimeUnit.MILLISECONDS));
+        server.setIdlePolicy(idlePolicy(properties));
+        server.setReceiveBufferSizer(receiveBufferSizer(properties));
+        return server;
+    }
+
+    private static IdlePolicy idlePolicy(ChatServerProperties properties) {
+        return new IdlePolicy(properties.getReaderIdleTimeout().toMillis(), properties.getHeartbeatInterval().toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static ReceiveBufferSizer receiveBufferSizer(ChatServerProperties properties) {
+        return new ReceiveBufferSizer(properties.getMinReceiveBufferSize(), properties.getInitialReceiveBufferSize(),
+                properties.getMaxReceiveBufferSize());
+    }
+
+    @Bean
+    public ChatServerLifecycle chatServerLifecycle(ChatCore chatCore, ObjectProvider<Transport> transports,
+                                                   ChatServerProperties properties) {
+        return new ChatServerLifecycle(chatCore, transports.orderedStream().collect(Collectors.toList()),
+                properties.getShutdownTimeout());
+    }
+}
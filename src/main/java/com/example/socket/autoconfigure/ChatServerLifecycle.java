@@ -0,0 +1,85 @@
+package com.example.socket.autoconfigure;
+
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 在Spring容器中启动和关闭所有启用的Transport
+ * 容器刷新完成后每个Transport在自己的线程中启动，Selector、线程池等资源在这时才创建；
+ * 容器关闭时先停止accept，再等待出站队列写空（最多shutdownTimeout），最后关闭所有连接
+ * @author: chenzhuo
+ * @create: 2021-04-03 14:40
+ */
+public class ChatServerLifecycle implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatServerLifecycle.class);
+
+    private final ChatCore chatCore;
+    private final List<Transport> transports;
+    private final Duration shutdownTimeout;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+
+    public ChatServerLifecycle(ChatCore chatCore, List<Transport> transports, Duration shutdownTimeout) {
+        this.chatCore = chatCore;
+        this.transports = transports;
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        for (int i = 0; i < transports.size(); i++) {
+            Transport transport = transports.get(i);
+            // 非守护线程，没有web容器时也能让应用保持运行
+            Thread thread = new Thread(() -> transport.start(chatCore), "chat-transport-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        running = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Transport transport : transports) {
+            transport.stopAccepting();
+        }
+        try {
+            if (!chatCore.awaitDrained(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("等待出站队列写空超时，剩余{}字节", chatCore.pendingBytes());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Transport transport : transports) {
+            transport.close();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        threads.clear();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,609 @@
+package com.example.socket.autoconfigure;
+
+import com.example.socket.aio.chatroom.ChannelGroupType;
+import com.example.socket.buffer.ReceiveBufferSizer;
+import com.example.socket.codec.Framing;
+import com.example.socket.history.MessageLog;
+import com.example.socket.nio.OverflowPolicy;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * @description: 聊天服务器配置，前缀chat.server
+ * 三种I/O模型默认都不启用，启用的模型共用同一个ChatCore，端口不能相同
+ * @author: chenzhuo
+ * @create: 2021-04-03 14:20
+ */
+@ConfigurationProperties(prefix = "chat.server")
+public class ChatServerProperties {
+
+    /**
+     * 所有启用的I/O模型共用的帧格式
+     */
+    private Framing framing = Framing.LINE;
+
+    /**
+     * 单个帧的最大字节数，超过时断开连接
+     */
+    private int maxFrameLength = Framing.DEFAULT_MAX_FRAME_LENGTH;
+
+    /**
+     * 优雅关闭时停止accept之后等待出站队列写空的最长时间，超时后直接关闭连接
+     */
+    private Duration shutdownTimeout = Duration.ofSeconds(10);
+
+    /**
+     * 连接超过这个时间没有发来任何数据时断开，为0时不检测空闲连接
+     */
+    private Duration readerIdleTimeout = Duration.ofSeconds(90);
+
+    /**
+     * 连接超过这个时间没有发来任何数据时发送"/ping"，为0时不发送心跳
+     */
+    private Duration heartbeatInterval = Duration.ofSeconds(30);
+
+    /**
+     * 每个连接的读缓冲区（应用层的，不是SO_RCVBUF）按最近读到的字节数在最小值和最大值之间伸缩，都取2的幂
+     */
+    private int minReceiveBufferSize = ReceiveBufferSizer.DEFAULT.minimum();
+
+    private int initialReceiveBufferSize = ReceiveBufferSizer.DEFAULT.initial();
+
+    private int maxReceiveBufferSize = ReceiveBufferSizer.DEFAULT.maximum();
+
+    /**
+     * 每个连接每秒最多发送的消息数，超过时暂停读取这个连接而不是丢弃消息，为0时不限速
+     */
+    private int messagesPerSecond;
+
+    /**
+     * 每个连接允许的突发消息数
+     */
+    private int messageBurst = 20;
+
+    /**
+     * 每个房间所有成员合计每秒最多转发的消息数，为0时不限速
+     */
+    private int roomMessagesPerSecond;
+
+    /**
+     * 每个房间允许的突发消息数
+     */
+    private int roomMessageBurst = 200;
+
+    private final Bio bio = new Bio();
+
+    private final Nio nio = new Nio();
+
+    private final Aio aio = new Aio();
+
+    private final History history = new History();
+
+    public Framing getFraming() {
+        return framing;
+    }
+
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public Duration getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(Duration shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public Duration getReaderIdleTimeout() {
+        return readerIdleTimeout;
+    }
+
+    public void setReaderIdleTimeout(Duration readerIdleTimeout) {
+        this.readerIdleTimeout = readerIdleTimeout;
+    }
+
+    public Duration getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public void setHeartbeatInterval(Duration heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public int getMinReceiveBufferSize() {
+        return minReceiveBufferSize;
+    }
+
+    public void setMinReceiveBufferSize(int minReceiveBufferSize) {
+        this.minReceiveBufferSize = minReceiveBufferSize;
+    }
+
+    public int getInitialReceiveBufferSize() {
+        return initialReceiveBufferSize;
+    }
+
+    public void setInitialReceiveBufferSize(int initialReceiveBufferSize) {
+        this.initialReceiveBufferSize = initialReceiveBufferSize;
+    }
+
+    public int getMaxReceiveBufferSize() {
+        return maxReceiveBufferSize;
+    }
+
+    public void setMaxReceiveBufferSize(int maxReceiveBufferSize) {
+        this.maxReceiveBufferSize = maxReceiveBufferSize;
+    }
+
+    public int getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public void setMessagesPerSecond(int messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public int getMessageBurst() {
+        return messageBurst;
+    }
+
+    public void setMessageBurst(int messageBurst) {
+        this.messageBurst = messageBurst;
+    }
+
+    public int getRoomMessagesPerSecond() {
+        return roomMessagesPerSecond;
+    }
+
+    public void setRoomMessagesPerSecond(int roomMessagesPerSecond) {
+        this.roomMessagesPerSecond = roomMessagesPerSecond;
+    }
+
+    public int getRoomMessageBurst() {
+        return roomMessageBurst;
+    }
+
+    public void setRoomMessageBurst(int roomMessageBurst) {
+        this.roomMessageBurst = roomMessageBurst;
+    }
+
+    public Bio getBio() {
+        return bio;
+    }
+
+    public Nio getNio() {
+        return nio;
+    }
+
+    public Aio getAio() {
+        return aio;
+    }
+
+    public History getHistory() {
+        return history;
+    }
+
+    public static class History {
+
+        private boolean enabled;
+
+        /**
+         * 段文件的保存目录，默认为临时目录下的chat-history
+         */
+        private String directory;
+
+        /**
+         * 段文件的大小，最大1GB
+         */
+        private int segmentSize = MessageLog.DEFAULT_SEGMENT_BYTES;
+
+        /**
+         * 保留的段数，超过时删除最旧的段
+         */
+        private int maxSegments = MessageLog.DEFAULT_MAX_SEGMENTS;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public int getMaxSegments() {
+            return maxSegments;
+        }
+
+        public void setMaxSegments(int maxSegments) {
+            this.maxSegments = maxSegments;
+        }
+    }
+
+    public static class Bio {
+
+        private boolean enabled;
+
+        private int port = 8888;
+
+        /**
+         * 每个连接一个虚拟线程，需要JDK 21+
+         */
+        private boolean virtualThreads;
+
+        /**
+         * 固定线程池的大小，也就是同时在线的客户端数上限
+         */
+        private int threads = 10;
+
+        /**
+         * 单个连接出站队列的上限，超过时断开该连接
+         */
+        private long maxPendingBytes = 4 * 1024 * 1024L;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public void setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public long getMaxPendingBytes() {
+            return maxPendingBytes;
+        }
+
+        public void setMaxPendingBytes(long maxPendingBytes) {
+            this.maxPendingBytes = maxPendingBytes;
+        }
+    }
+
+    public static class Nio {
+
+        private boolean enabled;
+
+        private int port = 7777;
+
+        /**
+         * 从Reactor的个数，每个一个Selector一个线程
+         */
+        private int workers = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * 出站队列的低水位，回落到这里以下时恢复可写
+         */
+        private int lowWaterMark = 32 * 1024;
+
+        /**
+         * 出站队列的高水位，超过时按overflowPolicy处理
+         */
+        private int highWaterMark = 64 * 1024;
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+        /**
+         * 一次gathering write最多写出的字节数
+         */
+        private int maxBatchBytes = 64 * 1024;
+
+        /**
+         * 第一条消息入队后最多等待多久再刷新，0表示本轮事件处理结束时立即刷新
+         */
+        private Duration flushDelay = Duration.ZERO;
+
+        /**
+         * 上传文件的保存目录，默认为临时目录下的chat-files
+         */
+        private String fileDirectory;
+
+        private long maxFileSize = 1024 * 1024 * 1024L;
+
+        /**
+         * 最多保留的已上传文件个数，超过时删除最早的文件
+         */
+        private int maxFiles = 256;
+
+        /**
+         * 已上传文件的总字节数上限，超过时删除最早的文件
+         */
+        private long maxStoredBytes = 4 * 1024 * 1024 * 1024L;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public void setWorkers(int workers) {
+            this.workers = workers;
+        }
+
+        public int getLowWaterMark() {
+            return lowWaterMark;
+        }
+
+        public void setLowWaterMark(int lowWaterMark) {
+            this.lowWaterMark = lowWaterMark;
+        }
+
+        public int getHighWaterMark() {
+            return highWaterMark;
+        }
+
+        public void setHighWaterMark(int highWaterMark) {
+            this.highWaterMark = highWaterMark;
+        }
+
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        public int getMaxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        public void setMaxBatchBytes(int maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+        }
+
+        public Duration getFlushDelay() {
+            return flushDelay;
+        }
+
+        public void setFlushDelay(Duration flushDelay) {
+            this.flushDelay = flushDelay;
+        }
+
+        public String getFileDirectory() {
+            return fileDirectory;
+        }
+
+        public void setFileDirectory(String fileDirectory) {
+            this.fileDirectory = fileDirectory;
+        }
+
+        public long getMaxFileSize() {
+            return maxFileSize;
+        }
+
+        public void setMaxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+        }
+
+        public int getMaxFiles() {
+            return maxFiles;
+        }
+
+        public void setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+        }
+
+        public long getMaxStoredBytes() {
+            return maxStoredBytes;
+        }
+
+        public void setMaxStoredBytes(long maxStoredBytes) {
+            this.maxStoredBytes = maxStoredBytes;
+        }
+    }
+
+    public static class Aio {
+
+        private boolean enabled;
+
+        private int port = 8889;
+
+        private ChannelGroupType channelGroup = ChannelGroupType.FIXED;
+
+        /**
+         * FIXED的线程数，CACHED的初始线程数，FORK_JOIN的并行度
+         */
+        private int threads = 8;
+
+        /**
+         * 为空时监听所有网卡
+         */
+        private String bindAddress;
+
+        private int backlog = 1024;
+
+        /**
+         * 同时挂起的accept个数，大于1时使用SO_REUSEPORT
+         */
+        private int acceptors = 1;
+
+        private boolean reusePort;
+
+        private boolean tcpNoDelay = true;
+
+        /**
+         * 为0时使用操作系统默认值
+         */
+        private int receiveBufferSize;
+
+        /**
+         * 为0时使用操作系统默认值
+         */
+        private int sendBufferSize;
+
+        /**
+         * 单个连接出站队列的上限，超过时断开该连接
+         */
+        private long maxPendingBytes = 4 * 1024 * 1024L;
+
+        /**
+         * 一次gathering write最多写出的字节数；AIO没有flush-delay，上一次写进行期间入队的消息在写完成时一起发出
+         */
+        private int maxBatchBytes = 64 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public ChannelGroupType getChannelGroup() {
+            return channelGroup;
+        }
+
+        public void setChannelGroup(ChannelGroupType channelGroup) {
+            this.channelGroup = channelGroup;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public String getBindAddress() {
+            return bindAddress;
+        }
+
+        public void setBindAddress(String bindAddress) {
+            this.bindAddress = bindAddress;
+        }
+
+        public int getBacklog() {
+            return backlog;
+        }
+
+        public void setBacklog(int backlog) {
+            this.backlog = backlog;
+        }
+
+        public int getAcceptors() {
+            return acceptors;
+        }
+
+        public void setAcceptors(int acceptors) {
+            this.acceptors = acceptors;
+        }
+
+        public boolean isReusePort() {
+            return reusePort;
+        }
+
+        public void setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+        }
+
+        public boolean isTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        public void setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+        }
+
+        public int getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        public void setReceiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+        }
+
+        public int getSendBufferSize() {
+            return sendBufferSize;
+        }
+
+        public void setSendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+        }
+
+        public long getMaxPendingBytes() {
+            return maxPendingBytes;
+        }
+
+        public void setMaxPendingBytes(long maxPendingBytes) {
+            this.maxPendingBytes = maxPendingBytes;
+        }
+
+        public int getMaxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        public void setMaxBatchBytes(int maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+        }
+    }
+}
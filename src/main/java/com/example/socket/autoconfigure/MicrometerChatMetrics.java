@@ -0,0 +1,105 @@
+package com.example.socket.autoconfigure;
+
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.ChatMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 把ChatMetrics的埋点注册到Micrometer，通过actuator的/actuator/metrics查看
+ * Meter在构造时创建一次，热路径上只做计数器累加和直方图记录，不查找Meter也不创建Tag；
+ * 在线连接数和出站队列深度是Gauge，只在采集时读取ChatCore
+ * @author: chenzhuo
+ * @create: 2021-04-05 10:40
+ */
+public class MicrometerChatMetrics implements ChatMetrics {
+
+    private final Counter accepted;
+    private final Counter evicted;
+    private final Counter suspended;
+    private final Counter bytesRead;
+    private final Counter bytesWritten;
+    private final Counter fanout;
+    private final Timer broadcastLatency;
+    private final Timer selectorLoop;
+
+    public MicrometerChatMetrics(MeterRegistry registry, ChatCore chatCore) {
+        Gauge.builder("chat.connections.active", chatCore, ChatCore::sessionCount)
+                .description("在线连接数")
+                .register(registry);
+        Gauge.builder("chat.outbound.pending", chatCore, ChatCore::pendingBytes)
+                .description("所有连接出站队列中尚未写出的字节数")
+                .baseUnit("bytes")
+                .register(registry);
+        accepted = Counter.builder("chat.connections.accepted")
+                .description("接受的连接数")
+                .register(registry);
+        evicted = Counter.builder("chat.connections.evicted")
+                .description("因为空闲超时断开的连接数")
+                .register(registry);
+        suspended = Counter.builder("chat.connections.suspended")
+                .description("因为发送太快被暂停读取的次数")
+                .register(registry);
+        bytesRead = Counter.builder("chat.bytes.read")
+                .baseUnit("bytes")
+                .register(registry);
+        bytesWritten = Counter.builder("chat.bytes.written")
+                .baseUnit("bytes")
+                .register(registry);
+        fanout = Counter.builder("chat.messages.fanout")
+                .description("转发给接收方的消息数，一条房间消息按接收方个数计")
+                .register(registry);
+        broadcastLatency = Timer.builder("chat.broadcast.latency")
+                .description("一条消息编码并放入所有接收方出站队列的耗时")
+                .publishPercentileHistogram()
+                .register(registry);
+        selectorLoop = Timer.builder("chat.selector.loop")
+                .description("Selector线程一轮事件处理的耗时")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @Override
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    @Override
+    public void connectionEvicted() {
+        evicted.increment();
+    }
+
+    @Override
+    public void readSuspended() {
+        suspended.increment();
+    }
+
+    @Override
+    public void bytesRead(long bytes) {
+        bytesRead.increment(bytes);
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+        bytesWritten.increment(bytes);
+    }
+
+    @Override
+    public void messageFannedOut(int recipients) {
+        fanout.increment(recipients);
+    }
+
+    @Override
+    public void broadcastTime(long nanos) {
+        broadcastLatency.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void selectorLoopTime(long nanos) {
+        selectorLoop.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
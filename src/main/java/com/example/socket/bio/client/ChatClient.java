@@ -2,6 +2,7 @@ package com.example.socket.bio.client;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @description:
@@ -11,14 +12,16 @@ import java.net.Socket;
 public class ChatClient {
     private final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private final String QUIT = "quit";
+    private final String PING = "/ping";
+    private final String PONG = "/pong";
     private final int DEFAULT_SERVER_PORT = 8888;
 
     private Socket socket;
     private BufferedReader bufferedReader;
     private BufferedWriter bufferedWriter;
 
-    // 发送消息给服务器
-    public void send(String message) throws IOException {
+    // 发送消息给服务器，用户输入线程和读线程（回复心跳）都会调用
+    public synchronized void send(String message) throws IOException {
         if (!socket.isOutputShutdown()) {
             bufferedWriter.write(message + "\n");
             bufferedWriter.flush();
@@ -43,14 +46,19 @@ public class ChatClient {
         try {
             socket = new Socket(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
             // 创建IO流
-            bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
 
             // 处理用户输入
             new Thread(new UserInputHandler(this)).start();
             // 读取服务器转发的消息
             String msg = null;
             while ((msg = receive())!= null) {
+                if (PING.equals(msg)) {
+                    // 服务器的心跳，回复后服务器不会把这个连接当作空闲连接断开
+                    send(PONG);
+                    continue;
+                }
                 System.out.println(msg);
             }
         } catch (IOException e) {
@@ -1,52 +1,258 @@
 package com.example.socket.bio.server;
 
-import java.io.BufferedReader;
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.ChatSession;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.codec.FrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * @description: 读取用户输入并转发的线程
+ * @description: 读取用户输入并交给ChatCore处理的线程，同时是ChatCore眼中的一个连接
+ * 读取和nio、aio一样按ChatCore的Framing解码，不再依赖readLine()和平台默认字符集；
+ * 每个连接有自己的线程，空闲检测不需要时间轮，用SO_TIMEOUT让阻塞的读定期返回，再按IdlePolicy发送心跳或者断开；
+ * 被ChatCore限速时读线程直接睡眠，醒来后先解码剩下的帧，期间不读socket；
+ * 发给本连接的消息进入有界的出站队列，由writer执行器上的写任务阻塞写出，发送方不会因为接收方太慢而阻塞，
+ * 队列为空时写任务结束，不占用线程；同一时刻只有一个写任务，写socket时不持有任何锁，虚拟线程不会被钉在载体线程上
  * @author: chenzhuo
  * @create: 2021-03-11 21:56
  */
-public class ChatHandler implements Runnable{
-    private ChatServer chatServer;
+public class ChatHandler extends ChatSession implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatHandler.class);
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    private ChatCore chatCore;
     private Socket socket;
+    private FrameDecoder decoder;
+    private OutputStream out;
+    private IdlePolicy idlePolicy;
+    // 出站队列，任意线程都可以入队，超过maxPendingBytes时断开连接
+    private final Queue<SharedBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final long maxPendingBytes;
+    private final Executor writer;
+    // 为true时有一个写任务正在进行，只有把它从false改为true的线程可以提交写任务
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // 把多条消息拷贝到一起再写，只由持有writing的线程访问
+    private byte[] writeBuffer;
+    // 令牌用完时ChatCore设置的暂停时间，只在本连接的线程上访问
+    private long suspendNanos;
 
-    public ChatHandler(ChatServer chatServer, Socket socket) {
-        this.chatServer = chatServer;
+    /**
+     * @param writer 执行写任务，每个连接同一时刻最多占用其中的一个线程
+     */
+    public ChatHandler(ChatCore chatCore, long id, Socket socket, int maxFrameLength, IdlePolicy idlePolicy,
+                       ReceiveBufferSizer receiveBufferSizer, Executor writer, long maxPendingBytes) throws IOException {
+        super(id, ChatCore.clientName(id, socket.getPort()));
+        this.chatCore = chatCore;
         this.socket = socket;
+        this.idlePolicy = idlePolicy;
+        this.writer = writer;
+        this.maxPendingBytes = maxPendingBytes;
+        this.out = socket.getOutputStream();
+        this.decoder = chatCore.framing().newDecoder(maxFrameLength, BufferPool.DEFAULT, receiveBufferSizer);
     }
 
     @Override
     public void run() {
         try {
             // 存储新上线用户
-            chatServer.addClient(socket);
-
-            // 读取用户发送的消息
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String msg = null;
-            while ((msg = bufferedReader.readLine())!= null) {
-                String fwdMsg = "客户端[" + socket.getPort() + "]:" + msg + "\n";
-                System.out.println(fwdMsg);
-                // 将消息转发给其它在线用户
-                chatServer.forwardMessage(socket, fwdMsg);
-                // 检查用户是否准备退出
-                if (chatServer.readyToQuit(msg)) {
+            chatCore.connected(this);
+            ReadableByteChannel in = Channels.newChannel(socket.getInputStream());
+            long lastReadNanos = System.nanoTime();
+            if (idlePolicy.isEnabled()) {
+                setReadTimeout(idlePolicy.initialDelayNanos());
+            }
+            // 一次可能读到多个帧，也可能只读到半个帧；用户退出后ChatCore已经关闭了socket
+            while (!socket.isClosed()) {
+                int read;
+                try {
+                    read = in.read(decoder.readBuffer());
+                } catch (SocketTimeoutException e) {
+                    long idleNanos = System.nanoTime() - lastReadNanos;
+                    if (idlePolicy.isExpired(idleNanos)) {
+                        log.debug("{}空闲超时，断开连接", name());
+                        chatCore.metrics().connectionEvicted();
+                        break;
+                    }
+                    if (idlePolicy.shouldPing(idleNanos)) {
+                        chatCore.ping(this);
+                    }
+                    setReadTimeout(idlePolicy.nextCheckNanos(idleNanos));
+                    continue;
+                }
+                if (read < 0) {
                     break;
                 }
+                decoder.readComplete(read);
+                chatCore.metrics().bytesRead(read);
+                decoder.decode(frame -> chatCore.onMessage(this, frame));
+                while (suspendNanos > 0 && !socket.isClosed()) {
+                    long delayNanos = suspendNanos;
+                    suspendNanos = 0;
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    decoder.decode(frame -> chatCore.onMessage(this, frame));
+                }
+                // 暂停期间数据留在socket接收缓冲区中，不算空闲
+                lastReadNanos = System.nanoTime();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!socket.isClosed()) {
+                log.debug("{}读取失败：{}", name(), e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            // 服务器关闭
+            Thread.currentThread().interrupt();
         } finally {
+            // 最后需要移除离线用户
+            chatCore.disconnect(this);
+        }
+    }
+
+    private void setReadTimeout(long timeoutNanos) throws IOException {
+        // SO_TIMEOUT为0表示无限等待，至少1毫秒
+        socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+    }
+
+    @Override
+    protected void suspendRead(long delayNanos) {
+        suspendNanos = delayNanos;
+    }
+
+    /**
+     * 将一个已编码的帧放入出站队列，可以在任意线程调用，不阻塞；
+     * 接收方异常或者太慢时只关闭接收方的socket，由接收方自己的线程完成清理
+     *
+     * @param frame 调用方转交一个引用，写完或者被丢弃时release
+     */
+    @Override
+    public boolean write(SharedBuffer frame, ChatSession sender) {
+        if (socket.isClosed()) {
+            frame.release();
+            return false;
+        }
+        outbound.offer(frame);
+        if (pendingBytes.addAndGet(frame.readableBytes()) > maxPendingBytes) {
+            log.warn("{}接收太慢，断开连接", name());
+            closeSocket();
+        }
+        // socket已经关闭时写任务只归还队列中的帧
+        if (writing.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // 服务器正在关闭
+                closeSocket();
+                flush();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    // 由持有writing的线程调用，写完队列中的消息之后结束；socket关闭之后不再写，只归还剩下的帧
+    private void flush() {
+        while (true) {
             try {
-                // 最后需要移除离线用户
-                chatServer.removeClient(socket);
+                drain();
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!socket.isClosed()) {
+                    log.debug("{}写入失败：{}", name(), e.getMessage());
+                }
+                closeSocket();
+                discardOutbound();
+            }
+            writing.set(false);
+            // 其它线程可能在writing复位之前入队，需要再检查一次
+            if (outbound.isEmpty() || !writing.compareAndSet(false, true)) {
+                return;
             }
         }
     }
+
+    private void drain() throws IOException {
+        if (socket.isClosed()) {
+            discardOutbound();
+            return;
+        }
+        if (writeBuffer == null) {
+            writeBuffer = new byte[WRITE_BUFFER_SIZE];
+        }
+        int used = 0;
+        SharedBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            try {
+                ByteBuffer view = frame.view();
+                pendingBytes.addAndGet(-view.remaining());
+                while (view.hasRemaining()) {
+                    int length = Math.min(view.remaining(), writeBuffer.length - used);
+                    view.get(writeBuffer, used, length);
+                    used += length;
+                    if (used == writeBuffer.length) {
+                        write(used);
+                        used = 0;
+                    }
+                }
+            } finally {
+                frame.release();
+            }
+        }
+        if (used > 0) {
+            write(used);
+        }
+    }
+
+    private void write(int length) throws IOException {
+        out.write(writeBuffer, 0, length);
+        chatCore.metrics().bytesWritten(length);
+    }
+
+    private void discardOutbound() {
+        SharedBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            pendingBytes.addAndGet(-frame.readableBytes());
+            frame.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        closeSocket();
+        decoder.release();
+        // 写任务正在进行时由它归还队列中的帧
+        if (writing.compareAndSet(false, true)) {
+            flush();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("{}关闭socket失败", name(), e);
+        }
+    }
 }
@@ -1,102 +1,158 @@
 package com.example.socket.bio.server;
 
+import com.example.socket.buffer.ReceiveBufferSizer;
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.chat.Transport;
+import com.example.socket.codec.Framing;
+import com.example.socket.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * @description: 聊天服务器
+ * 默认每个连接占用固定线程池中的一个线程；虚拟线程模式（JDK 21+）下每个连接一个虚拟线程，
+ * 阻塞的read()只挂起虚拟线程，不占用平台线程，可以支撑数万连接；
+ * 写出由单独的writer执行器完成（虚拟线程模式下同样是虚拟线程），只在连接有待写的消息时占用线程，
+ * 一个接收方太慢不会阻塞发送方和它所在的房间；
+ * 房间、私聊和退出等聊天逻辑由ChatCore完成
  * @author: chenzhuo
  * @create: 2021-03-11 21:55
  */
-public class ChatServer {
+public class ChatServer implements Transport {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatServer.class);
 
-    private final int DEFAULT_PORT = 8888;
-    private final String QUIT = "quit";
+    private static final int DEFAULT_PORT = 8888;
+    private static final int THREADPOOL_SIZE = 10;
+    private static final long DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024L;
+    private int port;
     private ServerSocket serverSocket;
-    private Map<Integer, Writer> connectedClients;
     private ExecutorService executorService;
+    // 执行各个连接的写任务，不限制线程数：每个连接最多一个写任务，出站队列有上限
+    private ExecutorService writerExecutor;
+    private long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    private int maxFrameLength = Framing.DEFAULT_MAX_FRAME_LENGTH;
+    private IdlePolicy idlePolicy = IdlePolicy.DEFAULT;
+    private ReceiveBufferSizer receiveBufferSizer = ReceiveBufferSizer.DEFAULT;
 
     public ChatServer() {
-        executorService = Executors.newFixedThreadPool(10);
-        connectedClients = new HashMap<>();
+        this(DEFAULT_PORT, false);
     }
 
-    public synchronized void addClient(Socket socket) throws IOException {
-        if (socket != null) {
-            int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            connectedClients.put(port, writer);
-            System.out.println("客户端[" + port + "]连接到服务器");
-        }
+    /**
+     * @param virtualThreads 为true时每个连接使用一个虚拟线程，需要JDK 21+
+     */
+    public ChatServer(int port, boolean virtualThreads) {
+        this(port, virtualThreads, THREADPOOL_SIZE);
     }
 
-    public synchronized void removeClient(Socket socket) throws IOException {
-        if (socket != null) {
-            int port = socket.getPort();
-            if (connectedClients.containsKey(port)) {
-                // 关闭消息流
-                connectedClients.get(port).close();
-                connectedClients.remove(port);
-            }
-            System.out.println("客户端[" + port + "]已断开连接");
-        }
+    /**
+     * @param threads 固定线程池的大小，也就是同时在线的客户端数上限；虚拟线程模式下不使用
+     */
+    public ChatServer(int port, boolean virtualThreads, int threads) {
+        this.port = port;
+        // 线程池中的线程在提交任务时才创建
+        executorService = virtualThreads
+                ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(threads);
+        writerExecutor = virtualThreads
+                ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
     }
 
-    // 将消息转发到其它在线客户
-    public synchronized void forwardMessage(Socket socket, String fwdMsg) throws IOException {
-        for (Integer id : connectedClients.keySet()) {
-            if (!id.equals(socket.getPort())) {
-                Writer writer = connectedClients.get(id);
-                writer.write(fwdMsg);
-                writer.flush();
-            }
-        }
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 单个连接出站队列的上限，超过时断开该连接
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public void setIdlePolicy(IdlePolicy idlePolicy) {
+        this.idlePolicy = idlePolicy;
+    }
+
+    /**
+     * 每个连接的读缓冲区按最近读到的字节数在minimum和maximum之间伸缩
+     */
+    public void setReceiveBufferSizer(ReceiveBufferSizer receiveBufferSizer) {
+        this.receiveBufferSizer = receiveBufferSizer;
     }
 
-    // 运行服务器
     public void start() {
+        start(new ChatCore());
+    }
+
+    // 运行服务器
+    @Override
+    public void start(ChatCore chatCore) {
         // 绑定监听端口
         try {
-            serverSocket = new ServerSocket(DEFAULT_PORT);
-            System.out.println("启动服务器，监听端口:" + DEFAULT_PORT);
+            serverSocket = new ServerSocket(port);
+            log.info("启动服务器，监听端口:{}", port);
             while (true) {
                 Socket socket = serverSocket.accept();
+                ChatHandler handler;
+                try {
+                    handler = new ChatHandler(chatCore, chatCore.nextId(), socket, maxFrameLength, idlePolicy,
+                            receiveBufferSizer, writerExecutor, maxPendingBytes);
+                } catch (IOException e) {
+                    log.warn("无法处理新连接", e);
+                    socket.close();
+                    continue;
+                }
                 // 为每一个用户添加一个线程，并启动  优化方案：添加到线程池中
-                executorService.execute(new ChatHandler(this, socket));
+                executorService.execute(handler);
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            close();
+            // stopAccepting()关闭了serverSocket时，已有的连接继续处理，直到close()
+            if (serverSocket == null || !serverSocket.isClosed()) {
+                log.error("服务器异常，端口[{}]", port, e);
+                close();
+            }
         }
 
     }
 
-    // 检查用户是否准备退出
-    public boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
-    }
-
-
     // 关闭服务器socket
-    public synchronized void close() {
-        if (serverSocket != null) {
+    @Override
+    public synchronized void stopAccepting() {
+        if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 serverSocket.close();
-                System.out.println("关闭ServerSocket");
+                log.info("关闭ServerSocket");
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("关闭ServerSocket失败", e);
             }
         }
     }
 
+    // 中断所有连接线程，阻塞在读取上的Channels.newChannel()通道随之关闭socket，线程退出前从ChatCore中移除连接
+    @Override
+    public void close() {
+        stopAccepting();
+        // 线程池已满时排队等待的连接还没有开始处理，直接关闭
+        for (Runnable pending : executorService.shutdownNow()) {
+            ((ChatHandler) pending).close();
+        }
+        // 正在阻塞写的任务随着socket关闭而失败，之后入队的消息在发送方的线程上直接归还
+        writerExecutor.shutdown();
+    }
+
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        // 参数virtual：使用虚拟线程模式
+        boolean virtualThreads = args.length > 0 && "virtual".equals(args[0]);
+        ChatServer chatServer = new ChatServer(DEFAULT_PORT, virtualThreads);
         chatServer.start();
     }
 
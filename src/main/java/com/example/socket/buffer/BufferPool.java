@@ -0,0 +1,232 @@
+package com.example.socket.buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @description: 直接内存缓冲区池，nio、aio以及文件复制共用
+ * 按2的幂划分规格；小规格先走线程本地缓存，未命中再走全局空闲队列，都没有才真正分配；
+ * 超过最大规格的请求直接分配，归还时丢弃
+ * 泄漏检测：按比例对借出的缓冲区做弱引用跟踪，缓冲区没有归还就被GC时打印借出时的调用栈
+ * @author: chenzhuo
+ * @create: 2021-03-22 20:05
+ */
+public class BufferPool {
+
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    public static final BufferPool DEFAULT = new BufferPool(LeakDetection.fromSystemProperty());
+
+    private static final int MIN_SIZE_SHIFT = 8;
+    private static final int MAX_SIZE_SHIFT = 20;
+    private static final int SIZE_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+    // 每个规格在全局队列中最多缓存的字节数
+    private static final int MAX_CACHED_BYTES_PER_CLASS = 16 * 1024 * 1024;
+    private static final int MAX_CACHED_PER_CLASS = 1024;
+    // 只有64KB及以下的规格使用线程本地缓存，避免大缓冲区滞留在空闲线程上
+    private static final int THREAD_CACHE_MAX_SHIFT = 16;
+    private static final int THREAD_CACHE_SIZE = 32;
+    private static final int LEAK_SAMPLING_INTERVAL = 128;
+
+    /**
+     * 泄漏检测级别，可以通过-Dsocket.buffer.leakDetection=DISABLED|SAMPLED|PARANOID指定
+     */
+    public enum LeakDetection {
+        DISABLED, SAMPLED, PARANOID;
+
+        static LeakDetection fromSystemProperty() {
+            return valueOf(System.getProperty("socket.buffer.leakDetection", SAMPLED.name()));
+        }
+    }
+
+    private final Queue<ByteBuffer>[] freeLists;
+    private final AtomicInteger[] cached;
+    private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(ThreadCache::new);
+    private final LeakDetection leakDetection;
+    // 以identityHashCode为键，哈希冲突时放弃跟踪这一次借出
+    private final ConcurrentHashMap<Integer, LeakRecord> leakRecords = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> leakQueue = new ReferenceQueue<>();
+
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder poolHits = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder unpooledAllocations = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    public BufferPool() {
+        this(LeakDetection.SAMPLED);
+    }
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(LeakDetection leakDetection) {
+        this.leakDetection = leakDetection;
+        freeLists = new Queue[SIZE_CLASSES];
+        cached = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+            cached[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 取出一个容量不小于capacity的直接缓冲区，处于写模式，limit为capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        reportLeaks();
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            unpooledAllocations.increment();
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            buffer = threadCaches.get().poll(sizeClass);
+            if (buffer != null) {
+                threadCacheHits.increment();
+            } else if ((buffer = freeLists[sizeClass].poll()) != null) {
+                cached[sizeClass].decrementAndGet();
+                poolHits.increment();
+            } else {
+                int size = classSize(sizeClass);
+                allocations.increment();
+                allocatedBytes.add(size);
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+            buffer.clear().limit(capacity);
+        }
+        track(buffer);
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还之后调用方不能再访问它
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        releases.increment();
+        untrack(buffer);
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != classSize(sizeClass)) {
+            return;
+        }
+        if (threadCaches.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        int maxCached = Math.min(MAX_CACHED_PER_CLASS, Math.max(1, MAX_CACHED_BYTES_PER_CLASS / classSize(sizeClass)));
+        if (cached[sizeClass].incrementAndGet() <= maxCached) {
+            freeLists[sizeClass].offer(buffer);
+        } else {
+            cached[sizeClass].decrementAndGet();
+            allocatedBytes.add(-classSize(sizeClass));
+        }
+    }
+
+    public BufferPoolMetrics metrics() {
+        long cachedBuffers = 0;
+        for (AtomicInteger count : cached) {
+            cachedBuffers += count.get();
+        }
+        return new BufferPoolMetrics(threadCacheHits.sum(), poolHits.sum(), allocations.sum(),
+                unpooledAllocations.sum(), releases.sum(), leaks.sum(), allocatedBytes.sum(), cachedBuffers);
+    }
+
+    private void track(ByteBuffer buffer) {
+        if (leakDetection == LeakDetection.DISABLED) {
+            return;
+        }
+        if (leakDetection == LeakDetection.SAMPLED
+                && ThreadLocalRandom.current().nextInt(LEAK_SAMPLING_INTERVAL) != 0) {
+            return;
+        }
+        int id = System.identityHashCode(buffer);
+        leakRecords.putIfAbsent(id, new LeakRecord(buffer, id, leakQueue));
+    }
+
+    private void untrack(ByteBuffer buffer) {
+        if (leakDetection == LeakDetection.DISABLED) {
+            return;
+        }
+        int id = System.identityHashCode(buffer);
+        LeakRecord record = leakRecords.get(id);
+        if (record != null && record.get() == buffer && leakRecords.remove(id, record)) {
+            record.clear();
+        }
+    }
+
+    // 被GC回收但是没有从跟踪表中移除的缓冲区就是泄漏
+    private void reportLeaks() {
+        if (leakDetection == LeakDetection.DISABLED) {
+            return;
+        }
+        Object ref;
+        while ((ref = leakQueue.poll()) != null) {
+            LeakRecord record = (LeakRecord) ref;
+            if (leakRecords.remove(record.id, record)) {
+                leaks.increment();
+                log.error("LEAK: 直接缓冲区被GC回收之前没有归还到BufferPool，借出位置：", record.allocation);
+            }
+        }
+    }
+
+    // 返回容纳capacity所需的规格下标，超过最大规格返回-1
+    private static int sizeClass(int capacity) {
+        if (capacity > 1 << MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+
+    private static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+
+    private static final class ThreadCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[THREAD_CACHE_MAX_SHIFT - MIN_SIZE_SHIFT + 1][];
+        private final int[] sizes = new int[stacks.length];
+
+        ByteBuffer poll(int sizeClass) {
+            if (sizeClass >= stacks.length || sizes[sizeClass] == 0) {
+                return null;
+            }
+            ByteBuffer[] stack = stacks[sizeClass];
+            ByteBuffer buffer = stack[--sizes[sizeClass]];
+            stack[sizes[sizeClass]] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (sizeClass >= stacks.length || sizes[sizeClass] == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            if (stacks[sizeClass] == null) {
+                stacks[sizeClass] = new ByteBuffer[THREAD_CACHE_SIZE];
+            }
+            stacks[sizeClass][sizes[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+
+    private static final class LeakRecord extends WeakReference<ByteBuffer> {
+        private final int id;
+        private final Throwable allocation = new Throwable("buffer acquired here");
+
+        LeakRecord(ByteBuffer buffer, int id, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.socket.buffer;
+
+/**
+ * @description: BufferPool的统计快照
+ * @author: chenzhuo
+ * @create: 2021-03-23 21:40
+ */
+public final class BufferPoolMetrics {
+
+    private final long threadCacheHits;
+    private final long poolHits;
+    private final long allocations;
+    private final long unpooledAllocations;
+    private final long releases;
+    private final long leaks;
+    private final long allocatedBytes;
+    private final long cachedBuffers;
+
+    BufferPoolMetrics(long threadCacheHits, long poolHits, long allocations, long unpooledAllocations,
+                      long releases, long leaks, long allocatedBytes, long cachedBuffers) {
+        this.threadCacheHits = threadCacheHits;
+        this.poolHits = poolHits;
+        this.allocations = allocations;
+        this.unpooledAllocations = unpooledAllocations;
+        this.releases = releases;
+        this.leaks = leaks;
+        this.allocatedBytes = allocatedBytes;
+        this.cachedBuffers = cachedBuffers;
+    }
+
+    /**
+     * 线程本地缓存命中次数
+     */
+    public long threadCacheHits() {
+        return threadCacheHits;
+    }
+
+    /**
+     * 全局空闲队列命中次数
+     */
+    public long poolHits() {
+        return poolHits;
+    }
+
+    /**
+     * 池内规格的真实分配次数
+     */
+    public long allocations() {
+        return allocations;
+    }
+
+    /**
+     * 超过最大规格、不经过池的分配次数
+     */
+    public long unpooledAllocations() {
+        return unpooledAllocations;
+    }
+
+    public long releases() {
+        return releases;
+    }
+
+    /**
+     * 检测到的泄漏次数（只统计被采样跟踪的缓冲区）
+     */
+    public long leaks() {
+        return leaks;
+    }
+
+    /**
+     * 池内规格当前占用的直接内存字节数
+     */
+    public long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * 全局空闲队列中缓存的缓冲区个数，不含线程本地缓存
+     */
+    public long cachedBuffers() {
+        return cachedBuffers;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPoolMetrics(threadCacheHits: " + threadCacheHits + ", poolHits: " + poolHits
+                + ", allocations: " + allocations + ", unpooledAllocations: " + unpooledAllocations
+                + ", releases: " + releases + ", leaks: " + leaks + ", allocatedBytes: " + allocatedBytes
+                + ", cachedBuffers: " + cachedBuffers + ")";
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.socket.buffer;
+
+/**
+ * @description: 按最近几次读取的字节数自适应地决定下一次读取的缓冲区大小，参考Netty的AdaptiveRecvByteBufAllocator
+ * 大小取minimum到maximum之间2的幂，与BufferPool的规格对应；一次读取填满了预测的大小就跳升INDEX_INCREMENT级，
+ * 有两次读到的字节数不超过低一级的大小（期间没有读满过）才下降INDEX_DECREMENT级，增长快、收缩慢，突发的大量数据一次系统调用就能读完；
+ * 本类不可变，所有连接共用，每个连接的预测状态保存在newHandle()返回的Handle中
+ * @author: chenzhuo
+ * @create: 2021-04-10 20:15
+ */
+public final class ReceiveBufferSizer {
+
+    public static final ReceiveBufferSizer DEFAULT = new ReceiveBufferSizer(256, 1024, 64 * 1024);
+
+    private static final int INDEX_INCREMENT = 4;
+    private static final int INDEX_DECREMENT = 1;
+
+    private final int[] sizes;
+    private final int initialIndex;
+
+    /**
+     * 三个参数都向上取整到2的幂
+     */
+    public ReceiveBufferSizer(int minimum, int initial, int maximum) {
+        if (minimum <= 0 || initial < minimum || maximum < initial || maximum > 1 << 30) {
+            throw new IllegalArgumentException("invalid receive buffer sizes: minimum=" + minimum
+                    + ", initial=" + initial + ", maximum=" + maximum);
+        }
+        int minShift = shift(minimum);
+        int maxShift = shift(maximum);
+        this.sizes = new int[maxShift - minShift + 1];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 1 << (minShift + i);
+        }
+        this.initialIndex = shift(initial) - minShift;
+    }
+
+    /**
+     * 固定大小，不做自适应
+     */
+    public static ReceiveBufferSizer fixed(int size) {
+        return new ReceiveBufferSizer(size, size, size);
+    }
+
+    private static int shift(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    public int minimum() {
+        return sizes[0];
+    }
+
+    public int initial() {
+        return sizes[initialIndex];
+    }
+
+    public int maximum() {
+        return sizes[sizes.length - 1];
+    }
+
+    public Handle newHandle() {
+        return new Handle();
+    }
+
+    /**
+     * 一个连接的预测状态，只在读取这个连接的线程上访问
+     */
+    public final class Handle {
+        private int index = initialIndex;
+        // 上一次读取已经小到可以下降一级
+        private boolean decreaseNow;
+
+        /**
+         * 下一次读取应当准备的字节数
+         */
+        public int guess() {
+            return sizes[index];
+        }
+
+        /**
+         * 记录一次读取实际读到的字节数，读到0或者连接关闭时不需要记录
+         */
+        public void record(int bytes) {
+            if (bytes <= sizes[Math.max(0, index - INDEX_DECREMENT)]) {
+                if (decreaseNow) {
+                    index = Math.max(index - INDEX_DECREMENT, 0);
+                    decreaseNow = false;
+                } else {
+                    decreaseNow = true;
+                }
+            } else if (bytes >= sizes[index]) {
+                index = Math.min(index + INDEX_INCREMENT, sizes.length - 1);
+                decreaseNow = false;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiveBufferSizer(minimum: " + minimum() + ", initial: " + initial() + ", maximum: " + maximum() + ")";
+    }
+}
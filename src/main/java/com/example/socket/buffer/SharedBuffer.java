@@ -0,0 +1,71 @@
+package com.example.socket.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @description: 带引用计数的只读内容，广播时所有接收方共享同一份编码结果
+ * 每个接收方通过view()拿到独立position的只读视图，写完后release()，
+ * 最后一个引用释放时底层缓冲区归还到池中
+ * @author: chenzhuo
+ * @create: 2021-03-22 20:05
+ */
+public final class SharedBuffer {
+
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    /**
+     * @param buffer 读模式的内容，创建后不能再被修改
+     * @param pool   最后一次release时归还到的池，可以为null
+     */
+    public SharedBuffer(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    public int readableBytes() {
+        return buffer.remaining();
+    }
+
+    /**
+     * 返回内容的只读视图，视图之间的position互不影响，不拷贝数据
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    public SharedBuffer retain() {
+        for (;;) {
+            int count = refCnt.get();
+            if (count <= 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+            if (refCnt.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * @return true表示这是最后一个引用，底层缓冲区已经归还
+     */
+    public boolean release() {
+        int count = refCnt.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+            return true;
+        }
+        if (count < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+        return false;
+    }
+}
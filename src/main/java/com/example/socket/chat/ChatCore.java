@@ -0,0 +1,483 @@
+package com.example.socket.chat;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.codec.Framing;
+import com.example.socket.codec.MessageDecoder;
+import com.example.socket.codec.MessageEncoder;
+import com.example.socket.history.MessageLog;
+import com.example.socket.util.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 与I/O模型无关的聊天逻辑：上下线、退出、房间、私聊和转发
+ * Transport负责把读到的数据切成帧并交给onMessage()，再把这里编码好的帧写出去；
+ * 房间：每个连接同时只在一个房间中，连接建立后在lobby，"/join 房间名"切换到该房间，"/leave"回到lobby，
+ * 消息只转发给同一房间的成员，lobby之外的消息带"[房间名]"前缀；"@ID 消息"按连接ID私聊，不受房间限制；
+ * 命令直接在帧的字节上匹配，普通消息和私聊的内容不解码，以字节原样拼在预先编码好的"[房间]名称:"之后转发，
+ * 只有命令参数等确实需要文本的地方才解码，字符集因此必须兼容ASCII；
+ * 消息只编码一次，当前房间的所有接收方共享同一个SharedBuffer；
+ * 设置了MessageLog时广播的消息同时追加到日志，"/history [偏移量]"回放当前房间从该偏移量开始的消息，
+ * 回放的帧直接来自日志的映射内存，每次最多扫描MAX_REPLAY_SCAN_BYTES字节的记录，最后回复"/offset 下一条偏移量"，客户端可以从那里继续回放；
+ * 设置了RateLimitPolicy时每个帧从连接的令牌桶取一个令牌，房间消息再从房间的令牌桶取一个，令牌用完时让Transport暂停读取，不丢弃消息；
+ * 所有方法都是线程安全的，同一个ChatCore可以同时交给多个Transport，不同I/O模型的客户端在同一个房间中聊天
+ * @author: chenzhuo
+ * @create: 2021-04-01 20:00
+ */
+public class ChatCore {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatCore.class);
+    private static final Command QUIT = new Command("quit");
+    private static final Command JOIN = new Command("/join");
+    private static final Command LEAVE = new Command("/leave");
+    private static final Command PING = new Command("/ping");
+    private static final Command PONG = new Command("/pong");
+    private static final Command HISTORY = new Command("/history");
+    private static final String OFFSET = "/offset";
+    private static final String DIRECT_SUFFIX = "(私聊):";
+    // 构造时用来检查字符集是否兼容ASCII的样本，覆盖命令中出现的所有字符
+    private static final String ASCII_SAMPLE = "/@ :[]0123456789abcdefghijklmnopqrstuvwxyz";
+    // "/history"不带偏移量时回放最近多少条消息（所有房间合计）
+    private static final int DEFAULT_HISTORY_MESSAGES = 100;
+    // 一次回放最多写出的字节数，低于默认的写缓冲低水位，回放不会触发出站队列溢出；更多的历史由客户端继续请求
+    private static final int MAX_REPLAY_BYTES = 16 * 1024;
+    // 一次回放最多扫描的日志字节数，回放在I/O线程上进行，房间里的消息再少也不会扫描整个日志
+    private static final int MAX_REPLAY_SCAN_BYTES = 256 * 1024;
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    // 以连接ID为键的并发连接表，上下线和转发互不阻塞
+    private final ConnectionRegistry<ChatSession> sessions = new ConnectionRegistry<>();
+    // 房间 -> 成员，转发时只遍历发送方所在的房间
+    private final RoomRegistry<ChatSession> rooms = new RoomRegistry<>();
+    // 房间 -> 所有发送方共用的令牌桶，未启用房间限速时为空
+    private final ConcurrentMap<String, TokenBucket> roomLimiters = new ConcurrentHashMap<>();
+    private final Framing framing;
+    private final Charset charset;
+    private final MessageEncoder messageEncoder;
+    private final MessageDecoder messageDecoder;
+    // 心跳帧只编码一次，每次发送时增加一个引用
+    private final SharedBuffer pingFrame;
+    private final SharedBuffer pongFrame;
+    private ChatMetrics metrics = ChatMetrics.NOOP;
+    private MessageLog messageLog;
+    private RateLimitPolicy sessionRateLimit = RateLimitPolicy.DISABLED;
+    private RateLimitPolicy roomRateLimit = RateLimitPolicy.DISABLED;
+
+    public ChatCore() {
+        this(Framing.LINE);
+    }
+
+    public ChatCore(Framing framing) {
+        this(framing, StandardCharsets.UTF_8, BufferPool.DEFAULT);
+    }
+
+    /**
+     * @param charset 必须兼容ASCII，例如UTF-8、GBK，命令在字节上匹配
+     */
+    public ChatCore(Framing framing, Charset charset, BufferPool pool) {
+        if (!Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII))) {
+            throw new IllegalArgumentException("charset must be ASCII compatible: " + charset);
+        }
+        this.framing = framing;
+        this.charset = charset;
+        this.messageEncoder = new MessageEncoder(framing, charset, pool);
+        this.messageDecoder = new MessageDecoder(charset);
+        this.pingFrame = messageEncoder.encode(PING.name());
+        this.pongFrame = messageEncoder.encode(PONG.name());
+    }
+
+    public Framing framing() {
+        return framing;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    public ChatMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 在启动Transport之前设置，之后不能再修改
+     */
+    public void setMetrics(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MessageLog messageLog() {
+        return messageLog;
+    }
+
+    /**
+     * 在启动Transport之前设置，为null时不保存聊天记录
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    public RateLimitPolicy sessionRateLimit() {
+        return sessionRateLimit;
+    }
+
+    /**
+     * 每个连接发送消息的速率上限，在启动Transport之前设置
+     */
+    public void setSessionRateLimit(RateLimitPolicy sessionRateLimit) {
+        this.sessionRateLimit = sessionRateLimit;
+    }
+
+    public RateLimitPolicy roomRateLimit() {
+        return roomRateLimit;
+    }
+
+    /**
+     * 每个房间所有成员合计的转发速率上限，在启动Transport之前设置；
+     * 房间的令牌用完时，之后在这个房间中发言的每个人都会被暂停读取，应当明显大于单个连接的上限
+     */
+    public void setRoomRateLimit(RateLimitPolicy roomRateLimit) {
+        this.roomRateLimit = roomRateLimit;
+    }
+
+    /**
+     * 是否启用了连接或者房间的限速，Transport据此决定是否需要准备恢复读取用的定时器
+     */
+    public boolean isRateLimited() {
+        return sessionRateLimit.isEnabled() || roomRateLimit.isEnabled();
+    }
+
+    /**
+     * 分配一个新的连接ID，Transport在创建ChatSession之前调用
+     */
+    public long nextId() {
+        return sessions.nextId();
+    }
+
+    public static String clientName(long id, int port) {
+        return "客户端#" + id + "[" + port + "]";
+    }
+
+    /**
+     * 连接建立，加入lobby；之后才会收到其它连接的消息
+     */
+    public void connected(ChatSession session) {
+        if (sessionRateLimit.isEnabled()) {
+            session.setRateLimiter(sessionRateLimit.newBucket(System.nanoTime()));
+        }
+        sessions.add(session.id(), session);
+        rooms.join(RoomRegistry.LOBBY, session.id(), session);
+        metrics.connectionAccepted();
+        // 连接风暴时每秒上万条，默认级别下不输出，也不拼接字符串
+        log.debug("{}已连接", session.name());
+    }
+
+    /**
+     * 退出所有房间并关闭连接，可以重复调用，并发调用时只有一个调用方会输出下线信息
+     */
+    public void disconnect(ChatSession session) {
+        if (sessions.remove(session.id()) != null) {
+            rooms.leaveAll(session.id());
+            releaseRoomLimiter(session.currentRoom());
+            log.debug("{}已断开", session.name());
+        }
+        session.close();
+    }
+
+    /**
+     * 处理一条完整的消息，可以直接作为FrameListener使用
+     *
+     * @return false表示调用方应当停止解码：用户已经退出，连接已经关闭；
+     * 或者令牌已经用完，已经调用了session.suspendRead()，剩下的帧留在解码器中等恢复读取时再解码
+     */
+    public boolean onMessage(ChatSession session, ByteBuffer frame) {
+        if (log.isTraceEnabled()) {
+            log.trace("{}:{}", session.name(), messageDecoder.decode(frame));
+        }
+        // 这个帧已经读进来了，照常处理，令牌不够时在处理完之后暂停读取
+        long now = isRateLimited() ? System.nanoTime() : 0;
+        long delayNanos = acquire(session.rateLimiter(), now);
+        // 心跳只用来刷新连接的空闲时间，Transport在读到数据时已经刷新过了，不转发
+        if (PONG.matches(frame)) {
+            return continueReading(session, delayNanos);
+        }
+        if (PING.matches(frame)) {
+            session.write(pongFrame.retain(), null);
+            return continueReading(session, delayNanos);
+        }
+        DirectMessage direct = DirectMessage.parse(frame);
+        if (direct != null) {
+            sendDirect(session, direct);
+            return continueReading(session, delayNanos);
+        }
+        if (JOIN.matchesWithArgument(frame)) {
+            joinRoom(session, argument(JOIN, frame));
+            return continueReading(session, delayNanos);
+        }
+        if (HISTORY.matchesWithOptionalArgument(frame)) {
+            replayHistory(session, argument(HISTORY, frame));
+            return continueReading(session, delayNanos);
+        }
+        if (LEAVE.matchesWithOptionalArgument(frame)) {
+            String room = argument(LEAVE, frame);
+            leaveRoom(session, room.isEmpty() ? session.currentRoom() : room);
+            return continueReading(session, delayNanos);
+        }
+        // 转发消息，"quit"本身也转发，其它用户据此知道该用户下线
+        boolean quit = QUIT.matches(frame);
+        broadcast(session, frame);
+        if (quit) {
+            disconnect(session);
+            return false;
+        }
+        long roomDelayNanos = acquire(roomLimiter(session.currentRoom(), now), now);
+        return continueReading(session, Math.max(delayNanos, roomDelayNanos));
+    }
+
+    /**
+     * 不经过onMessage()的帧（例如nio的文件命令）也从连接的令牌桶取一个令牌，在本连接的读线程上调用
+     *
+     * @return false表示令牌已经用完，已经调用了session.suspendRead()，调用方应当停止解码
+     */
+    public boolean checkRate(ChatSession session) {
+        TokenBucket limiter = session.rateLimiter();
+        return limiter == null || continueReading(session, limiter.acquire(System.nanoTime()));
+    }
+
+    // 取一个令牌，返回距离下一个令牌可用的纳秒数；未启用限速时桶为null
+    private static long acquire(TokenBucket bucket, long now) {
+        return bucket == null ? 0 : bucket.acquire(now);
+    }
+
+    // 令牌用完时暂停读取，数据留在解码器和socket接收缓冲区中，返回false让Transport停止解码
+    private boolean continueReading(ChatSession session, long delayNanos) {
+        if (delayNanos <= 0) {
+            return true;
+        }
+        metrics.readSuspended();
+        session.suspendRead(delayNanos);
+        return false;
+    }
+
+    private TokenBucket roomLimiter(String room, long now) {
+        if (!roomRateLimit.isEnabled()) {
+            return null;
+        }
+        TokenBucket bucket = roomLimiters.get(room);
+        if (bucket == null) {
+            bucket = roomLimiters.computeIfAbsent(room, key -> roomRateLimit.newBucket(now));
+        }
+        return bucket;
+    }
+
+    // 房间名由客户端决定，没有成员之后删除它的令牌桶，否则会一直积累；
+    // 与并发的加入有竞争，最坏情况下重新创建的房间得到一个装满的新桶
+    private void releaseRoomLimiter(String room) {
+        if (roomRateLimit.isEnabled() && rooms.members(room).isEmpty()) {
+            roomLimiters.remove(room);
+        }
+    }
+
+    /**
+     * 按ChatCore的字符集编码之后再处理，用于测试和不经过解码器的调用方
+     */
+    public boolean onMessage(ChatSession session, String msg) {
+        return onMessage(session, charset.encode(msg));
+    }
+
+    /**
+     * 以sender的名义转发给sender当前房间的其它成员
+     */
+    public void broadcast(ChatSession sender, String msg) {
+        broadcast(sender, charset.encode(msg));
+    }
+
+    /**
+     * 以sender的名义转发给sender当前房间的其它成员，msg是已编码的消息内容，原样转发
+     * 遍历不持有锁，write只是入队或者写出，不会因为接收方有未完成的写而失败
+     */
+    public void broadcast(ChatSession sender, ByteBuffer msg) {
+        long start = System.nanoTime();
+        String room = sender.currentRoom();
+        SharedBuffer frame = messageEncoder.encode(forwardPrefix(sender), msg);
+        int recipients = 0;
+        if (messageLog != null) {
+            // 只是入队，由日志的追加线程写入
+            messageLog.append(room, frame.retain());
+        }
+        try {
+            for (ChatSession member : rooms.members(room)) {
+                // 不需要转发给自己
+                if (member != sender) {
+                    // 每个接收方持有一个引用，写完后释放
+                    member.write(frame.retain(), sender);
+                    recipients++;
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        metrics.messageFannedOut(recipients);
+        metrics.broadcastTime(System.nanoTime() - start);
+    }
+
+    // 按发送方当前的房间编码一次，之后在这个房间中的每条消息都直接拷贝
+    private byte[] forwardPrefix(ChatSession sender) {
+        byte[] prefix = sender.forwardPrefix();
+        if (prefix == null) {
+            String room = sender.currentRoom();
+            String roomPrefix = RoomRegistry.LOBBY.equals(room) ? "" : "[" + room + "]";
+            prefix = (roomPrefix + sender.name() + ":").getBytes(charset);
+            sender.setForwardPrefix(prefix);
+        }
+        return prefix;
+    }
+
+    // 命令参数解码成文本，去掉首尾空白
+    private String argument(Command command, ByteBuffer frame) {
+        return messageDecoder.decode(command.argument(frame)).trim();
+    }
+
+    /**
+     * 只发给一个连接的系统消息
+     */
+    public void reply(ChatSession session, String msg) {
+        session.write(messageEncoder.encode(msg), null);
+    }
+
+    /**
+     * 发送一个心跳，客户端应当回复"/pong"；由Transport在连接空闲时调用
+     */
+    public void ping(ChatSession session) {
+        session.write(pingFrame.retain(), null);
+    }
+
+    /**
+     * 按ChatCore的Framing和字符集编码一条消息，返回的SharedBuffer持有一个引用
+     */
+    public SharedBuffer encode(CharSequence msg) {
+        return messageEncoder.encode(msg);
+    }
+
+    /**
+     * 按ChatCore的字符集解码，只用于确实需要文本的地方，不移动frame的position
+     */
+    public String decode(ByteBuffer frame) {
+        return messageDecoder.decode(frame);
+    }
+
+    public ChatSession session(long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * 房间成员的只读视图，可能包含其它Transport的连接
+     */
+    public Collection<ChatSession> members(String room) {
+        return rooms.members(room);
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * 所有连接已入队、尚未写出的字节数
+     */
+    public long pendingBytes() {
+        long pending = 0;
+        for (ChatSession session : sessions.connections()) {
+            pending += session.pendingBytes();
+        }
+        return pending;
+    }
+
+    /**
+     * 等待所有连接的出站队列写空，优雅关闭时在Transport.stopAccepting()之后、close()之前调用
+     * 期间客户端仍然可以发送消息，所以只能等到某一时刻队列为空，不保证之后没有新的消息
+     *
+     * @return false表示超时，仍有数据没有写出
+     */
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pendingBytes() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(DRAIN_POLL_MILLIS);
+        }
+        return true;
+    }
+
+    // 私聊：按ID查找接收方，一次哈希查找一次写
+    private void sendDirect(ChatSession sender, DirectMessage direct) {
+        ChatSession recipient = sessions.get(direct.recipientId());
+        if (recipient == null) {
+            reply(sender, "客户端#" + direct.recipientId() + "不在线");
+            return;
+        }
+        byte[] prefix = (sender.name() + DIRECT_SUFFIX).getBytes(charset);
+        recipient.write(messageEncoder.encode(prefix, direct.text()), sender);
+        metrics.messageFannedOut(1);
+    }
+
+    private void replayHistory(ChatSession session, String arg) {
+        if (messageLog == null) {
+            reply(session, "服务器没有保存聊天记录");
+            return;
+        }
+        long from;
+        try {
+            from = arg.isEmpty() ? messageLog.endOffset() - DEFAULT_HISTORY_MESSAGES : Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            reply(session, "无效的偏移量：" + arg);
+            return;
+        }
+        // 映射内存的切片不属于任何池，写完之后不需要归还
+        long next = messageLog.read(from, session.currentRoom(), MAX_REPLAY_BYTES, MAX_REPLAY_SCAN_BYTES,
+                frame -> session.write(new SharedBuffer(frame, null), null));
+        reply(session, OFFSET + " " + next);
+    }
+
+    private void joinRoom(ChatSession session, String room) {
+        if (room.isEmpty() || room.contains(" ")) {
+            reply(session, "无效的房间名：" + room);
+            return;
+        }
+        String previous = session.currentRoom();
+        // 先加入新房间再离开原来的房间，切换过程中不会收不到消息
+        rooms.join(room, session.id(), session);
+        session.setCurrentRoom(room);
+        if (!room.equals(previous)) {
+            rooms.leave(previous, session.id());
+            releaseRoomLimiter(previous);
+        }
+        reply(session, "已进入房间[" + room + "]");
+    }
+
+    // 离开当前房间，回到lobby
+    private void leaveRoom(ChatSession session, String room) {
+        if (RoomRegistry.LOBBY.equals(room)) {
+            reply(session, "不能离开" + RoomRegistry.LOBBY);
+            return;
+        }
+        if (!room.equals(session.currentRoom())) {
+            reply(session, "不在房间[" + room + "]中");
+            return;
+        }
+        rooms.join(RoomRegistry.LOBBY, session.id(), session);
+        session.setCurrentRoom(RoomRegistry.LOBBY);
+        rooms.leave(room, session.id());
+        releaseRoomLimiter(room);
+        reply(session, "已离开房间[" + room + "]");
+    }
+}
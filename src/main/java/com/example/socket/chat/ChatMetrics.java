@@ -0,0 +1,56 @@
+package com.example.socket.chat;
+
+/**
+ * @description: 热路径上的埋点，由ChatCore和各个Transport在I/O线程上直接调用
+ * 实现必须是无锁、不分配对象的（计数器用LongAdder一类的结构），默认实现什么都不做；
+ * 在线连接数和出站队列深度不需要埋点，直接从ChatCore.sessionCount()和ChatCore.pendingBytes()读取
+ * @author: chenzhuo
+ * @create: 2021-04-05 10:20
+ */
+public interface ChatMetrics {
+
+    ChatMetrics NOOP = new ChatMetrics() {
+    };
+
+    /**
+     * 新连接加入ChatCore
+     */
+    default void connectionAccepted() {
+    }
+
+    /**
+     * 连接因为空闲超时被断开
+     */
+    default void connectionEvicted() {
+    }
+
+    /**
+     * 连接的令牌用完，被暂停读取一次
+     */
+    default void readSuspended() {
+    }
+
+    default void bytesRead(long bytes) {
+    }
+
+    default void bytesWritten(long bytes) {
+    }
+
+    /**
+     * 一条消息被交给了recipients个接收方
+     */
+    default void messageFannedOut(int recipients) {
+    }
+
+    /**
+     * 一次转发的耗时：编码一次，再放进房间中所有接收方的出站队列
+     */
+    default void broadcastTime(long nanos) {
+    }
+
+    /**
+     * Selector线程一轮事件处理的耗时，不含阻塞在select()上的时间
+     */
+    default void selectorLoopTime(long nanos) {
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.socket.chat;
+
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.util.TokenBucket;
+
+/**
+ * @description: 聊天核心看到的一个客户端连接，由各个Transport实现
+ * ChatCore只通过write()、suspendRead()和close()操作连接，不关心底层是阻塞流、Selector还是异步通道
+ * @author: chenzhuo
+ * @create: 2021-04-01 20:10
+ */
+public abstract class ChatSession {
+
+    private final long id;
+    // 连接关闭后无法再获取远程地址，在连接建立时确定名称
+    private final String name;
+    // 普通消息发往的房间，只在本连接的读线程上访问
+    private String currentRoom = RoomRegistry.LOBBY;
+    // 转发消息的前缀"[房间]名称:"，由ChatCore按当前房间编码一次，切换房间时失效
+    private byte[] forwardPrefix;
+    // 本连接的限速令牌桶，ChatCore未启用限速时为null
+    private TokenBucket rateLimiter;
+
+    protected ChatSession(long id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public final long id() {
+        return id;
+    }
+
+    public final String name() {
+        return name;
+    }
+
+    public String currentRoom() {
+        return currentRoom;
+    }
+
+    void setCurrentRoom(String currentRoom) {
+        this.currentRoom = currentRoom;
+        this.forwardPrefix = null;
+    }
+
+    byte[] forwardPrefix() {
+        return forwardPrefix;
+    }
+
+    void setForwardPrefix(byte[] forwardPrefix) {
+        this.forwardPrefix = forwardPrefix;
+    }
+
+    TokenBucket rateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(TokenBucket rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * 写出一个已编码的帧，可以在任意线程调用
+     *
+     * @param frame  调用方转交一个引用，写完或者被丢弃时由本连接release
+     * @param sender 消息的发送方，系统消息为null；Transport可以据此对发送方施加背压
+     * @return false表示消息没有被接受
+     */
+    public abstract boolean write(SharedBuffer frame, ChatSession sender);
+
+    /**
+     * 已入队、尚未写出的字节数，直接在调用线程上写出的实现返回0
+     */
+    public long pendingBytes() {
+        return 0;
+    }
+
+    /**
+     * 发送太快，暂停读取delayNanos；由ChatCore在本连接的读线程上调用，随后ChatCore.onMessage()返回false停止解码
+     * 累积缓冲区中还没有解码的帧不能丢弃，恢复时先解码它们，再继续从连接读取
+     */
+    protected abstract void suspendRead(long delayNanos);
+
+    /**
+     * 关闭连接并释放连接占用的资源，可以重复调用；只在本连接的读线程上调用
+     */
+    public abstract void close();
+}
@@ -0,0 +1,74 @@
+package com.example.socket.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @description: 控制命令的名称，例如"/join"、"quit"，直接在帧的字节上匹配，不需要先把整帧解码成String
+ * 命令名都是ASCII，在UTF-8以及其它兼容ASCII的字符集中编码相同，多字节字符的每个字节都不小于0x80，不会被误认为命令；
+ * 只有带参数的命令才把参数部分解码成文本
+ * @author: chenzhuo
+ * @create: 2021-04-11 19:40
+ */
+public final class Command {
+
+    private static final byte SPACE = ' ';
+
+    private final String name;
+    private final byte[] bytes;
+
+    public Command(String name) {
+        this.name = name;
+        this.bytes = name.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * 帧的内容恰好是命令本身，不移动frame的position
+     */
+    public boolean matches(ByteBuffer frame) {
+        return frame.remaining() == bytes.length && startsWith(frame);
+    }
+
+    /**
+     * 帧以"命令 "开头，空格之后是参数，不移动frame的position
+     */
+    public boolean matchesWithArgument(ByteBuffer frame) {
+        return frame.remaining() > bytes.length && frame.get(frame.position() + bytes.length) == SPACE
+                && startsWith(frame);
+    }
+
+    /**
+     * 命令本身或者带参数的命令
+     */
+    public boolean matchesWithOptionalArgument(ByteBuffer frame) {
+        return matches(frame) || matchesWithArgument(frame);
+    }
+
+    /**
+     * 返回命令名和空格之后的参数部分的视图，没有参数时为空
+     */
+    public ByteBuffer argument(ByteBuffer frame) {
+        ByteBuffer argument = frame.duplicate();
+        argument.position(Math.min(frame.limit(), frame.position() + bytes.length + 1));
+        return argument;
+    }
+
+    private boolean startsWith(ByteBuffer frame) {
+        int start = frame.position();
+        for (int i = 0; i < bytes.length; i++) {
+            if (frame.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
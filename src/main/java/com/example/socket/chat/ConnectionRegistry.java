@@ -0,0 +1,64 @@
+package com.example.socket.chat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description: 在线连接表，以服务器分配的连接ID为键
+ * 基于ConcurrentHashMap，增删不需要全局锁，转发时的遍历是弱一致的，不会阻塞并发的上下线；
+ * 远程端口在不同客户端主机之间会重复，不能作为键
+ * @author: chenzhuo
+ * @create: 2021-03-24 19:20
+ */
+public class ConnectionRegistry<C> {
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentMap<Long, C> connections = new ConcurrentHashMap<>();
+    private final Collection<C> view = Collections.unmodifiableCollection(connections.values());
+    private final Set<Map.Entry<Long, C>> entries = Collections.unmodifiableSet(connections.entrySet());
+
+    /**
+     * 分配一个新的连接ID，ID在服务器生命周期内不会重复
+     */
+    public long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    public void add(long id, C connection) {
+        connections.put(id, connection);
+    }
+
+    /**
+     * @return 被移除的连接，不存在时返回null；并发调用时只有一个调用方能拿到连接
+     */
+    public C remove(long id) {
+        return connections.remove(id);
+    }
+
+    public C get(long id) {
+        return connections.get(id);
+    }
+
+    /**
+     * 所有在线连接的只读视图，遍历期间不持有锁
+     */
+    public Collection<C> connections() {
+        return view;
+    }
+
+    /**
+     * 连接ID及连接的只读视图，遍历期间不持有锁
+     */
+    public Set<Map.Entry<Long, C>> entries() {
+        return entries;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+}
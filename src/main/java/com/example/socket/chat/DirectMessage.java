@@ -0,0 +1,69 @@
+package com.example.socket.chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @description: 私聊消息"@ID 内容"，ID是服务器分配的连接ID，显示在每条转发消息的发送方名称中（客户端#ID[端口]）
+ * 服务器按ID在ConnectionRegistry中查找接收方，一次哈希查找、一次写，不经过广播；
+ * 直接在帧的字节上解析ID，内容保持为字节原样转发，不解码
+ * @author: chenzhuo
+ * @create: 2021-03-28 20:15
+ */
+public final class DirectMessage {
+
+    public static final String PREFIX = "@";
+
+    private static final byte PREFIX_BYTE = '@';
+    private static final byte SPACE = ' ';
+
+    private final long recipientId;
+    private final ByteBuffer text;
+
+    private DirectMessage(long recipientId, ByteBuffer text) {
+        this.recipientId = recipientId;
+        this.text = text;
+    }
+
+    /**
+     * 不移动frame的position
+     *
+     * @return 不是"@ID 内容"格式时返回null，按普通消息处理
+     */
+    public static DirectMessage parse(ByteBuffer frame) {
+        int start = frame.position();
+        int limit = frame.limit();
+        if (start == limit || frame.get(start) != PREFIX_BYTE) {
+            return null;
+        }
+        long recipientId = 0;
+        int i = start + 1;
+        for (; i < limit; i++) {
+            byte b = frame.get(i);
+            if (b == SPACE) {
+                break;
+            }
+            if (b < '0' || b > '9' || recipientId > (Long.MAX_VALUE - 9) / 10) {
+                return null;
+            }
+            recipientId = recipientId * 10 + (b - '0');
+        }
+        // 至少一位数字，空格之后至少一个字节的内容
+        if (i == start + 1 || i >= limit - 1) {
+            return null;
+        }
+        ByteBuffer text = frame.duplicate();
+        text.position(i + 1);
+        return new DirectMessage(recipientId, text);
+    }
+
+    public long recipientId() {
+        return recipientId;
+    }
+
+    /**
+     * 私聊内容的视图，仍是发送方编码的字节
+     */
+    public ByteBuffer text() {
+        return text;
+    }
+}
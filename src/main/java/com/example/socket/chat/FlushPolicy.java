@@ -0,0 +1,46 @@
+package com.example.socket.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 出站消息的合并刷新策略
+ * 一个连接出站队列中的多条消息合并成一次gathering write(ByteBuffer[])，一批最多maxBatchBytes字节；
+ * maxDelay为0时在本轮事件处理结束时刷新，大于0时第一条消息入队后最多等待maxDelay，
+ * 期间积累的字节数达到maxBatchBytes则立即刷新，用少量延迟换取更少的系统调用
+ * @author: chenzhuo
+ * @create: 2021-03-29 21:10
+ */
+public final class FlushPolicy {
+
+    public static final FlushPolicy DEFAULT = new FlushPolicy(64 * 1024, 0, TimeUnit.MILLISECONDS);
+
+    /**
+     * 一次gathering write最多包含的缓冲区个数，Linux的IOV_MAX为1024
+     */
+    public static final int MAX_BATCH_BUFFERS = 256;
+
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+
+    public FlushPolicy(int maxBatchBytes, long maxDelay, TimeUnit unit) {
+        if (maxBatchBytes <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("invalid flush policy: maxBatchBytes=" + maxBatchBytes
+                    + ", maxDelay=" + maxDelay);
+        }
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    public int maxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public long maxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy(maxBatchBytes: " + maxBatchBytes + ", maxDelayNanos: " + maxDelayNanos + ")";
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.socket.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 空闲连接检测策略
+ * 连接超过heartbeatInterval没有发来任何数据时，服务器发送一个"/ping"，客户端回复"/pong"；
+ * 超过readerIdle仍然没有数据则认为对端已经失效（半开连接、断电、NAT超时），断开连接并从ChatCore中移除；
+ * 每个连接只有一个挂在时间轮上的检查任务，读到数据时只记录时间，检查时发现期间有数据再推迟下一次检查
+ * @author: chenzhuo
+ * @create: 2021-04-06 20:10
+ */
+public final class IdlePolicy {
+
+    public static final IdlePolicy DEFAULT = new IdlePolicy(90, 30, TimeUnit.SECONDS);
+
+    /**
+     * 不检测空闲连接
+     */
+    public static final IdlePolicy DISABLED = new IdlePolicy(0, 0, TimeUnit.SECONDS);
+
+    private final long readerIdleNanos;
+    private final long heartbeatIntervalNanos;
+
+    /**
+     * @param readerIdle        为0时不检测空闲连接
+     * @param heartbeatInterval 为0时不发送心跳，只按readerIdle断开
+     */
+    public IdlePolicy(long readerIdle, long heartbeatInterval, TimeUnit unit) {
+        if (readerIdle < 0 || heartbeatInterval < 0 || (readerIdle > 0 && heartbeatInterval > readerIdle)) {
+            throw new IllegalArgumentException("invalid idle policy: readerIdle=" + readerIdle
+                    + ", heartbeatInterval=" + heartbeatInterval);
+        }
+        this.readerIdleNanos = unit.toNanos(readerIdle);
+        this.heartbeatIntervalNanos = unit.toNanos(heartbeatInterval);
+    }
+
+    public boolean isEnabled() {
+        return readerIdleNanos > 0;
+    }
+
+    public long readerIdleNanos() {
+        return readerIdleNanos;
+    }
+
+    public long heartbeatIntervalNanos() {
+        return heartbeatIntervalNanos;
+    }
+
+    /**
+     * 已经idleNanos没有读到数据，是否应当断开
+     */
+    public boolean isExpired(long idleNanos) {
+        return idleNanos >= readerIdleNanos;
+    }
+
+    /**
+     * 已经idleNanos没有读到数据，是否应当发送心跳
+     */
+    public boolean shouldPing(long idleNanos) {
+        return heartbeatIntervalNanos > 0 && idleNanos >= heartbeatIntervalNanos;
+    }
+
+    /**
+     * 连接建立时第一次检查的延迟
+     */
+    public long initialDelayNanos() {
+        return nextCheckNanos(0);
+    }
+
+    /**
+     * 已经idleNanos没有读到数据且没有断开时，下一次检查的延迟
+     */
+    public long nextCheckNanos(long idleNanos) {
+        long untilExpired = readerIdleNanos - idleNanos;
+        if (heartbeatIntervalNanos == 0) {
+            return untilExpired;
+        }
+        long untilPing = heartbeatIntervalNanos - idleNanos;
+        // 还没到发心跳的时候就等到那时，之后每隔heartbeatInterval发一次，直到readerIdle
+        return untilPing > 0 ? untilPing : Math.min(heartbeatIntervalNanos, untilExpired);
+    }
+
+    @Override
+    public String toString() {
+        return "IdlePolicy(readerIdleNanos: " + readerIdleNanos + ", heartbeatIntervalNanos: "
+                + heartbeatIntervalNanos + ")";
+    }
+}
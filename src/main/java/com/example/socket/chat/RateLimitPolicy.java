@@ -0,0 +1,59 @@
+package com.example.socket.chat;
+
+import com.example.socket.util.TokenBucket;
+
+/**
+ * @description: 入站消息的限速策略：每秒messagesPerSecond条，允许burst条的突发
+ * ChatCore给每个连接一个令牌桶，再给每个房间一个所有发送方共用的令牌桶，每个帧从连接的桶里取一个令牌，
+ * 房间消息再从房间的桶里取一个；令牌用完时不丢弃消息，而是让Transport暂停读取这个连接，
+ * 没读的数据留在socket接收缓冲区里，TCP窗口随之关闭，发送方自然慢下来，服务器花在它身上的CPU也就有了上限
+ * @author: chenzhuo
+ * @create: 2021-04-12 20:30
+ */
+public final class RateLimitPolicy {
+
+    /**
+     * 不限速
+     */
+    public static final RateLimitPolicy DISABLED = new RateLimitPolicy(0, 0);
+
+    private final int messagesPerSecond;
+    private final int burst;
+
+    /**
+     * @param messagesPerSecond 为0时不限速
+     * @param burst             令牌桶的容量，不能小于1
+     */
+    public RateLimitPolicy(int messagesPerSecond, int burst) {
+        if (messagesPerSecond < 0 || (messagesPerSecond > 0 && burst < 1)) {
+            throw new IllegalArgumentException("invalid rate limit policy: messagesPerSecond=" + messagesPerSecond
+                    + ", burst=" + burst);
+        }
+        this.messagesPerSecond = messagesPerSecond;
+        this.burst = burst;
+    }
+
+    public boolean isEnabled() {
+        return messagesPerSecond > 0;
+    }
+
+    public int messagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public int burst() {
+        return burst;
+    }
+
+    /**
+     * 一个装满令牌的新桶，只在isEnabled()时调用
+     */
+    public TokenBucket newBucket(long nowNanos) {
+        return new TokenBucket(messagesPerSecond, burst, nowNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitPolicy(messagesPerSecond: " + messagesPerSecond + ", burst: " + burst + ")";
+    }
+}
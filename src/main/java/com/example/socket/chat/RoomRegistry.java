@@ -0,0 +1,104 @@
+package com.example.socket.chat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @description: 房间索引：房间名 -> 成员表，以及连接ID -> 已加入的房间
+ * 转发时只遍历目标房间的成员，代价与房间大小成正比，与在线总人数无关；
+ * 成员表是ConcurrentHashMap，遍历是弱一致的，转发过程中有人加入或者离开不会抛出异常也不会阻塞；
+ * 房间在第一个成员加入时创建、最后一个成员离开时删除，这两步都在compute中对单个键原子地完成
+ * @author: chenzhuo
+ * @create: 2021-03-28 15:40
+ */
+public class RoomRegistry<C> {
+
+    /**
+     * 连接建立后默认加入的房间
+     */
+    public static final String LOBBY = "lobby";
+
+    private final ConcurrentMap<String, ConcurrentMap<Long, C>> rooms = new ConcurrentHashMap<>();
+    // 断开连接时据此退出所有房间，不需要扫描全部房间
+    private final ConcurrentMap<Long, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    public void join(String room, long id, C connection) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = new ConcurrentHashMap<>();
+            }
+            members.put(id, connection);
+            return members;
+        });
+        memberships.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet()).add(room);
+    }
+
+    /**
+     * @return false表示本来就不在这个房间中
+     */
+    public boolean leave(String room, long id) {
+        Set<String> joined = memberships.get(id);
+        if (joined != null) {
+            joined.remove(room);
+        }
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(id) != null;
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    /**
+     * 退出所有房间，连接断开时调用
+     */
+    public void leaveAll(long id) {
+        Set<String> joined = memberships.remove(id);
+        if (joined == null) {
+            return;
+        }
+        for (String room : joined) {
+            rooms.computeIfPresent(room, (name, members) -> {
+                members.remove(id);
+                return members.isEmpty() ? null : members;
+            });
+        }
+    }
+
+    /**
+     * 房间成员的只读视图，遍历期间不持有锁；房间不存在时返回空集合
+     */
+    public Collection<C> members(String room) {
+        ConcurrentMap<Long, C> members = rooms.get(room);
+        return members == null ? Collections.emptyList() : Collections.unmodifiableCollection(members.values());
+    }
+
+    /**
+     * 成员的连接ID及连接的只读视图，遍历期间不持有锁；房间不存在时返回空集合
+     */
+    public Set<Map.Entry<Long, C>> memberEntries(String room) {
+        ConcurrentMap<Long, C> members = rooms.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members.entrySet());
+    }
+
+    public boolean isMember(String room, long id) {
+        ConcurrentMap<Long, C> members = rooms.get(room);
+        return members != null && members.containsKey(id);
+    }
+
+    /**
+     * 该连接已加入的房间
+     */
+    public Set<String> rooms(long id) {
+        Set<String> joined = memberships.get(id);
+        return joined == null ? Collections.emptySet() : Collections.unmodifiableSet(joined);
+    }
+
+    public int roomCount() {
+        return rooms.size();
+    }
+}
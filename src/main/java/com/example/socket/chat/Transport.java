@@ -0,0 +1,29 @@
+package com.example.socket.chat;
+
+/**
+ * @description: I/O模型的扩展点：负责监听、建立连接、把读到的数据解码成帧交给ChatCore，以及写出ChatCore编码好的帧
+ * 实现只需要为每个连接提供一个ChatSession，连接建立、收到消息、连接断开时分别调用
+ * ChatCore的connected()、onMessage()和disconnect()，聊天的语义在所有实现上完全一致
+ * @author: chenzhuo
+ * @create: 2021-04-01 20:05
+ */
+public interface Transport {
+
+    /**
+     * 开始监听并处理连接，阻塞直到close()被调用
+     *
+     * @param chatCore 解码帧时使用chatCore的Framing，可以与其它Transport共用同一个chatCore
+     */
+    void start(ChatCore chatCore);
+
+    /**
+     * 停止接受新连接，已有的连接照常收发，用于优雅关闭的第一步；可以在任意线程调用
+     * bio的start()随之返回，nio和aio的start()仍然阻塞到close()
+     */
+    void stopAccepting();
+
+    /**
+     * 关闭监听和所有连接，连接从ChatCore中移除，尚未写出的数据被丢弃；可以在任意线程调用
+     */
+    void close();
+}
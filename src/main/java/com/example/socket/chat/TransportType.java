@@ -0,0 +1,66 @@
+package com.example.socket.chat;
+
+import java.util.Locale;
+
+/**
+ * @description: 可选的I/O模型，启动时按名称选择，聊天逻辑都由ChatCore完成
+ * 用法：TransportType [bio|bio_virtual|nio|aio] [端口]
+ * @author: chenzhuo
+ * @create: 2021-04-01 20:30
+ */
+public enum TransportType {
+    /**
+     * 每个连接占用固定线程池中的一个线程
+     */
+    BIO {
+        @Override
+        public Transport create(int port) {
+            return new com.example.socket.bio.server.ChatServer(port, false);
+        }
+    },
+    /**
+     * 每个连接一个虚拟线程，需要JDK 21+
+     */
+    BIO_VIRTUAL {
+        @Override
+        public Transport create(int port) {
+            return new com.example.socket.bio.server.ChatServer(port, true);
+        }
+    },
+    /**
+     * 主从Reactor
+     */
+    NIO {
+        @Override
+        public Transport create(int port) {
+            return new com.example.socket.nio.ChatServer(port);
+        }
+    },
+    /**
+     * AsynchronousChannelGroup
+     */
+    AIO {
+        @Override
+        public Transport create(int port) {
+            return new com.example.socket.aio.chatroom.ChatServer(port);
+        }
+    };
+
+    /**
+     * 以默认配置创建，需要调整I/O参数时直接使用对应的ChatServer
+     */
+    public abstract Transport create(int port);
+
+    /**
+     * 名称不区分大小写，"-"等同于"_"
+     */
+    public static TransportType of(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+
+    public static void main(String[] args) {
+        TransportType type = args.length > 0 ? of(args[0]) : NIO;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        type.create(port).start(new ChatCore());
+    }
+}
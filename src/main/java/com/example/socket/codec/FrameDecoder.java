@@ -0,0 +1,177 @@
+package com.example.socket.codec;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * @description: 帧解码器，每个连接一个实例
+ * 读到的数据先累积在内部缓冲区中，再从中增量地切出完整的帧；
+ * 帧以缓冲区视图的形式交给回调，不做拷贝，半包留在缓冲区里等待下一次读取；
+ * 指定了BufferPool时累积缓冲区从池中借出，连接关闭时需要调用release()归还；
+ * 每次读取准备多大的空间由ReceiveBufferSizer按最近读到的字节数预测，调用方读完后通过readComplete()告知读到的字节数；
+ * 使用BufferPool时，解码后没有半包就立刻归还累积缓冲区，空闲的连接不占用缓冲区
+ * @author: chenzhuo
+ * @create: 2021-03-20 10:12
+ */
+public abstract class FrameDecoder {
+
+    protected final int maxFrameLength;
+    private final BufferPool pool;
+    private final ReceiveBufferSizer.Handle receiveSize;
+    // 累积缓冲区，两次decode之间始终处于写模式；为null表示没有半包，下一次readBuffer()时再分配
+    private ByteBuffer cumulation;
+    private boolean released;
+
+    protected FrameDecoder(int maxFrameLength, BufferPool pool, ReceiveBufferSizer sizer) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive: " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+        this.pool = pool;
+        this.receiveSize = sizer.newHandle();
+    }
+
+    /**
+     * 返回下一次读取应当写入的缓冲区，保证至少有一个字节的剩余空间
+     * 剩余空间不足预测的读取大小时，连同半包按倍数扩容，最多扩到一个最大帧的大小
+     */
+    public ByteBuffer readBuffer() {
+        if (released) {
+            throw new IllegalStateException("decoder already released");
+        }
+        int guess = Math.min(receiveSize.guess(), maxCumulation());
+        if (cumulation == null) {
+            cumulation = allocate(guess);
+        } else if (cumulation.remaining() < guess && cumulation.capacity() < maxCumulation()) {
+            int capacity = cumulation.capacity() << 1;
+            while (capacity - cumulation.position() < guess && capacity < maxCumulation()) {
+                capacity <<= 1;
+            }
+            ByteBuffer expanded = allocate(Math.min(capacity, maxCumulation()));
+            cumulation.flip();
+            expanded.put(cumulation);
+            free(cumulation);
+            cumulation = expanded;
+        }
+        return cumulation;
+    }
+
+    /**
+     * 记录一次读取实际读到的字节数，用于预测下一次读取的大小；不调用时一直使用初始大小
+     */
+    public void readComplete(int bytes) {
+        if (bytes > 0) {
+            receiveSize.record(bytes);
+        }
+    }
+
+    /**
+     * 解析累积缓冲区中所有完整的帧
+     *
+     * @throws TooLongFrameException 帧超过了maxFrameLength
+     */
+    public void decode(FrameListener listener) throws TooLongFrameException {
+        if (cumulation == null) {
+            return;
+        }
+        cumulation.flip();
+        try {
+            ByteBuffer frame;
+            while ((frame = decodeFrame(cumulation)) != null) {
+                if (!listener.onFrame(frame)) {
+                    break;
+                }
+            }
+        } finally {
+            // 半包移动到缓冲区头部，回到写模式；回调中可能已经关闭连接并release()
+            if (cumulation != null) {
+                cumulation.compact();
+                releaseIfEmpty();
+            }
+        }
+    }
+
+    /**
+     * 将累积缓冲区中尚未解析的字节原样写入target，最多max个
+     * 用于帧之后紧跟的非帧数据（例如文件内容）：回调返回false停止解码后，剩下的数据由调用方取走
+     *
+     * @return 写入的字节数
+     */
+    public int drainTo(WritableByteChannel target, long max) throws IOException {
+        if (cumulation == null) {
+            return 0;
+        }
+        cumulation.flip();
+        int limit = cumulation.limit();
+        try {
+            if (max < cumulation.remaining()) {
+                cumulation.limit(cumulation.position() + (int) max);
+            }
+            return target.write(cumulation);
+        } finally {
+            cumulation.limit(limit);
+            cumulation.compact();
+            releaseIfEmpty();
+        }
+    }
+
+    /**
+     * 归还累积缓冲区，之后不能再使用这个解码器
+     */
+    public void release() {
+        released = true;
+        if (cumulation != null) {
+            free(cumulation);
+            cumulation = null;
+        }
+    }
+
+    /**
+     * 缓冲区中已累积、尚未解析的字节数
+     */
+    public int pending() {
+        return cumulation == null ? 0 : cumulation.position();
+    }
+
+    // 池化的缓冲区在没有半包时立刻归还，借还都走线程本地缓存；堆缓冲区留着复用，避免每次读取都产生垃圾
+    private void releaseIfEmpty() {
+        if (pool != null && cumulation.position() == 0) {
+            free(cumulation);
+            cumulation = null;
+        }
+    }
+
+    /**
+     * 从in的position开始尝试切出一个帧
+     *
+     * @param in 读模式的累积缓冲区
+     * @return 帧内容的视图，并将in的position移动到帧之后；数据不完整时返回null且不移动position
+     */
+    protected abstract ByteBuffer decodeFrame(ByteBuffer in) throws TooLongFrameException;
+
+    /**
+     * 一个最大的帧连同帧头/分隔符在缓冲区中占用的字节数
+     */
+    protected abstract int maxCumulation();
+
+    private ByteBuffer allocate(int capacity) {
+        // 池按规格向上取整，多出来的空间也可以用
+        return pool != null ? (ByteBuffer) pool.acquire(capacity).clear() : ByteBuffer.allocate(capacity);
+    }
+
+    private void free(ByteBuffer buffer) {
+        if (pool != null) {
+            pool.release(buffer);
+        }
+    }
+
+    protected static ByteBuffer view(ByteBuffer in, int start, int end) {
+        ByteBuffer frame = in.duplicate();
+        frame.limit(end).position(start);
+        return frame;
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.socket.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @description: 帧回调
+ * @author: chenzhuo
+ * @create: 2021-03-20 10:12
+ */
+public interface FrameListener {
+
+    /**
+     * 解析出一个完整的帧
+     *
+     * @param frame 帧内容（不含帧头/分隔符），是解码器内部缓冲区的视图，只在回调期间有效
+     * @return false表示不再继续解析后续的帧（例如用户已经退出）
+     */
+    boolean onFrame(ByteBuffer frame);
+}
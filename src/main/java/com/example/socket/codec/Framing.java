@@ -0,0 +1,134 @@
+package com.example.socket.codec;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @description: 帧格式，负责创建对应的解码器以及编码出站消息
+ * @author: chenzhuo
+ * @create: 2021-03-20 10:12
+ */
+public enum Framing {
+
+    /**
+     * 换行符分隔的文本帧，bio客户端和telnet可以直接使用
+     */
+    LINE {
+        @Override
+        public FrameDecoder newDecoder(int maxFrameLength, BufferPool pool, ReceiveBufferSizer sizer) {
+            return new LineFrameDecoder(maxFrameLength, pool, sizer);
+        }
+
+        @Override
+        public int headerLength() {
+            return 0;
+        }
+
+        @Override
+        public int trailerLength() {
+            return 1;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int index, int payloadLength) {
+        }
+
+        @Override
+        public void writeTrailer(ByteBuffer out) {
+            out.put((byte) '\n');
+        }
+    },
+
+    /**
+     * 4字节长度前缀的二进制帧
+     */
+    LENGTH_FIELD {
+        @Override
+        public FrameDecoder newDecoder(int maxFrameLength, BufferPool pool, ReceiveBufferSizer sizer) {
+            return new LengthFieldFrameDecoder(maxFrameLength, pool, sizer);
+        }
+
+        @Override
+        public int headerLength() {
+            return LengthFieldFrameDecoder.LENGTH_FIELD_LENGTH;
+        }
+
+        @Override
+        public int trailerLength() {
+            return 0;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer out, int index, int payloadLength) {
+            out.putInt(index, payloadLength);
+        }
+
+        @Override
+        public void writeTrailer(ByteBuffer out) {
+        }
+    };
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * @param pool  累积缓冲区从池中借出，为null时使用堆内存
+     * @param sizer 预测每次读取的大小，调用方需要通过readComplete()报告读到的字节数
+     */
+    public abstract FrameDecoder newDecoder(int maxFrameLength, BufferPool pool, ReceiveBufferSizer sizer);
+
+    public FrameDecoder newDecoder(int maxFrameLength, BufferPool pool) {
+        return newDecoder(maxFrameLength, pool, ReceiveBufferSizer.DEFAULT);
+    }
+
+    public FrameDecoder newDecoder(int maxFrameLength) {
+        return newDecoder(maxFrameLength, null);
+    }
+
+    /**
+     * 帧头的字节数，编码时先预留出来，等帧内容写完再回填
+     */
+    public abstract int headerLength();
+
+    /**
+     * 帧尾（分隔符）的字节数
+     */
+    public abstract int trailerLength();
+
+    /**
+     * 在out的index处回填帧头，不移动position
+     */
+    public abstract void writeHeader(ByteBuffer out, int index, int payloadLength);
+
+    public abstract void writeTrailer(ByteBuffer out);
+
+    /**
+     * 编码后整个帧的字节数
+     */
+    public int frameLength(int payloadLength) {
+        return headerLength() + payloadLength + trailerLength();
+    }
+
+    /**
+     * 将payload编码成一个帧写入out，out需要有frameLength()大小的剩余空间
+     */
+    public void encode(ByteBuffer payload, ByteBuffer out) {
+        int start = out.position();
+        int payloadLength = payload.remaining();
+        out.position(start + headerLength());
+        out.put(payload);
+        writeHeader(out, start, payloadLength);
+        writeTrailer(out);
+    }
+
+    /**
+     * 将payload编码成一个新的帧，返回读模式的缓冲区
+     */
+    public ByteBuffer encode(ByteBuffer payload) {
+        ByteBuffer out = ByteBuffer.allocate(frameLength(payload.remaining()));
+        encode(payload, out);
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.socket.codec;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @description: 长度前缀的二进制帧：4字节大端长度 + 帧内容
+ * @author: chenzhuo
+ * @create: 2021-03-20 10:12
+ */
+public class LengthFieldFrameDecoder extends FrameDecoder {
+
+    static final int LENGTH_FIELD_LENGTH = 4;
+
+    public LengthFieldFrameDecoder(int maxFrameLength) {
+        this(maxFrameLength, null);
+    }
+
+    public LengthFieldFrameDecoder(int maxFrameLength, BufferPool pool) {
+        this(maxFrameLength, pool, ReceiveBufferSizer.DEFAULT);
+    }
+
+    public LengthFieldFrameDecoder(int maxFrameLength, BufferPool pool, ReceiveBufferSizer sizer) {
+        super(maxFrameLength, pool, sizer);
+    }
+
+    @Override
+    protected ByteBuffer decodeFrame(ByteBuffer in) throws TooLongFrameException {
+        if (in.remaining() < LENGTH_FIELD_LENGTH) {
+            return null;
+        }
+        int start = in.position();
+        int frameLength = in.getInt(start);
+        if (frameLength < 0 || frameLength > maxFrameLength) {
+            throw new TooLongFrameException("frame length " + frameLength + " exceeds " + maxFrameLength);
+        }
+        if (in.remaining() < LENGTH_FIELD_LENGTH + frameLength) {
+            return null;
+        }
+        int end = start + LENGTH_FIELD_LENGTH + frameLength;
+        in.position(end);
+        return view(in, start + LENGTH_FIELD_LENGTH, end);
+    }
+
+    @Override
+    protected int maxCumulation() {
+        return maxFrameLength + LENGTH_FIELD_LENGTH;
+    }
+}
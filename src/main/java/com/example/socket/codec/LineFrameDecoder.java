@@ -0,0 +1,60 @@
+package com.example.socket.codec;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @description: 以换行符分隔的文本帧，兼容\r\n
+ * @author: chenzhuo
+ * @create: 2021-03-20 10:12
+ */
+public class LineFrameDecoder extends FrameDecoder {
+
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    // 上一次已经扫描过、确认没有换行符的字节数，避免半包到达时重复扫描
+    private int scanned;
+
+    public LineFrameDecoder(int maxFrameLength) {
+        this(maxFrameLength, null);
+    }
+
+    public LineFrameDecoder(int maxFrameLength, BufferPool pool) {
+        this(maxFrameLength, pool, ReceiveBufferSizer.DEFAULT);
+    }
+
+    public LineFrameDecoder(int maxFrameLength, BufferPool pool, ReceiveBufferSizer sizer) {
+        super(maxFrameLength, pool, sizer);
+    }
+
+    @Override
+    protected ByteBuffer decodeFrame(ByteBuffer in) throws TooLongFrameException {
+        int start = in.position();
+        int limit = in.limit();
+        for (int i = start + scanned; i < limit; i++) {
+            if (in.get(i) == LF) {
+                int end = i > start && in.get(i - 1) == CR ? i - 1 : i;
+                if (end - start > maxFrameLength) {
+                    throw new TooLongFrameException("frame length " + (end - start) + " exceeds " + maxFrameLength);
+                }
+                scanned = 0;
+                in.position(i + 1);
+                return view(in, start, end);
+            }
+        }
+        scanned = limit - start;
+        if (scanned >= maxCumulation()) {
+            throw new TooLongFrameException("no line delimiter within " + maxFrameLength + " bytes");
+        }
+        return null;
+    }
+
+    @Override
+    protected int maxCumulation() {
+        // 帧内容 + \r\n
+        return maxFrameLength + 2;
+    }
+}
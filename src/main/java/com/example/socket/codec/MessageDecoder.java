@@ -0,0 +1,40 @@
+package com.example.socket.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * @description: 文本消息解码器，只在确实需要文本的地方使用：命令参数、文件名、日志
+ * 转发的消息不经过这里，以字节原样转发；每个线程复用同一个CharsetDecoder
+ * @author: chenzhuo
+ * @create: 2021-04-11 19:50
+ */
+public class MessageDecoder {
+
+    // CharsetDecoder有状态，不能在线程间共享
+    private final ThreadLocal<CharsetDecoder> decoders;
+
+    public MessageDecoder(Charset charset) {
+        this.decoders = ThreadLocal.withInitial(() -> charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * 解码bytes的剩余部分，不移动bytes的position
+     */
+    public String decode(ByteBuffer bytes) {
+        CharsetDecoder decoder = decoders.get().reset();
+        try {
+            CharBuffer chars = decoder.decode(bytes.duplicate());
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            // 错误输入都替换成了替换字符，不会抛出
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.socket.codec;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.SharedBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * @description: 文本消息编码器，把消息直接编码进池化的直接缓冲区并加上帧头/分隔符
+ * 广播时每条消息只编码一次，得到的SharedBuffer由所有接收方共享；
+ * 转发的消息内容已经是字节，只和预先编码好的前缀一起拷贝进帧，不经过CharsetEncoder
+ * @author: chenzhuo
+ * @create: 2021-03-22 20:05
+ */
+public class MessageEncoder {
+
+    private final Framing framing;
+    private final BufferPool pool;
+    // CharsetEncoder有状态，不能在线程间共享
+    private final ThreadLocal<CharsetEncoder> encoders;
+
+    public MessageEncoder(Framing framing, Charset charset, BufferPool pool) {
+        this.framing = framing;
+        this.pool = pool;
+        this.encoders = ThreadLocal.withInitial(() -> charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * 编码一条消息，返回的SharedBuffer持有一个引用，调用方用完后需要release()
+     */
+    public SharedBuffer encode(CharSequence message) {
+        CharsetEncoder encoder = encoders.get().reset();
+        int maxPayloadLength = (int) Math.ceil(encoder.maxBytesPerChar() * message.length());
+        ByteBuffer out = pool.acquire(framing.frameLength(maxPayloadLength));
+        int start = out.position();
+        out.position(start + framing.headerLength());
+        // 按最坏情况预留了空间，不会出现OVERFLOW
+        encoder.encode(CharBuffer.wrap(message), out, true);
+        encoder.flush(out);
+        framing.writeHeader(out, start, out.position() - start - framing.headerLength());
+        framing.writeTrailer(out);
+        out.flip();
+        return new SharedBuffer(out, pool);
+    }
+
+    /**
+     * 把已编码的前缀和内容拼成一个帧，不做字符集转换；payload的position移动到limit
+     * 返回的SharedBuffer持有一个引用，调用方用完后需要release()
+     */
+    public SharedBuffer encode(byte[] prefix, ByteBuffer payload) {
+        int payloadLength = prefix.length + payload.remaining();
+        ByteBuffer out = pool.acquire(framing.frameLength(payloadLength));
+        int start = out.position();
+        out.position(start + framing.headerLength());
+        out.put(prefix).put(payload);
+        framing.writeHeader(out, start, payloadLength);
+        framing.writeTrailer(out);
+        out.flip();
+        return new SharedBuffer(out, pool);
+    }
+}
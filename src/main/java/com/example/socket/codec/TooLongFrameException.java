@@ -0,0 +1,15 @@
+package com.example.socket.codec;
+
+import java.io.IOException;
+
+/**
+ * @description: 帧长度超过上限，连接上的数据已经无法继续解析，只能断开
+ * @author: chenzhuo
+ * @create: 2021-03-20 10:12
+ */
+public class TooLongFrameException extends IOException {
+
+    public TooLongFrameException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.socket.history;
+
+import com.example.socket.codec.FrameListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * @description: 消息日志的一个段：定长文件整个映射到内存，从baseOffset开始顺序追加消息记录
+ * 记录格式：帧长度(int) + CRC32(int) + 房间名长度(short) + 房间名(UTF-8) + 已编码的帧，帧就是广播时发给客户端的字节，
+ * CRC32覆盖房间名长度、房间名和帧；先写其它部分，最后写帧长度，帧长度为0表示后面没有记录；
+ * 映射内存的脏页落盘顺序不确定，崩溃后可能留下半条记录，恢复时在第一条长度或者CRC不对的记录处截断，
+ * 并把之后的内容清零，下次恢复不会把残留的旧内容当成记录；
+ * size和count只由追加线程修改，写完一条记录后才发布，读线程只读取已发布的部分
+ * @author: chenzhuo
+ * @create: 2021-04-08 20:30
+ */
+final class LogSegment {
+
+    static final int RECORD_HEADER_LENGTH = 10;
+    private static final int CRC_OFFSET = 4;
+    private static final int ROOM_LENGTH_OFFSET = 8;
+
+    private final long baseOffset;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    // 只在追加线程上使用的写视图
+    private final ByteBuffer writer;
+    private final OffsetIndex index;
+    private final int indexInterval;
+    // 只在追加线程和恢复时使用
+    private final CRC32 crc = new CRC32();
+    private int bytesSinceIndex;
+    // 已发布的字节数和记录数
+    private volatile int size;
+    private volatile int count;
+
+    private LogSegment(long baseOffset, File file, MappedByteBuffer buffer, OffsetIndex index, int indexInterval) {
+        this.baseOffset = baseOffset;
+        this.file = file;
+        this.buffer = buffer;
+        this.writer = buffer.duplicate();
+        this.index = index;
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * 打开或者创建一个段，已有的段从最后一个索引项开始扫描，恢复写入位置和记录数
+     */
+    static LogSegment open(File directory, long baseOffset, int segmentBytes, int indexInterval) throws IOException {
+        String name = fileName(baseOffset);
+        File file = new File(directory, name + MessageLog.LOG_SUFFIX);
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // 新文件的内容全部为0，已有的段保持原来的大小
+            if (raf.length() == 0) {
+                raf.setLength(segmentBytes);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        OffsetIndex index = new OffsetIndex(new File(directory, name + MessageLog.INDEX_SUFFIX),
+                buffer.capacity() / indexInterval + 1);
+        LogSegment segment = new LogSegment(baseOffset, file, buffer, index, indexInterval);
+        segment.recover();
+        return segment;
+    }
+
+    static String fileName(long baseOffset) {
+        // 补齐到20位，按文件名排序就是按偏移量排序
+        return String.format("%020d", baseOffset);
+    }
+
+    private void recover() {
+        int last = index.entries() - 1;
+        while (last > 0 && !reachable(last)) {
+            last--;
+        }
+        index.truncate(last + 1);
+        int position = index.position(last);
+        int records = index.relativeOffset(last);
+        int length;
+        while ((length = recordLength(position)) > 0) {
+            position += length;
+            records++;
+        }
+        zeroTail(position);
+        writer.position(position);
+        bytesSinceIndex = position - index.position(last);
+        size = position;
+        count = records;
+    }
+
+    // 索引项指向的位置必须能从前一项沿着有效的记录走到
+    private boolean reachable(int entry) {
+        int position = index.position(entry - 1);
+        int records = index.relativeOffset(entry - 1);
+        int target = index.position(entry);
+        while (position < target) {
+            int length = recordLength(position);
+            if (length == 0) {
+                return false;
+            }
+            position += length;
+            records++;
+        }
+        return position == target && records == index.relativeOffset(entry);
+    }
+
+    // 返回position处记录的总长度，0表示没有记录或者记录不完整
+    private int recordLength(int position) {
+        if (position > buffer.capacity() - RECORD_HEADER_LENGTH) {
+            return 0;
+        }
+        int frameLength = buffer.getInt(position);
+        int roomLength = buffer.getShort(position + ROOM_LENGTH_OFFSET);
+        if (frameLength <= 0 || roomLength < 0) {
+            return 0;
+        }
+        long length = (long) RECORD_HEADER_LENGTH + roomLength + frameLength;
+        if (length > buffer.capacity() - position) {
+            return 0;
+        }
+        return checksum(position, (int) length) == buffer.getInt(position + CRC_OFFSET) ? (int) length : 0;
+    }
+
+    private int checksum(int position, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(position + length).position(position + ROOM_LENGTH_OFFSET);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    // 只改写非0的字节，没有写过的部分不会因为清零而占用磁盘空间
+    private void zeroTail(int position) {
+        int capacity = buffer.capacity();
+        int i = position;
+        for (; i <= capacity - Long.BYTES; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                buffer.putLong(i, 0);
+            }
+        }
+        for (; i < capacity; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long nextOffset() {
+        return baseOffset + count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 只在追加线程上调用
+     *
+     * @return false表示段的剩余空间放不下这条记录
+     */
+    boolean append(byte[] room, ByteBuffer frame) {
+        int position = size;
+        int length = RECORD_HEADER_LENGTH + room.length + frame.remaining();
+        if (length > buffer.capacity() - position) {
+            return false;
+        }
+        int frameLength = frame.remaining();
+        writer.position(position + ROOM_LENGTH_OFFSET);
+        writer.putShort((short) room.length);
+        writer.put(room);
+        writer.put(frame);
+        buffer.putInt(position + CRC_OFFSET, checksum(position, length));
+        // 帧长度最后写，之前读线程看不到这条记录
+        buffer.putInt(position, frameLength);
+        size = position + length;
+        count++;
+        bytesSinceIndex += length;
+        if (bytesSinceIndex >= indexInterval) {
+            index.append(count, size);
+            bytesSinceIndex = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 从offset开始把属于room的帧交给listener，帧是映射内存上的只读切片，不拷贝也不解码；
+     * 可以在任意线程调用，只读取调用时已经发布的记录
+     *
+     * @param maxBytes     交出的帧累计超过这个字节数之后停止，至少交出一帧
+     * @param maxScanBytes 扫描的记录（包括其它房间的）累计超过这个字节数之后停止，至少扫描一条
+     * @return 下一条没有读取的记录的偏移量
+     */
+    long read(long offset, byte[] room, int maxBytes, int maxScanBytes, FrameListener listener) {
+        int end = size;
+        int records = count;
+        int relativeOffset = (int) Math.max(0, offset - baseOffset);
+        if (relativeOffset >= records) {
+            return baseOffset + records;
+        }
+        int entry = index.lookup(relativeOffset);
+        int position = index.position(entry);
+        int current = index.relativeOffset(entry);
+        // 从索引项跳到目标记录，只读帧头
+        while (current < relativeOffset) {
+            position += RECORD_HEADER_LENGTH + buffer.getShort(position + ROOM_LENGTH_OFFSET) + buffer.getInt(position);
+            current++;
+        }
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        int delivered = 0;
+        int scanEnd = position + maxScanBytes;
+        while (position < end && delivered < maxBytes && position - scanEnd < 0) {
+            int recordStart = position;
+            int frameLength = buffer.getInt(recordStart);
+            int roomLength = buffer.getShort(recordStart + ROOM_LENGTH_OFFSET);
+            int frameStart = recordStart + RECORD_HEADER_LENGTH + roomLength;
+            position = frameStart + frameLength;
+            current++;
+            if (roomMatches(recordStart + RECORD_HEADER_LENGTH, roomLength, room)) {
+                view.limit(frameStart + frameLength).position(frameStart);
+                delivered += frameLength;
+                if (!listener.onFrame(view.slice())) {
+                    break;
+                }
+            }
+        }
+        return baseOffset + current;
+    }
+
+    private boolean roomMatches(int position, int length, byte[] room) {
+        if (length != room.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) != room[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void flush() {
+        buffer.force();
+        index.flush();
+    }
+
+    /**
+     * 映射在GC回收之前一直有效，正在回放的切片不受影响
+     */
+    boolean delete() {
+        boolean deleted = file.delete();
+        return index.file().delete() && deleted;
+    }
+}
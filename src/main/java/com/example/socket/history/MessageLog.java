@@ -0,0 +1,312 @@
+package com.example.socket.history;
+
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.codec.FrameListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @description: 持久化的聊天记录，按段存储的只追加日志
+ * 每条广播消息分配一个递增的偏移量，连同房间名和已编码的帧追加到当前段，段写满后新建一个段，超过maxSegments时删除最旧的段；
+ * I/O线程调用append()只是把帧的一个引用放进无锁队列，由专用的追加线程拷贝进映射内存，不会阻塞I/O线程；
+ * 队列积压超过maxPendingBytes时丢弃新的消息，聊天本身不受影响；
+ * 回放直接在映射内存上按房间过滤，交出的帧是映射内存的切片，可以原样写给客户端，每次调用扫描的字节数有上限，由调用方分页继续；
+ * 启动时按文件名恢复已有的段，文件中存的是编码后的帧，修改Framing之后需要换一个目录
+ * @author: chenzhuo
+ * @create: 2021-04-08 20:20
+ */
+public class MessageLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageLog.class);
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+    public static final int DEFAULT_INDEX_INTERVAL = 4096;
+    // 一次回放最多扫描的记录字节数，其它房间的记录也计算在内，冷清的房间回放时不会扫描整个日志
+    public static final int DEFAULT_MAX_SCAN_BYTES = 1024 * 1024;
+    private static final long DEFAULT_MAX_PENDING_BYTES = 16 * 1024 * 1024L;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int indexInterval;
+    private final long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    // baseOffset -> 段，追加线程滚动和删除，读线程按偏移量查找
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile LogSegment active;
+
+    private final Queue<PendingAppend> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread appender;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    public MessageLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param segmentBytes 段文件的大小，最大1GB
+     * @param maxSegments  保留的段数，总共最多占用segmentBytes * maxSegments字节
+     */
+    public MessageLog(File directory, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes <= LogSegment.RECORD_HEADER_LENGTH || segmentBytes > 1 << 30 || maxSegments <= 0) {
+            throw new IllegalArgumentException("invalid message log: segmentBytes=" + segmentBytes
+                    + ", maxSegments=" + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建消息日志目录：" + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.indexInterval = Math.min(DEFAULT_INDEX_INTERVAL, segmentBytes);
+        recover();
+        this.appender = new Thread(this::runAppender, "message-log-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                long baseOffset;
+                try {
+                    baseOffset = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(baseOffset, LogSegment.open(directory, baseOffset, segmentBytes, indexInterval));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, LogSegment.open(directory, 0, segmentBytes, indexInterval));
+        }
+        active = segments.lastEntry().getValue();
+        deleteOldSegments();
+        log.info("打开消息日志{}，偏移量[{}, {})，段数[{}]", directory, startOffset(), endOffset(), segments.size());
+    }
+
+    /**
+     * 追加一条广播消息，可以在任意线程调用，不阻塞
+     *
+     * @param frame 调用方转交一个引用，写入或者被丢弃后release
+     * @return false表示积压过多或者日志已经关闭，消息没有被记录
+     */
+    public boolean append(String room, SharedBuffer frame) {
+        int bytes = frame.readableBytes();
+        if (closed || pendingBytes.addAndGet(bytes) > maxPendingBytes) {
+            pendingBytes.addAndGet(-bytes);
+            dropped.increment();
+            frame.release();
+            return false;
+        }
+        queue.offer(new PendingAppend(room, frame));
+        if (waiting) {
+            LockSupport.unpark(appender);
+        }
+        return true;
+    }
+
+    /**
+     * 最旧的一条仍然保留的消息的偏移量
+     */
+    public long startOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * 下一条消息将要使用的偏移量
+     */
+    public long endOffset() {
+        return active.nextOffset();
+    }
+
+    /**
+     * 因为积压过多没有记录的消息数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 从offset开始回放room中的消息，可以在任意线程调用；已经被删除的部分从startOffset()开始
+     *
+     * @param listener 收到映射内存上的只读切片，内容就是广播时的帧；切片在段被删除之后仍然有效
+     * @param maxBytes 交出的帧累计超过这个字节数之后停止，至少交出一帧
+     * @return 下一条没有回放的消息的偏移量，继续回放时从这里开始
+     */
+    public long read(long offset, String room, int maxBytes, FrameListener listener) {
+        return read(offset, room, maxBytes, DEFAULT_MAX_SCAN_BYTES, listener);
+    }
+
+    /**
+     * 同read(offset, room, maxBytes, listener)，另外限制扫描的字节数：I/O线程上回放时不会因为房间里消息少而扫描整个日志，
+     * 达到上限时返回的偏移量之前可能没有交出任何帧，小于endOffset()就说明还有没扫描的记录
+     *
+     * @param maxScanBytes 扫描的记录（包括其它房间的）累计超过这个字节数之后停止，至少扫描一条
+     */
+    public long read(long offset, String room, int maxBytes, int maxScanBytes, FrameListener listener) {
+        Replay replay = new Replay(room.getBytes(StandardCharsets.UTF_8), maxBytes, listener);
+        int scanBudget = maxScanBytes;
+        long next = Math.max(offset, startOffset());
+        while (true) {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(next);
+            if (entry == null) {
+                // 段刚好被删除，从新的起点继续
+                next = startOffset();
+                continue;
+            }
+            LogSegment segment = entry.getValue();
+            int sizeBefore = segment.size();
+            long end = segment.read(next, replay.room, replay.remaining, scanBudget, replay);
+            // 段内还有没读到的记录说明达到了字节上限、扫描上限或者listener要求停止，最新的段读完就是读到了头
+            if (replay.stopped || replay.remaining <= 0 || end < segment.nextOffset()
+                    || segments.higherKey(entry.getKey()) == null) {
+                return end;
+            }
+            // 读到段尾，按整个段的大小扣除，只会多算不会少算
+            scanBudget -= Math.max(1, sizeBefore);
+            if (scanBudget <= 0) {
+                return end;
+            }
+            next = end;
+        }
+    }
+
+    private void runAppender() {
+        while (true) {
+            PendingAppend pending = queue.poll();
+            if (pending == null) {
+                if (closed) {
+                    break;
+                }
+                waiting = true;
+                // 设置waiting之后再检查一次，避免错过append()的唤醒
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                continue;
+            }
+            try {
+                write(pending.room, pending.frame);
+            } catch (IOException | RuntimeException e) {
+                log.error("写入消息日志失败", e);
+            } finally {
+                pendingBytes.addAndGet(-pending.frame.readableBytes());
+                pending.frame.release();
+            }
+        }
+        // 与close()同时调用的append()可能在退出循环之后才入队
+        PendingAppend late;
+        while ((late = queue.poll()) != null) {
+            late.frame.release();
+        }
+        active.flush();
+    }
+
+    private void write(String room, SharedBuffer frame) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length > Short.MAX_VALUE) {
+            return;
+        }
+        if (active.append(roomBytes, frame.view())) {
+            return;
+        }
+        roll();
+        if (!active.append(roomBytes, frame.view())) {
+            log.warn("消息长度{}超过段大小{}，没有记录", frame.readableBytes(), segmentBytes);
+        }
+    }
+
+    // 当前段已满：刷盘，新建下一个段，再按maxSegments删除最旧的段
+    private void roll() throws IOException {
+        LogSegment full = active;
+        full.flush();
+        LogSegment next = LogSegment.open(directory, full.nextOffset(), segmentBytes, indexInterval);
+        segments.put(next.baseOffset(), next);
+        active = next;
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() {
+        List<LogSegment> expired = new ArrayList<>();
+        while (segments.size() > maxSegments) {
+            expired.add(segments.pollFirstEntry().getValue());
+        }
+        for (LogSegment segment : expired) {
+            if (!segment.delete()) {
+                log.warn("无法删除消息日志段{}", LogSegment.fileName(segment.baseOffset()));
+            }
+        }
+    }
+
+    /**
+     * 写完已经入队的消息后停止追加线程，之后的append()直接丢弃
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(appender);
+        try {
+            appender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Replay implements FrameListener {
+        private final byte[] room;
+        private final FrameListener listener;
+        private int remaining;
+        private boolean stopped;
+
+        Replay(byte[] room, int maxBytes, FrameListener listener) {
+            this.room = room;
+            this.remaining = maxBytes;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean onFrame(ByteBuffer frame) {
+            remaining -= frame.remaining();
+            stopped = !listener.onFrame(frame);
+            return !stopped;
+        }
+    }
+
+    private static final class PendingAppend {
+        private final String room;
+        private final SharedBuffer frame;
+
+        PendingAppend(String room, SharedBuffer frame) {
+            this.room = room;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.socket.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @description: 一个段的稀疏偏移量索引，内存映射的定长文件
+ * 每写入indexInterval字节的消息记录一项(相对偏移量, 文件位置)，两项各4字节；
+ * 查找时二分得到不大于目标偏移量的最后一项，再从那个位置往后顺序扫描；
+ * 只由追加线程写入，entries发布之后读线程才能看到对应的项
+ * @author: chenzhuo
+ * @create: 2021-04-08 20:40
+ */
+final class OffsetIndex {
+
+    private static final int ENTRY_SIZE = 8;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int maxEntries;
+    private volatile int entries;
+
+    /**
+     * 打开或者创建索引文件，已有的项从文件中恢复
+     */
+    OffsetIndex(File file, int maxEntries) throws IOException {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength((long) maxEntries * ENTRY_SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) maxEntries * ENTRY_SIZE);
+        }
+        // 第一项总是(0, 0)，之后的项位置都大于0，位置为0的项表示没有写过
+        int count = 0;
+        while (count < maxEntries && (count == 0 || position(count) > 0)) {
+            count++;
+        }
+        entries = count;
+    }
+
+    File file() {
+        return file;
+    }
+
+    int entries() {
+        return entries;
+    }
+
+    int relativeOffset(int entry) {
+        return buffer.getInt(entry * ENTRY_SIZE);
+    }
+
+    int position(int entry) {
+        return buffer.getInt(entry * ENTRY_SIZE + 4);
+    }
+
+    /**
+     * 只在追加线程上调用，索引写满之后不再记录，查找时从最后一项开始扫描
+     */
+    void append(int relativeOffset, int position) {
+        int count = entries;
+        if (count == maxEntries) {
+            return;
+        }
+        buffer.putInt(count * ENTRY_SIZE, relativeOffset);
+        buffer.putInt(count * ENTRY_SIZE + 4, position);
+        entries = count + 1;
+    }
+
+    /**
+     * 只在恢复时调用，丢弃count之后的项：崩溃时索引可能比日志先写入磁盘，指向已经丢失的记录
+     */
+    void truncate(int count) {
+        for (int i = count; i < entries; i++) {
+            buffer.putLong(i * ENTRY_SIZE, 0);
+        }
+        entries = count;
+    }
+
+    /**
+     * 返回相对偏移量不大于relativeOffset的最后一项的下标
+     */
+    int lookup(int relativeOffset) {
+        int low = 0;
+        int high = entries - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (relativeOffset(mid) <= relativeOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    void flush() {
+        buffer.force();
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.socket.nio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * @description: 使用BufferedInputStream/BufferedOutputStream和字节数组复制文件
+ * @author: chenzhuo
+ * @create: 2021-03-14 22:50
+ */
+public class BufferedStreamCopy implements FileCopyRunner {
+
+    private final int bufferSize;
+
+    public BufferedStreamCopy(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void fileCopy(File source, File target) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source), bufferSize);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), bufferSize)) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            // 只写出实际读到的字节数，最后一次读取通常不满一个buffer
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "bufferedStreamCopy";
+    }
+}
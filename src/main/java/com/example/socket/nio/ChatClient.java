@@ -1,16 +1,23 @@
 package com.example.socket.nio;
 
 
+import com.example.socket.codec.FrameDecoder;
+import com.example.socket.codec.Framing;
+
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @description:
@@ -21,15 +28,28 @@ public class ChatClient {
     private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private static final int DEFAULT_SERVER_PORT = 8888;
     private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    private static final String SEND_FILE = "/sendfile";
+    private static final String GET_FILE = "/getfile";
+    private static final String FILE_HEADER = "/file";
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
 
     private String host;
     private int port;
     private SocketChannel client;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
+    // 服务器转发的消息以换行符分隔
+    private FrameDecoder decoder = Framing.LINE.newDecoder(Framing.DEFAULT_MAX_FRAME_LENGTH);
     private Selector selector;
     private Charset charset = Charset.forName("UTF-8");
+    // 收到的文件保存为"ID-文件名"，断点续传时根据已有的长度确定起始位置
+    private File downloadDirectory = new File(System.getProperty("user.dir"), "chat-downloads");
+    // 正在接收的文件，只在selector线程上访问
+    private FileReceiver download;
+    private File downloadFile;
+    // 输入线程发送消息和文件、selector线程回复心跳都写同一个通道，持有这个锁才能写，帧和文件内容不会交错
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // 通道是非阻塞的，写缓冲区满时在这个selector上等待OP_WRITE，持有writeLock时使用
+    private Selector writeSelector;
 
     public ChatClient() {
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
@@ -100,12 +120,9 @@ public class ChatClient {
         // READ事件 -服务器转发消息
         else if (key.isReadable()) {
             SocketChannel client = (SocketChannel) key.channel();
-            String msg = receive(client);
-            if (msg.isEmpty()) {
+            if (!receive(client)) {
                 // 服务器异常
                 close(selector);
-            } else {
-                System.out.println(msg);
             }
         }
 
@@ -115,25 +132,156 @@ public class ChatClient {
         if (message.isEmpty()) {
             return;
         }
+        writeLock.lock();
+        try {
+            if (message.startsWith(SEND_FILE + " ")) {
+                sendFile(new File(message.substring(SEND_FILE.length() + 1)));
+                return;
+            }
+            if (message.startsWith(GET_FILE + " ")) {
+                message = resumeOffset(message);
+            }
+
+            write(Framing.LINE.encode(charset.encode(message)));
+
+            // 检查用户是否准备退出
+            if (readyToQuit(message)) {
+                close(selector);
+                close(writeSelector);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // 命令帧之后紧跟文件内容，用transferTo直接从文件发送到socket
+    private void sendFile(File file) throws IOException {
+        if (!file.isFile()) {
+            System.out.println("文件不存在：" + file);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            write(Framing.LINE.encode(charset.encode(SEND_FILE + " " + size + " " + file.getName())));
+            long position = 0;
+            while (position < size) {
+                long transferred = channel.transferTo(position, size - position, client);
+                if (transferred == 0) {
+                    awaitWritable();
+                }
+                position += transferred;
+            }
+        }
+        System.out.println("文件已发送：" + file);
+    }
+
+    // 持有writeLock时调用，写缓冲区满时等待而不是空转
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (client.write(buffer) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    // 一个通道可以同时注册到多个selector，读事件仍然由start()中的selector处理
+    private void awaitWritable() throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            client.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select();
+        writeSelector.selectedKeys().clear();
+    }
+
+    // "/getfile ID"没有指定起始位置时，从本地已经收到的长度继续下载
+    private String resumeOffset(String command) {
+        String[] parts = command.split(" ");
+        if (parts.length != 2) {
+            return command;
+        }
+        File[] partial = downloadDirectory.listFiles((dir, name) -> name.startsWith(parts[1] + "-"));
+        long offset = partial != null && partial.length > 0 ? partial[0].length() : 0;
+        return command + " " + offset;
+    }
+
+    // 打印收到的完整消息，返回false表示服务器已经关闭连接
+    private boolean receive(SocketChannel client) throws IOException {
+        while (selector.isOpen()) {
+            if (download != null) {
+                if (!download.receive(client, decoder)) {
+                    return false;
+                }
+                if (!download.isComplete()) {
+                    return true;
+                }
+                close(download);
+                download = null;
+                System.out.println("文件已保存到：" + downloadFile);
+                // 累积缓冲区中剩下的是后续的消息
+                decoder.decode(this::onFrame);
+                continue;
+            }
+            int read = client.read(decoder.readBuffer());
+            if (read <= 0) {
+                return read == 0;
+            }
+            decoder.decode(this::onFrame);
+        }
+        return false;
+    }
 
-        wBuffer.clear();
-        wBuffer.put(charset.encode(message));
-        wBuffer.flip();
-        while (wBuffer.hasRemaining()) {
-            client.write(wBuffer);
+    private boolean onFrame(ByteBuffer frame) {
+        String msg = String.valueOf(charset.decode(frame));
+        if (msg.startsWith(FILE_HEADER + " ")) {
+            // 之后的数据是文件内容，停止解码
+            startDownload(msg);
+            return false;
+        }
+        if (PING.equals(msg)) {
+            pong();
+            return true;
         }
+        System.out.println(msg);
+        return true;
+    }
 
-        // 检查用户是否准备退出
-        if (readyToQuit(message)) {
+    // 服务器的心跳，回复后服务器不会把这个连接当作空闲连接断开；
+    // 输入线程正在写时服务器正在收到数据，同样不算空闲，不回复，selector线程不会因为等待上传完成而停止接收
+    private void pong() {
+        if (!writeLock.tryLock()) {
+            return;
+        }
+        try {
+            write(Framing.LINE.encode(charset.encode(PONG)));
+        } catch (IOException e) {
             close(selector);
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        rBuffer.clear();
-        while (client.read(rBuffer) > 0);
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+    // "/file ID 长度 起始位置 文件名"
+    private void startDownload(String header) {
+        String[] parts = header.split(" ", 5);
+        long size = Long.parseLong(parts[2]);
+        long offset = Long.parseLong(parts[3]);
+        downloadFile = new File(downloadDirectory, parts[1] + "-" + new File(parts[4]).getName());
+        try {
+            if (!downloadDirectory.isDirectory() && !downloadDirectory.mkdirs()) {
+                throw new IOException("无法创建下载目录：" + downloadDirectory);
+            }
+            FileChannel channel = offset > 0
+                    ? FileChannel.open(downloadFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                    : FileChannel.open(downloadFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            download = new FileReceiver(channel, offset, size);
+            System.out.println("开始接收文件[" + parts[1] + "]" + parts[4] + "，" + size + "字节，从" + offset + "处开始");
+        } catch (IOException e) {
+            // 文件内容无法跳过，之后的消息也无法解析，只能断开
+            e.printStackTrace();
+            close(selector);
+        }
     }
 
     public static void main(String[] args) {
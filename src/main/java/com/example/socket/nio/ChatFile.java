@@ -0,0 +1,46 @@
+package com.example.socket.nio;
+
+import java.io.File;
+
+/**
+ * @description: 客户端上传到服务器的一个文件，保存在服务器的文件目录中，按ID下载和断点续传
+ * @author: chenzhuo
+ * @create: 2021-03-28 10:20
+ */
+final class ChatFile {
+
+    private final long id;
+    private final String name;
+    private final long size;
+    private final File path;
+    // 上传时所在的房间，只有这个房间的成员可以下载
+    private final String room;
+
+    ChatFile(long id, String name, long size, File path, String room) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.path = path;
+        this.room = room;
+    }
+
+    long id() {
+        return id;
+    }
+
+    String name() {
+        return name;
+    }
+
+    long size() {
+        return size;
+    }
+
+    File path() {
+        return path;
+    }
+
+    String room() {
+        return room;
+    }
+}
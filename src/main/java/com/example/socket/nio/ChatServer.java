@@ -1,30 +1,88 @@
 package com.example.socket.nio;
 
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.ChatMetrics;
+import com.example.socket.chat.ChatSession;
+import com.example.socket.chat.Command;
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.chat.Transport;
+import com.example.socket.codec.FrameDecoder;
+import com.example.socket.codec.Framing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * @description: 聊天服务器
+ * @description: 聊天服务器（主从Reactor模式）
+ * 主Reactor（boss）只负责accept，新连接按轮询方式交给N个从Reactor（worker），
+ * 每个worker拥有独立的Selector和线程，负责读取、解码和转发；
+ * 转发只是把消息放进接收方的出站队列，由接收方所在的worker在可写时写出；
+ * 房间、私聊和退出等聊天逻辑由ChatCore完成，这里只处理文件传输；
+ * 文件传输：客户端发送"/sendfile 长度 文件名"，紧跟文件内容，服务器收完后保存到文件目录，
+ * 再以"/file ID 长度 起始位置 文件名"帧加文件内容的形式推送给当前房间的其它成员，文件内容用transferTo直接写入socket；
+ * 客户端可以用"/getfile ID 起始位置"从断点处重新下载；已保存的文件超过maxFiles个或者maxStoredBytes字节时删除最早的文件，
+ * 服务器关闭时删除所有已保存的文件；
+ * 空闲连接由各个worker的时间轮按IdlePolicy检测，先发心跳，超时后断开，半开连接不会一直留在ChatCore中；
+ * ChatCore限速时清除OP_READ暂停读取，到期后先解码累积缓冲区中剩下的帧再恢复读取
  * @author: chenzhuo
  * @create: 2021-03-11 21:55
  */
-public class ChatServer {
+public class ChatServer implements Transport {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatServer.class);
 
     private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    private static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    // 每次read事件最多读取的次数和字节数，避免一个连接独占worker，也让出站队列有机会及时刷新；
+    // 读缓冲区自适应之后一次读取可能有几十KB，只限制次数不能限制一次事件转发的数据量
+    private static final int MAX_READS_PER_EVENT = 16;
+    private static final int MAX_BYTES_PER_EVENT = 16 * 1024;
+    private static final Command SEND_FILE = new Command("/sendfile");
+    private static final Command GET_FILE = new Command("/getfile");
+    private static final String FILE_HEADER = "/file";
+    private static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024 * 1024L;
+    private static final int DEFAULT_MAX_FILES = 256;
+    private static final long DEFAULT_MAX_STORED_BYTES = 4 * 1024 * 1024 * 1024L;
 
     private ServerSocketChannel server;
     private Selector selector;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
-    private Charset charset = Charset.forName("UTF-8");
+    private SubReactor[] workers;
+    private int nextWorker;
+    // 在线客户端和房间，可能与其它Transport共用
+    private ChatCore chatCore;
+    private Framing framing = Framing.LINE;
+    private int maxFrameLength = Framing.DEFAULT_MAX_FRAME_LENGTH;
+    private WriteBufferWaterMark writeBufferWaterMark = WriteBufferWaterMark.DEFAULT;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+    private IdlePolicy idlePolicy = IdlePolicy.DEFAULT;
+    private ReceiveBufferSizer receiveBufferSizer = ReceiveBufferSizer.DEFAULT;
+    private File fileDirectory = new File(System.getProperty("java.io.tmpdir"), "chat-files");
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private int maxFiles = DEFAULT_MAX_FILES;
+    private long maxStoredBytes = DEFAULT_MAX_STORED_BYTES;
+    // 已经上传完成的文件，以文件ID为键，ID递增，第一个就是最早的文件
+    private ConcurrentNavigableMap<Long, ChatFile> files = new ConcurrentSkipListMap<>();
+    private AtomicLong storedBytes = new AtomicLong();
+    private AtomicLong fileIds = new AtomicLong();
     private int port;
+    private int workerCount;
 
 
     public ChatServer() {
@@ -32,11 +90,91 @@ public class ChatServer {
     }
 
     public ChatServer(int port) {
+        this(port, DEFAULT_WORKERS);
+    }
+
+    public ChatServer(int port, int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be positive: " + workerCount);
+        }
         this.port = port;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 只对start()生效，start(ChatCore)使用chatCore的Framing
+     */
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public void setWriteBufferWaterMark(WriteBufferWaterMark writeBufferWaterMark) {
+        this.writeBufferWaterMark = writeBufferWaterMark;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public void setIdlePolicy(IdlePolicy idlePolicy) {
+        this.idlePolicy = idlePolicy;
+    }
+
+    /**
+     * 每个连接的读缓冲区按最近读到的字节数在minimum和maximum之间伸缩
+     */
+    public void setReceiveBufferSizer(ReceiveBufferSizer receiveBufferSizer) {
+        this.receiveBufferSizer = receiveBufferSizer;
+    }
+
+    public void setFileDirectory(File fileDirectory) {
+        this.fileDirectory = fileDirectory;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * 最多保留的已上传文件个数，超过时删除最早的文件
+     */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * 已上传文件的总字节数上限，超过时删除最早的文件；正在上传的文件不计入，每个最多maxFileSize字节
+     */
+    public void setMaxStoredBytes(long maxStoredBytes) {
+        this.maxStoredBytes = maxStoredBytes;
     }
 
     public void start() {
+        start(new ChatCore(framing));
+    }
+
+    @Override
+    public void start(ChatCore chatCore) {
+        this.chatCore = chatCore;
         try {
+            if (!fileDirectory.isDirectory() && !fileDirectory.mkdirs()) {
+                throw new IOException("无法创建文件目录：" + fileDirectory);
+            }
+            // 先启动从Reactor，每个worker一个Selector一个线程
+            workers = new SubReactor[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new SubReactor(this);
+                workers[i].start("nio-worker-" + i);
+            }
+
             server = ServerSocketChannel.open();
             // 设置通道为非阻塞模式
             server.configureBlocking(false);
@@ -46,27 +184,52 @@ public class ChatServer {
             selector = Selector.open();
             // 将server注册到selector上，并且关联accept操作
             server.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，端口[" + port + "]");
+            log.info("启动服务器，端口[{}]，worker数[{}]", port, workerCount);
 
             while (true) {
                 // 此方法会阻塞，直到有事件触发
                 selector.select();
                 Set<SelectionKey> selectionKeys = selector.selectedKeys();
                 for (SelectionKey selectionKey : selectionKeys) {
-                    handles(selectionKey);
+                    accept(selectionKey);
                 }
                 selectionKeys.clear();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("服务器异常，端口[{}]", port, e);
+        } catch (ClosedSelectorException e) {
+            // 服务器正常关闭
         } finally {
-            close(selector);
+            close();
+        }
+    }
+
+    // 关闭监听通道，主Reactor继续运行到close()，已有的连接不受影响
+    @Override
+    public void stopAccepting() {
+        close(server);
+        if (selector != null) {
+            // 注册在selector上的通道要到下一次select才真正关闭并释放端口
+            selector.wakeup();
         }
     }
 
-    // 检查用户是否准备退出
-    public boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    // 关闭主Reactor和所有从Reactor，删除已保存的文件；没有上传完的文件由连接关闭时删除
+    @Override
+    public void close() {
+        close(server);
+        close(selector);
+        if (workers != null) {
+            for (SubReactor worker : workers) {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+        }
+        Map.Entry<Long, ChatFile> oldest;
+        while ((oldest = files.pollFirstEntry()) != null) {
+            delete(oldest.getValue());
+        }
     }
 
     public static void close(Closeable closeable) {
@@ -74,79 +237,246 @@ public class ChatServer {
             try {
                 closeable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                log.warn("关闭{}失败", closeable, e);
             }
         }
     }
 
-    private void handles(SelectionKey selectionKey) throws IOException {
-        // accept事件 - 和客户端建立了连接
-        if (selectionKey.isAcceptable()) {
-            ServerSocketChannel channel = (ServerSocketChannel) selectionKey.channel();
-            SocketChannel client = server.accept();
-            client.configureBlocking(false);
-            // 将Client注册到selector上，并且关联read操作
-            client.register(selector, SelectionKey.OP_READ);
-            System.out.println(getClientName(client) + "已连接");
+    ChatMetrics metrics() {
+        return chatCore.metrics();
+    }
+
+    // accept事件 - 和客户端建立了连接，轮询交给worker
+    private void accept(SelectionKey selectionKey) throws IOException {
+        if (!selectionKey.isAcceptable()) {
+            return;
+        }
+        SocketChannel client = server.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        SubReactor worker = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        FrameDecoder decoder = chatCore.framing().newDecoder(maxFrameLength, BufferPool.DEFAULT, receiveBufferSizer);
+        long id = chatCore.nextId();
+        Connection connection = new Connection(this, id, ChatCore.clientName(id, client.socket().getPort()), client,
+                worker, decoder, writeBufferWaterMark, overflowPolicy, flushPolicy, idlePolicy);
+        // 注册必须在worker线程上完成，否则会与worker的select()互相阻塞
+        worker.execute(() -> {
+            try {
+                connection.register();
+                chatCore.connected(connection);
+            } catch (IOException e) {
+                connection.close();
+            }
+        });
+    }
+
+    // 在连接所属的worker线程上处理读写事件
+    void handles(SelectionKey selectionKey) throws IOException {
+        Connection connection = (Connection) selectionKey.attachment();
+        // write事件 - 出站队列上次没有写完，socket又可写了
+        if (selectionKey.isWritable()) {
+            connection.flush();
         }
         // read事件 - 客户端发送了消息
-        else if (selectionKey.isReadable()) {
-            SocketChannel client = (SocketChannel) selectionKey.channel();
-            String fwdMsg = receive(client);
-            if (fwdMsg.isEmpty()) {
-                // 客户端异常，selectionKey对应的通道和channel之间的注册关系被取消
-                selectionKey.cancel();
-                // 唤醒selector,selector重新获取所有的SelectionKey
-                selector.wakeup();
-            } else {
-                // 转发消息
-                forWardMessage(client, fwdMsg);
-
-                // 检查用户是否退出
-                if (readyToQuit(fwdMsg)) {
-                    selectionKey.cancel();
-                    selector.wakeup();
-                    System.out.println(getClientName(client) + "已断开");
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            connection.markRead();
+            read(connection);
+        }
+    }
+
+    // 限速到期，在连接所属的worker线程上先解码上次留在累积缓冲区中的帧，仍可以读取时再读socket
+    void resume(Connection connection) {
+        try {
+            if (connection.upload() == null) {
+                connection.decoder().decode(frame -> onMessage(connection, frame));
+            }
+            // 解码期间可能又被限速，也可能开始了上传，上传的内容可能已经全部在累积缓冲区中
+            if (connection.isReading()) {
+                read(connection);
+            }
+        } catch (IOException e) {
+            disconnect(connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        SocketChannel client = connection.channel();
+        FrameDecoder decoder = connection.decoder();
+        int read = 0;
+        int total = 0;
+        // 一次可能读到多个帧，也可能只读到半个帧；发送方被暂停读取后不再继续读
+        for (int i = 0; i < MAX_READS_PER_EVENT && total < MAX_BYTES_PER_EVENT && connection.isReading(); i++) {
+            if (connection.upload() != null) {
+                if (!receiveFile(connection)) {
+                    read = -1;
+                    break;
                 }
+                if (connection.upload() != null) {
+                    break;
+                }
+                // 上传完成，累积缓冲区中剩下的是后续的消息
+                decoder.decode(frame -> onMessage(connection, frame));
+                continue;
+            }
+            if ((read = client.read(decoder.readBuffer())) <= 0) {
+                break;
             }
+            total += read;
+            decoder.readComplete(read);
+            chatCore.metrics().bytesRead(read);
+            decoder.decode(frame -> onMessage(connection, frame));
         }
+        if (read < 0) {
+            // 客户端异常，selectionKey对应的通道和channel之间的注册关系被取消
+            disconnect(connection);
+        }
+    }
+
+    // 处理一条完整的消息，文件传输以外的消息交给ChatCore，返回false表示停止解码
+    // 文件命令在字节上匹配，只有文件命令才解码成文本，其它消息原样交给ChatCore；文件命令同样计入限速
+    private boolean onMessage(Connection connection, ByteBuffer frame) {
+        if (SEND_FILE.matchesWithArgument(frame)) {
+            // 之后的数据是文件内容，停止解码
+            startUpload(connection, chatCore.decode(frame));
+            chatCore.checkRate(connection);
+            return false;
+        }
+        if (GET_FILE.matchesWithArgument(frame)) {
+            getFile(connection, chatCore.decode(frame));
+            return chatCore.checkRate(connection);
+        }
+        return chatCore.onMessage(connection, frame);
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        // 清空消息
-        rBuffer.clear();
-        while (client.read(rBuffer) > 0);
-        // 写模式转换为读模式
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+    void ping(Connection connection) {
+        chatCore.ping(connection);
     }
 
-    private void forWardMessage(SocketChannel client, String fwdMsg) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            Channel connectedClient = key.channel();
-            // 不需要将消息发送给服务端
-            if (connectedClient instanceof ServerSocketChannel) {
-                continue;
+    // 空闲超时，在连接所属的worker线程上调用
+    void evict(Connection connection) {
+        log.debug("{}空闲超时，断开连接", connection.name());
+        chatCore.metrics().connectionEvicted();
+        disconnect(connection);
+    }
+
+    // 在连接所属的worker线程上调用，可以重复调用
+    void disconnect(Connection connection) {
+        if (connection != null) {
+            chatCore.disconnect(connection);
+        }
+    }
+
+    // "/sendfile 长度 文件名"，文件名放在最后，可以包含空格
+    private void startUpload(Connection connection, String command) {
+        String[] parts = command.split(" ", 3);
+        long size;
+        try {
+            size = parts.length == 3 ? Long.parseLong(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0 || size > maxFileSize) {
+            // 无法确定文件内容在哪里结束，只能断开连接
+            log.warn("{}文件上传请求无效：{}", connection.name(), command);
+            disconnect(connection);
+            return;
+        }
+        // 只保留文件名部分，避免路径穿越
+        String name = new File(parts[2]).getName();
+        long id = fileIds.incrementAndGet();
+        // 上传过程中不解码命令，连接不会切换房间，收完之后推送给的也是这个房间
+        ChatFile file = new ChatFile(id, name, size, new File(fileDirectory, String.valueOf(id)),
+                connection.currentRoom());
+        try {
+            FileChannel channel = FileChannel.open(file.path().toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            connection.startUpload(file, new FileReceiver(channel, 0, size));
+        } catch (IOException e) {
+            log.error("无法创建上传文件{}", file.path(), e);
+            disconnect(connection);
+        }
+    }
+
+    // 接收上传的文件内容，收完后推送给其它客户端；返回false表示客户端已经关闭连接
+    private boolean receiveFile(Connection connection) throws IOException {
+        if (!connection.uploadReceiver().receive(connection.channel(), connection.decoder())) {
+            return false;
+        }
+        if (!connection.uploadReceiver().isComplete()) {
+            return true;
+        }
+        ChatFile file = connection.finishUpload();
+        files.put(file.id(), file);
+        storedBytes.addAndGet(file.size());
+        log.info("{}上传了文件[{}]{}", connection.name(), file.id(), file.name());
+        evictFiles();
+        chatCore.broadcast(connection, "发送了文件[" + file.id() + "]" + file.name() + "，" + file.size() + "字节");
+        for (ChatSession member : chatCore.members(connection.currentRoom())) {
+            // 共用ChatCore时房间中可能有其它Transport的连接，它们只收到上面的文字通知
+            if (member != connection && member instanceof Connection) {
+                sendFile((Connection) member, file, 0);
             }
-            // 也不需要转发给自己
-            if (key.isValid() && !client.equals(connectedClient)) {
-                wBuffer.clear();
-                wBuffer.put(charset.encode(getClientName(client) + ":" + fwdMsg));
-                // 写模式转换为读模式
-                wBuffer.flip();
-                while (wBuffer.hasRemaining()) {
-                    ((SocketChannel)connectedClient).write(wBuffer);
-                }
+        }
+        return true;
+    }
+
+    // 超过个数或者总字节数上限时删除最早的文件，至少保留刚上传的一个；多个worker可能同时调用，
+    // pollFirstEntry()保证每个文件只删除一次
+    private void evictFiles() {
+        while (files.size() > 1 && (files.size() > maxFiles || storedBytes.get() > maxStoredBytes)) {
+            Map.Entry<Long, ChatFile> oldest = files.pollFirstEntry();
+            if (oldest == null) {
+                return;
+            }
+            log.debug("删除最早的文件[{}]{}", oldest.getKey(), oldest.getValue().name());
+            delete(oldest.getValue());
+        }
+    }
+
+    // 正在下载这个文件的连接已经打开了它，Linux上删除之后仍然可以读完，之后的"/getfile"找不到这个文件
+    private void delete(ChatFile file) {
+        storedBytes.addAndGet(-file.size());
+        if (!file.path().delete() && file.path().exists()) {
+            log.warn("无法删除文件{}", file.path());
+        }
+    }
+
+    // "/getfile ID 起始位置"，起始位置省略时从头下载；只能下载当前房间中上传的文件，其它房间的文件当作不存在
+    private void getFile(Connection connection, String command) {
+        String[] parts = command.split(" ");
+        try {
+            ChatFile file = files.get(Long.parseLong(parts[1]));
+            long offset = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            if (file == null || !file.room().equals(connection.currentRoom()) || offset < 0 || offset > file.size()) {
+                chatCore.reply(connection, "文件不存在或者起始位置无效：" + command);
+                return;
             }
+            sendFile(connection, file, offset);
+        } catch (NumberFormatException e) {
+            chatCore.reply(connection, "无效的命令：" + command);
         }
     }
 
-    private String getClientName(SocketChannel channel) {
-        return "客户端[" + channel.socket().getPort() + "]";
+    // 每个接收方单独打开文件，各自按自己的position用transferTo发送，文件内容由操作系统页缓存共享
+    private void sendFile(Connection recipient, ChatFile file, long offset) {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.path().toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            log.error("无法打开文件{}", file.path(), e);
+            return;
+        }
+        SharedBuffer header = chatCore.encode(
+                FILE_HEADER + " " + file.id() + " " + file.size() + " " + offset + " " + file.name());
+        recipient.writeFile(header, channel, offset, file.size() - offset);
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer(7777);
+        int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_WORKERS;
+        ChatServer chatServer = new ChatServer(7777, workerCount);
         chatServer.start();
     }
 
@@ -0,0 +1,492 @@
+package com.example.socket.nio;
+
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.chat.ChatMetrics;
+import com.example.socket.chat.ChatSession;
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.codec.FrameDecoder;
+import com.example.socket.util.HashedWheelTimer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description: 一个客户端连接的状态：解码器、有界出站队列以及读写兴趣的切换
+ * 任意线程都可以调用write()入队，真正的写操作只在所属的SubReactor线程上进行，
+ * 写不完时注册OP_WRITE，等socket发送缓冲区可写时继续，不会阻塞selector线程；
+ * 出站队列中除了消息帧还可以有文件片段，文件用transferTo从页缓存直接发送到socket；
+ * 队首连续的消息帧按FlushPolicy合并成一次gathering write，突发流量下一次系统调用写出多条消息；
+ * 读到数据时只记录时间，挂在SubReactor时间轮上的检查任务按IdlePolicy发送心跳或者断开空闲连接；
+ * 暂停读取有两个原因：PAUSE_READER下接收方写不过来，以及本连接发送太快被限速，两者都解除之后才恢复OP_READ
+ * @author: chenzhuo
+ * @create: 2021-03-21 15:30
+ */
+class Connection extends ChatSession {
+
+    private final ChatServer chatServer;
+    private final SocketChannel channel;
+    private final SubReactor reactor;
+    private final FrameDecoder decoder;
+    private final WriteBufferWaterMark waterMark;
+    private final OverflowPolicy overflowPolicy;
+    private final FlushPolicy flushPolicy;
+    private final IdlePolicy idlePolicy;
+    private final ChatMetrics metrics;
+    private SelectionKey key;
+
+    private final Queue<PendingWrite> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // 为true时已经有一次刷新在排队或者正在等待OP_WRITE，其它线程无需重复提交
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean writable = true;
+    // 因为本连接写不过来而被暂停读取的发送方
+    private final Set<Connection> pausedPeers = ConcurrentHashMap.newKeySet();
+    private final Runnable flushTask = this::flushNow;
+    private final Runnable idleCheck = this::checkIdle;
+    private final Runnable resumeTask = this::resume;
+    // 以下四个字段只在所属的SubReactor线程上访问
+    private long lastReadNanos;
+    private HashedWheelTimer.Timeout idleTimeout;
+    // 被接收方暂停读取（PAUSE_READER）
+    private boolean backpressured;
+    // 被限速暂停读取，到期后由resumeTask恢复
+    private boolean suspended;
+    // 正在接收的上传文件，只在所属的SubReactor线程上访问
+    private ChatFile upload;
+    private FileReceiver uploadReceiver;
+
+    Connection(ChatServer chatServer, long id, String name, SocketChannel channel, SubReactor reactor,
+               FrameDecoder decoder, WriteBufferWaterMark waterMark, OverflowPolicy overflowPolicy,
+               FlushPolicy flushPolicy, IdlePolicy idlePolicy) {
+        super(id, name);
+        this.chatServer = chatServer;
+        this.channel = channel;
+        this.reactor = reactor;
+        this.decoder = decoder;
+        this.waterMark = waterMark;
+        this.overflowPolicy = overflowPolicy;
+        this.flushPolicy = flushPolicy;
+        this.idlePolicy = idlePolicy;
+        this.metrics = chatServer.metrics();
+    }
+
+    // 必须在所属的SubReactor线程上调用
+    void register() throws IOException {
+        key = channel.register(reactor.selector(), SelectionKey.OP_READ, this);
+        lastReadNanos = System.nanoTime();
+        if (idlePolicy.isEnabled()) {
+            idleTimeout = reactor.timer().newTimeout(idleCheck, idlePolicy.initialDelayNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // 读事件，在所属的SubReactor线程上调用
+    void markRead() {
+        lastReadNanos = reactor.loopStartNanos();
+    }
+
+    // 时间轮到期，在所属的SubReactor线程上执行
+    private void checkIdle() {
+        long now = System.nanoTime();
+        if (!isReading()) {
+            // 被PAUSE_READER或者限速暂停读取时对端的数据留在socket接收缓冲区中，不算空闲
+            lastReadNanos = now;
+        }
+        long idleNanos = now - lastReadNanos;
+        if (idlePolicy.isExpired(idleNanos)) {
+            chatServer.evict(this);
+            return;
+        }
+        if (idlePolicy.shouldPing(idleNanos)) {
+            chatServer.ping(this);
+        }
+        idleTimeout = reactor.timer().newTimeout(idleCheck, idlePolicy.nextCheckNanos(idleNanos), TimeUnit.NANOSECONDS);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    FrameDecoder decoder() {
+        return decoder;
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    boolean isWritable() {
+        return writable;
+    }
+
+    boolean isReading() {
+        return key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    @Override
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    ChatFile upload() {
+        return upload;
+    }
+
+    FileReceiver uploadReceiver() {
+        return uploadReceiver;
+    }
+
+    // 命令帧之后的数据是文件内容，直到收完之前不再按帧解码
+    void startUpload(ChatFile file, FileReceiver receiver) {
+        this.upload = file;
+        this.uploadReceiver = receiver;
+    }
+
+    ChatFile finishUpload() {
+        ChatFile file = upload;
+        ChatServer.close(uploadReceiver);
+        upload = null;
+        uploadReceiver = null;
+        return file;
+    }
+
+    /**
+     * 将一个已编码的帧放入出站队列，可以在任意线程调用
+     *
+     * @param frame  已编码的帧，调用方转交一个引用，写完或者被丢弃时由本连接release
+     * @param sender 消息的发送方，PAUSE_READER策略下nio连接的发送方会被暂停读取，可以为null；
+     *               没有可以暂停的发送方时（系统消息、历史回放、其它Transport的连接），队列超过两倍高水位之后丢弃
+     * @return false表示消息因为队列溢出没有入队
+     */
+    @Override
+    public boolean write(SharedBuffer frame, ChatSession sender) {
+        if (!isOpen()) {
+            frame.release();
+            return false;
+        }
+        if (!writable) {
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                frame.release();
+                return false;
+            }
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                frame.release();
+                reactor.execute(() -> chatServer.disconnect(this));
+                return false;
+            }
+            if (!canPause(sender) && pendingBytes.get() >= 2L * waterMark.high()) {
+                frame.release();
+                return false;
+            }
+        }
+        // 每个接收方一个独立position的只读视图，数据本身只有一份
+        outbound.offer(new FrameWrite(frame));
+        int bytes = frame.readableBytes();
+        long pending = pendingBytes.addAndGet(bytes);
+        if (pending > waterMark.high()) {
+            writable = false;
+        }
+        if (!writable && overflowPolicy == OverflowPolicy.PAUSE_READER && canPause(sender)) {
+            Connection peer = (Connection) sender;
+            pausedPeers.add(peer);
+            peer.pauseRead();
+        }
+        int maxBatchBytes = flushPolicy.maxBatchBytes();
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (flushPolicy.maxDelayNanos() > 0 && pending < maxBatchBytes) {
+                // 等待更多消息一起写出
+                reactor.schedule(flushTask, flushPolicy.maxDelayNanos());
+            } else {
+                // 本轮事件处理结束时刷新，这一轮中入队的消息一起写出
+                reactor.execute(flushTask);
+            }
+        } else if (flushPolicy.maxDelayNanos() > 0 && pending >= maxBatchBytes && pending - bytes < maxBatchBytes) {
+            // 延迟期间已经积累了一批，不再等待
+            reactor.execute(flushTask);
+        }
+        return true;
+    }
+
+    private boolean canPause(ChatSession sender) {
+        return sender instanceof Connection && sender != this;
+    }
+
+    /**
+     * 将文件的[position, position + count)放入出站队列，可以在任意线程调用
+     * 文件本身总是入队，header和文件内容作为一个整体，中间不会插入其它消息；
+     * 文件内容虽然不占用内存，但是和消息帧一样计入pendingBytes，随transferTo的进度扣除，
+     * 下载期间超过高水位时之后的消息按溢出策略处理，优雅停机也会等待下载写完
+     *
+     * @param header 紧跟在文件内容之前发送的帧，调用方转交一个引用
+     * @param file   写完或者被丢弃时由本连接关闭
+     */
+    void writeFile(SharedBuffer header, FileChannel file, long position, long count) {
+        if (!isOpen()) {
+            header.release();
+            ChatServer.close(file);
+            return;
+        }
+        FileWrite pending = new FileWrite(header, file, position, count);
+        outbound.offer(pending);
+        if (pendingBytes.addAndGet(pending.remaining()) > waterMark.high()) {
+            writable = false;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(flushTask);
+        }
+    }
+
+    private void flushNow() {
+        try {
+            flush();
+        } catch (IOException e) {
+            chatServer.disconnect(this);
+        }
+    }
+
+    // 在所属的SubReactor线程上尽可能多地写出队列中的数据，OP_WRITE就绪时也会调用
+    void flush() throws IOException {
+        if (!key.isValid()) {
+            // 连接关闭之后才入队的数据
+            discardOutbound();
+            return;
+        }
+        while (true) {
+            PendingWrite pending;
+            while ((pending = outbound.peek()) != null) {
+                boolean complete = pending instanceof FileWrite ? writeFile((FileWrite) pending) : writeFrames();
+                if (!complete) {
+                    // socket发送缓冲区已满，等待OP_WRITE，期间flushScheduled保持为true
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    checkWritable();
+                    return;
+                }
+            }
+            checkWritable();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+            // 其它线程可能在flushScheduled复位之前入队，需要再检查一次
+            if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    // 把队首连续的消息帧合并成一次gathering write，返回false表示socket发送缓冲区已满
+    private boolean writeFrames() throws IOException {
+        ByteBuffer[] batch = reactor.gatherBuffers();
+        int count = 0;
+        long bytes = 0;
+        for (PendingWrite pending : outbound) {
+            if (!(pending instanceof FrameWrite) || count == batch.length || bytes >= flushPolicy.maxBatchBytes()) {
+                break;
+            }
+            ByteBuffer buffer = ((FrameWrite) pending).buffer;
+            batch[count++] = buffer;
+            bytes += buffer.remaining();
+        }
+        try {
+            long written = count == 1 ? channel.write(batch[0]) : channel.write(batch, 0, count);
+            pendingBytes.addAndGet(-written);
+            metrics.bytesWritten(written);
+            // 写完的帧出队，最后一个可能只写了一部分
+            for (int i = 0; i < count && !batch[i].hasRemaining(); i++) {
+                outbound.poll().release();
+            }
+            return !batch[count - 1].hasRemaining();
+        } finally {
+            Arrays.fill(batch, 0, count, null);
+        }
+    }
+
+    private boolean writeFile(FileWrite pending) throws IOException {
+        long remaining = pending.remaining();
+        boolean complete;
+        try {
+            complete = pending.writeTo(channel, metrics);
+        } finally {
+            pendingBytes.addAndGet(pending.remaining() - remaining);
+        }
+        if (!complete) {
+            return false;
+        }
+        outbound.poll();
+        pending.release();
+        return true;
+    }
+
+    private void checkWritable() {
+        if (!writable && pendingBytes.get() <= waterMark.low()) {
+            writable = true;
+            resumePausedPeers();
+        }
+    }
+
+    private void resumePausedPeers() {
+        for (Connection peer : pausedPeers) {
+            pausedPeers.remove(peer);
+            peer.resumeRead();
+        }
+    }
+
+    // 暂停读取，由发送方自己所在的线程调用（转发发生在发送方的SubReactor线程上）
+    void pauseRead() {
+        backpressured = true;
+        updateReadInterest();
+    }
+
+    void resumeRead() {
+        reactor.execute(() -> {
+            backpressured = false;
+            updateReadInterest();
+        });
+    }
+
+    // 令牌用完，由ChatCore在所属的SubReactor线程上调用；到期之前累积缓冲区中剩下的帧和socket中的数据都不读
+    @Override
+    protected void suspendRead(long delayNanos) {
+        if (!key.isValid()) {
+            return;
+        }
+        suspended = true;
+        updateReadInterest();
+        reactor.schedule(resumeTask, delayNanos);
+    }
+
+    // 限速到期，先解码上次剩下的帧，期间可能再次被限速
+    private void resume() {
+        suspended = false;
+        if (!key.isValid()) {
+            return;
+        }
+        updateReadInterest();
+        chatServer.resume(this);
+    }
+
+    private void updateReadInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(backpressured || suspended ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+    }
+
+    // 在所属的SubReactor线程上关闭连接，丢弃尚未写出的数据
+    @Override
+    public void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+        ChatServer.close(channel);
+        decoder.release();
+        if (upload != null) {
+            // 没有收完的上传文件不保留
+            finishUpload().path().delete();
+        }
+        discardOutbound();
+        resumePausedPeers();
+    }
+
+    // 只扣除实际丢弃的字节数，并发的write()可能已经入队但还没有累加，直接置0会让计数偏离
+    private void discardOutbound() {
+        PendingWrite pending;
+        while ((pending = outbound.poll()) != null) {
+            pendingBytes.addAndGet(-pending.remaining());
+            pending.release();
+        }
+        flushScheduled.set(false);
+    }
+
+    private abstract static class PendingWrite {
+
+        // 还没有写出的字节数
+        abstract long remaining();
+
+        abstract void release();
+    }
+
+    private static final class FrameWrite extends PendingWrite {
+        private final SharedBuffer frame;
+        private final ByteBuffer buffer;
+
+        FrameWrite(SharedBuffer frame) {
+            this.frame = frame;
+            this.buffer = frame.view();
+        }
+
+        @Override
+        long remaining() {
+            return buffer.remaining();
+        }
+
+        @Override
+        void release() {
+            frame.release();
+        }
+    }
+
+    private static final class FileWrite extends PendingWrite {
+        private final SharedBuffer header;
+        private final ByteBuffer headerBuffer;
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        FileWrite(SharedBuffer header, FileChannel file, long position, long count) {
+            this.header = header;
+            this.headerBuffer = header.view();
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        @Override
+        long remaining() {
+            return headerBuffer.remaining() + end - position;
+        }
+
+        // 返回true表示已经全部写出
+        boolean writeTo(SocketChannel channel, ChatMetrics metrics) throws IOException {
+            if (headerBuffer.hasRemaining()) {
+                metrics.bytesWritten(channel.write(headerBuffer));
+                if (headerBuffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            // socket发送缓冲区满时transferTo返回0
+            while (position < end) {
+                long written = file.transferTo(position, end - position, channel);
+                if (written <= 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("文件在发送过程中被截断");
+                    }
+                    return false;
+                }
+                position += written;
+                metrics.bytesWritten(written);
+            }
+            return true;
+        }
+
+        @Override
+        void release() {
+            header.release();
+            ChatServer.close(file);
+        }
+    }
+}
@@ -2,17 +2,18 @@ package com.example.socket.nio;
 
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Random;
 
 /**
- * @description:
+ * @description: 简单对比各种文件复制方式的耗时，严格的基准测试见benchmarks模块中的FileCopyBenchmark
+ * 用法：FileCopyDemo [工作目录]，测试文件不存在时自动生成
  * @author: chenzhuo
  * @create: 2021-03-14 22:50
  */
 public class FileCopyDemo {
 
     private static final int ROUNDS = 5;
+    private static final int BUFFER = 1024;
 
     public static void close(Closeable closeable) {
         if (closeable != null) {
@@ -35,153 +36,38 @@ public class FileCopyDemo {
         System.out.println(fileCopyRunner + ":" + elapsed / ROUNDS);
     }
 
-    public static void main(String[] args) {
-        // 不使用buffer，最简单的文件复制
-        FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
-            @Override
-            public void fileCopy(File source, File target) {
-                InputStream in = null;
-                OutputStream out = null;
-                try {
-                    in = new FileInputStream(source);
-                    out = new FileOutputStream(target);
-                    int result;
-                    while ((result = in.read()) != -1) {
-                        out.write(result);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    close(in);
-                    close(out);
-                }
-            }
-
-            @Override
-            public String toString() {
-                return "noBufferStreamCopy";
-            }
-        };
-
-        // 使用bufferedxx
-        FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
-            @Override
-            public void fileCopy(File source, File target) {
-                InputStream in = null;
-                OutputStream out = null;
-                try {
-                    in = new BufferedInputStream(new FileInputStream(source));
-                    out = new BufferedOutputStream(new FileOutputStream(target));
-
-                    byte[] buffer = new byte[1024];
-                    while (in.read(buffer) != -1) {
-                        out.write(buffer);
-                    }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    close(in);
-                }
-            }
-            @Override
-            public String toString() {
-                return "bufferedStreamCopy";
-            }
-        };
-
-        // 使用Channel与Buffer实现文件复制
-        FileCopyRunner nioBufferCopy = new FileCopyRunner() {
-            @Override
-            public void fileCopy(File source, File target) {
-                FileChannel in = null;
-                FileChannel out = null;
-
-                try {
-                    in = new FileInputStream(source).getChannel();
-                    out = new FileOutputStream(target).getChannel();
-
-                    ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
-                    while (in.read(byteBuffer) != -1) {
-                        // 将buffer由读模式转换为写模式
-                        byteBuffer.flip();
-                        // 将buffer所有数据全部读取
-                        while (byteBuffer.hasRemaining()) {
-                            out.write(byteBuffer);
-                        }
-                        // 又将buffer从读模式转换为写模式
-                        byteBuffer.clear();
-
-                    }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    close(in);
-                    close(out);
-                }
-            }
-            @Override
-            public String toString() {
-                return "nioBufferCopy";
+    /**
+     * 生成指定大小的随机内容文件，已存在且大小一致时直接复用
+     */
+    public static File createFile(File file, long size) throws IOException {
+        if (file.length() == size) {
+            return file;
+        }
+        byte[] chunk = new byte[64 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
             }
-        };
-
-        // 使用两个channel实现文件复制
-        FileCopyRunner nioTransferCopy = new FileCopyRunner() {
-            @Override
-            public void fileCopy(File source, File target) {
-                FileChannel in = null;
-                FileChannel out = null;
-                try {
-                    in = new FileInputStream(source).getChannel();
-                    out = new FileOutputStream(target).getChannel();
-                    long transferrd = 0L;
-                    long size = in.size();
-                    while (transferrd != size) {
-                        transferrd += in.transferTo(0, size, out);
-                    }
+        }
+        return file;
+    }
 
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        // 小文件不到1M，中等大小文件100M，大文件500M
+        long[] sizes = {512 * 1024L, 100 * 1024 * 1024L, 500 * 1024 * 1024L};
+        for (long size : sizes) {
+            File source = createFile(new File(dir, "filecopy-source-" + size), size);
+            File target = new File(dir, "filecopy-target-" + size);
+            for (FileCopyStrategy strategy : FileCopyStrategy.values()) {
+                // 逐字节复制大文件需要数分钟，只用小文件演示
+                if (strategy == FileCopyStrategy.NO_BUFFER_STREAM && size > sizes[0]) {
+                    continue;
                 }
+                benchMark(strategy.create(BUFFER), source, target);
             }
-            @Override
-            public String toString() {
-                return "nioTransferCopy";
-            }
-        };
-
-        // 小文件，不到1M
-        File source = new File("G:\\source\\small.txt");
-        File target = new File("G:\\target\\small.txt");
-
-        benchMark(bufferedStreamCopy, source, target);
-        benchMark(nioBufferCopy, source, target);
-        benchMark(nioTransferCopy, source, target);
-        System.out.println("-------------------");
-
-        // 中等大小文件 100M
-        source = new File("G:\\source\\medium.pdf");
-        target = new File("G:\\target\\medium.pdf");
-
-        benchMark(bufferedStreamCopy, source, target);
-        benchMark(nioBufferCopy, source, target);
-        benchMark(nioTransferCopy, source, target);
-        System.out.println("-------------------");
-
-
-        // 大文件 500M
-        source = new File("G:\\source\\big.wav");
-        target = new File("G:\\target\\big.wav");
-        benchMark(bufferedStreamCopy, source, target);
-        benchMark(nioBufferCopy, source, target);
-        benchMark(nioTransferCopy, source, target);
-        System.out.println("-------------------");
-
+            System.out.println("-------------------");
+        }
     }
 }
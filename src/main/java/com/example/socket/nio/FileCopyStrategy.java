@@ -0,0 +1,51 @@
+package com.example.socket.nio;
+
+/**
+ * @description: 所有文件复制方式，按名称创建对应的FileCopyRunner，供FileCopyDemo和JMH基准测试使用
+ * @author: chenzhuo
+ * @create: 2021-03-26 20:30
+ */
+public enum FileCopyStrategy {
+
+    NO_BUFFER_STREAM {
+        @Override
+        public FileCopyRunner create(int bufferSize) {
+            return new NoBufferStreamCopy();
+        }
+    },
+    BUFFERED_STREAM {
+        @Override
+        public FileCopyRunner create(int bufferSize) {
+            return new BufferedStreamCopy(bufferSize);
+        }
+    },
+    NIO_BUFFER {
+        @Override
+        public FileCopyRunner create(int bufferSize) {
+            return new NioBufferCopy(bufferSize);
+        }
+    },
+    NIO_TRANSFER {
+        @Override
+        public FileCopyRunner create(int bufferSize) {
+            return new NioTransferCopy();
+        }
+    },
+    MAPPED_WINDOW {
+        @Override
+        public FileCopyRunner create(int bufferSize) {
+            return new MappedWindowCopy();
+        }
+    },
+    PARALLEL_CHUNK {
+        @Override
+        public FileCopyRunner create(int bufferSize) {
+            return new ParallelChunkCopy(bufferSize);
+        }
+    };
+
+    /**
+     * @param bufferSize 读写缓冲区大小，不使用缓冲区的方式会忽略它
+     */
+    public abstract FileCopyRunner create(int bufferSize);
+}
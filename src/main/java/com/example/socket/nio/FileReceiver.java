@@ -0,0 +1,81 @@
+package com.example.socket.nio;
+
+import com.example.socket.codec.FrameDecoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * @description: 从非阻塞socket接收一段指定长度的原始数据写入文件，服务器接收上传和客户端接收文件共用
+ * 文件内容紧跟在一个命令帧之后，解码器中已经读到的部分先写入文件，之后用transferFrom直接从socket读入文件
+ * 只在连接所属的selector线程上调用
+ * @author: chenzhuo
+ * @create: 2021-03-28 10:20
+ */
+class FileReceiver implements Closeable {
+
+    // 每次调用最多的传输次数，大文件不会独占selector线程
+    private static final int MAX_TRANSFERS_PER_CALL = 16;
+
+    private final FileChannel file;
+    private final long size;
+    private long position;
+
+    /**
+     * @param position 从文件的这个位置开始写，断点续传时为已经收到的字节数
+     * @param size     文件的总长度
+     */
+    FileReceiver(FileChannel file, long position, long size) {
+        this.file = file;
+        this.position = position;
+        this.size = size;
+    }
+
+    long position() {
+        return position;
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isComplete() {
+        return position >= size;
+    }
+
+    /**
+     * 接收当前可读的数据，socket暂时没有数据或者已经收完时返回
+     *
+     * @return false表示对方已经关闭连接
+     */
+    boolean receive(SocketChannel socket, FrameDecoder decoder) throws IOException {
+        for (int i = 0; i < MAX_TRANSFERS_PER_CALL && !isComplete(); i++) {
+            if (decoder.pending() > 0) {
+                file.position(position);
+                position += decoder.drainTo(file, size - position);
+                continue;
+            }
+            long transferred = file.transferFrom(socket, position, size - position);
+            if (transferred > 0) {
+                position += transferred;
+                continue;
+            }
+            // transferFrom无法区分暂时没有数据和连接已关闭，用一次普通读取确认，读到的数据下一轮写入文件
+            int read = socket.read(decoder.readBuffer());
+            if (read < 0) {
+                return false;
+            }
+            if (read == 0) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.socket.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @description: 通过FileChannel.map()按窗口映射源文件和目标文件，在两块映射内存之间直接拷贝
+ * 不经过read/write系统调用，也不需要用户态缓冲区；按窗口映射避免一次映射整个多GB文件
+ * @author: chenzhuo
+ * @create: 2021-03-27 16:45
+ */
+public class MappedWindowCopy implements FileCopyRunner {
+
+    public static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024L;
+
+    private final long windowSize;
+
+    public MappedWindowCopy() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedWindowCopy(long windowSize) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("windowSize must be in (0, 2GB): " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public void fileCopy(File source, File target) {
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            // 目标文件先设置成最终大小，READ_WRITE映射不能超出文件末尾
+            out.setLength(size);
+            for (long position = 0; position < size; position += windowSize) {
+                long length = Math.min(windowSize, size - position);
+                MappedByteBuffer src = inChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                MappedByteBuffer dst = outChannel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                dst.put(src);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "mappedWindowCopy";
+    }
+}
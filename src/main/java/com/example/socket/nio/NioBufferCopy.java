@@ -0,0 +1,52 @@
+package com.example.socket.nio;
+
+import com.example.socket.buffer.BufferPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @description: 使用Channel与Buffer实现文件复制
+ * 从池中借直接缓冲区，FileChannel读写堆缓冲区时还会再拷贝一次到临时直接缓冲区
+ * @author: chenzhuo
+ * @create: 2021-03-14 22:50
+ */
+public class NioBufferCopy implements FileCopyRunner {
+
+    private final int bufferSize;
+
+    public NioBufferCopy(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void fileCopy(File source, File target) {
+        ByteBuffer byteBuffer = BufferPool.DEFAULT.acquire(bufferSize);
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            while (in.read(byteBuffer) != -1) {
+                // 将buffer由写模式转换为读模式
+                byteBuffer.flip();
+                // 将buffer所有数据全部写出
+                while (byteBuffer.hasRemaining()) {
+                    out.write(byteBuffer);
+                }
+                // 又将buffer从读模式转换为写模式
+                byteBuffer.clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            BufferPool.DEFAULT.release(byteBuffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "nioBufferCopy";
+    }
+}
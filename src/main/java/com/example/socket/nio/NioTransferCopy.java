@@ -0,0 +1,35 @@
+package com.example.socket.nio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * @description: 使用两个channel通过transferTo实现文件复制，数据不经过用户态缓冲区
+ * @author: chenzhuo
+ * @create: 2021-03-14 22:50
+ */
+public class NioTransferCopy implements FileCopyRunner {
+
+    @Override
+    public void fileCopy(File source, File target) {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long transferred = 0L;
+            long size = in.size();
+            // transferTo一次不一定传输完，需要从已传输的位置继续
+            while (transferred < size) {
+                transferred += in.transferTo(transferred, size - transferred, out);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "nioTransferCopy";
+    }
+}
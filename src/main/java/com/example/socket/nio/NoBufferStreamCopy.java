@@ -0,0 +1,34 @@
+package com.example.socket.nio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * @description: 不使用buffer，逐字节读写，最简单的文件复制
+ * @author: chenzhuo
+ * @create: 2021-03-14 22:50
+ */
+public class NoBufferStreamCopy implements FileCopyRunner {
+
+    @Override
+    public void fileCopy(File source, File target) {
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new FileOutputStream(target)) {
+            int result;
+            while ((result = in.read()) != -1) {
+                out.write(result);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "noBufferStreamCopy";
+    }
+}
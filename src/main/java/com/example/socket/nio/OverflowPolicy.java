@@ -0,0 +1,25 @@
+package com.example.socket.nio;
+
+/**
+ * @description: 客户端出站队列超过高水位时的处理策略
+ * @author: chenzhuo
+ * @create: 2021-03-21 15:30
+ */
+public enum OverflowPolicy {
+
+    /**
+     * 丢弃发给该客户端的新消息，直到队列回落到低水位以下
+     */
+    DROP,
+
+    /**
+     * 直接断开该客户端
+     */
+    DISCONNECT,
+
+    /**
+     * 消息照常入队，但暂停读取发送方的数据，直到队列回落到低水位以下；
+     * 发送方不是nio连接（系统消息、历史回放、其它Transport的连接）时无法暂停，队列超过两倍高水位后按DROP处理
+     */
+    PAUSE_READER
+}
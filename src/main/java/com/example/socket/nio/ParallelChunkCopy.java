@@ -0,0 +1,110 @@
+package com.example.socket.nio;
+
+import com.example.socket.buffer.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @description: 将大文件切分成若干区间，由ForkJoin线程池并发复制
+ * 每个区间使用带position的read/write（pread/pwrite），多个线程共享同一对FileChannel互不影响，
+ * 适合NVMe这类需要多个并发请求才能跑满带宽的设备
+ * @author: chenzhuo
+ * @create: 2021-03-27 16:45
+ */
+public class ParallelChunkCopy implements FileCopyRunner {
+
+    public static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024L;
+
+    private final long chunkSize;
+    private final int bufferSize;
+    private final ForkJoinPool pool;
+
+    public ParallelChunkCopy(int bufferSize) {
+        this(DEFAULT_CHUNK_SIZE, bufferSize, ForkJoinPool.commonPool());
+    }
+
+    public ParallelChunkCopy(long chunkSize, int bufferSize, ForkJoinPool pool) {
+        if (chunkSize <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("chunkSize and bufferSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.bufferSize = bufferSize;
+        this.pool = pool;
+    }
+
+    @Override
+    public void fileCopy(File source, File target) {
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            long size = in.length();
+            // 先确定目标文件大小，各区间并发写入时不会互相扩展文件
+            out.setLength(size);
+            pool.invoke(new CopyTask(in.getChannel(), out.getChannel(), 0, size));
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class CopyTask extends RecursiveAction {
+        private final FileChannel in;
+        private final FileChannel out;
+        private final long start;
+        private final long end;
+
+        CopyTask(FileChannel in, FileChannel out, long start, long end) {
+            this.in = in;
+            this.out = out;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > chunkSize) {
+                // 二分切分，区间边界对齐到chunkSize
+                long middle = start + (end - start) / chunkSize / 2 * chunkSize;
+                if (middle == start) {
+                    middle = start + chunkSize;
+                }
+                invokeAll(new CopyTask(in, out, start, middle), new CopyTask(in, out, middle, end));
+                return;
+            }
+            ByteBuffer buffer = BufferPool.DEFAULT.acquire(bufferSize);
+            try {
+                long position = start;
+                while (position < end) {
+                    buffer.clear();
+                    if (end - position < buffer.remaining()) {
+                        buffer.limit((int) (end - position));
+                    }
+                    int read = in.read(buffer, position);
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    long writePosition = position;
+                    while (buffer.hasRemaining()) {
+                        writePosition += out.write(buffer, writePosition);
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                BufferPool.DEFAULT.release(buffer);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "parallelChunkCopy";
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.socket.nio;
+
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.util.HashedWheelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @description: 从Reactor：一个Selector一个线程，处理分配给它的连接的读写事件
+ * 其它线程对这些连接的操作（注册、刷新出站队列、恢复读取）都以任务的形式提交到这里执行；
+ * 延时任务（例如延迟合并的刷新）按到期时间排序，select的超时时间取最早的到期时间；
+ * 每个连接的空闲检查挂在时间轮上，数量与连接数相同，添加和取消都是O(1)，有未到期的检查时select最多等到下一个tick
+ * @author: chenzhuo
+ * @create: 2021-03-21 15:30
+ */
+class SubReactor implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(SubReactor.class);
+    // 空闲检测的精度，空闲超时是秒级的，晚100毫秒断开没有影响
+    private static final long TICK_MILLIS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final ChatServer chatServer;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 只在本线程访问
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    // 由本线程驱动，到期的任务在本线程上执行
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    // gathering write使用的数组，本线程上的所有连接共用
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[FlushPolicy.MAX_BATCH_BUFFERS];
+    private long scheduledSequence;
+    // 本轮事件处理开始的时间，读事件用它记录连接最后一次读到数据的时间，不必每次读取都调用System.nanoTime()
+    private long loopStartNanos = System.nanoTime();
+    private volatile Thread thread;
+
+    SubReactor(ChatServer chatServer) throws IOException {
+        this.chatServer = chatServer;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    HashedWheelTimer timer() {
+        return timer;
+    }
+
+    long loopStartNanos() {
+        return loopStartNanos;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // 提交任务到本线程执行，本线程提交的任务会在这一轮事件处理完之后执行；
+    // 延时任务和时间轮任务中提交的任务在下一轮select之前执行，select()检查到有任务时不阻塞
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // 在delayNanos之后于本线程执行，精度受select超时的毫秒粒度限制
+    void schedule(Runnable task, long delayNanos) {
+        ScheduledTask scheduledTask = new ScheduledTask(task, System.nanoTime() + delayNanos);
+        if (inEventLoop()) {
+            scheduledTask.sequence = scheduledSequence++;
+            scheduledTasks.add(scheduledTask);
+        } else {
+            execute(() -> {
+                scheduledTask.sequence = scheduledSequence++;
+                scheduledTasks.add(scheduledTask);
+            });
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                select();
+                // select()返回之后才开始计时，阻塞等待事件的时间不算在内
+                long loopStart = loopStartNanos = System.nanoTime();
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for (SelectionKey selectionKey : selectionKeys) {
+                    Connection connection = (Connection) selectionKey.attachment();
+                    try {
+                        chatServer.handles(selectionKey);
+                    } catch (IOException e) {
+                        // 单个客户端异常不影响worker上的其它连接
+                        chatServer.disconnect(connection);
+                    }
+                }
+                selectionKeys.clear();
+                runTasks();
+                runScheduledTasks();
+                timer.expireTimeouts(System.nanoTime());
+                chatServer.metrics().selectorLoopTime(System.nanoTime() - loopStart);
+            }
+        } catch (IOException e) {
+            log.error("worker异常退出", e);
+        } catch (ClosedSelectorException e) {
+            // 服务器正常关闭
+        }
+    }
+
+    private void select() throws IOException {
+        if (!tasks.isEmpty()) {
+            // 上一轮的延时任务或者时间轮任务（例如限速恢复后的转发）提交了任务，本线程提交时没有wakeup
+            selector.selectNow();
+            return;
+        }
+        long now = System.nanoTime();
+        ScheduledTask next = scheduledTasks.peek();
+        boolean timerPending = timer.size() > 0;
+        if (next == null && !timerPending) {
+            selector.select();
+            return;
+        }
+        long timeoutNanos = next == null ? Long.MAX_VALUE : next.deadline - now;
+        if (timerPending) {
+            timeoutNanos = Math.min(timeoutNanos, timer.nanosUntilNextTick(now));
+        }
+        if (timeoutNanos <= 0) {
+            selector.selectNow();
+        } else {
+            // select(0)表示无限等待，至少等待1毫秒
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos + 999_999)));
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask task;
+        while ((task = scheduledTasks.peek()) != null && task.deadline - now <= 0) {
+            scheduledTasks.poll();
+            try {
+                task.task.run();
+            } catch (RuntimeException e) {
+                log.error("延时任务执行失败", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("任务执行失败", e);
+            }
+        }
+    }
+
+    // 在本线程上断开所有连接再关闭selector，连接从ChatCore中移除，解码器的缓冲区归还到池中
+    void close() {
+        if (!selector.isOpen()) {
+            return;
+        }
+        execute(() -> {
+            // ChatServer.close()可能被调用多次，只有第一个任务需要执行
+            if (!selector.isOpen()) {
+                return;
+            }
+            for (SelectionKey key : selector.keys()) {
+                chatServer.disconnect((Connection) key.attachment());
+            }
+            ChatServer.close(selector);
+        });
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        private final Runnable task;
+        private final long deadline;
+        // 到期时间相同的任务按提交顺序执行
+        private long sequence;
+
+        ScheduledTask(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask o) {
+            long diff = deadline - o.deadline;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
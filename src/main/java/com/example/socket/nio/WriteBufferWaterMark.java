@@ -0,0 +1,36 @@
+package com.example.socket.nio;
+
+/**
+ * @description: 出站队列的高低水位（字节数）
+ * 超过高水位后连接变为不可写，回落到低水位以下才恢复可写
+ * @author: chenzhuo
+ * @create: 2021-03-21 15:30
+ */
+public final class WriteBufferWaterMark {
+
+    public static final WriteBufferWaterMark DEFAULT = new WriteBufferWaterMark(32 * 1024, 64 * 1024);
+
+    private final int low;
+    private final int high;
+
+    public WriteBufferWaterMark(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("invalid water mark: low=" + low + ", high=" + high);
+        }
+        this.low = low;
+        this.high = high;
+    }
+
+    public int low() {
+        return low;
+    }
+
+    public int high() {
+        return high;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBufferWaterMark(low: " + low + ", high: " + high + ")";
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.socket.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @description: 时间轮，用于大量连接的空闲超时
+ * 每个格子是一个链表，超时时间按tickDuration取整后放进对应的格子，超过一圈的记下剩余圈数；
+ * 添加、取消都是O(1)，每个tick只处理一个格子，代价是触发时间最多晚一个tickDuration；
+ * newTimeout()和cancel()可以在任意线程调用，新的Timeout先进入无锁队列，由驱动时间轮的线程放进格子；
+ * 时间轮本身没有线程，由调用expireTimeouts()的线程驱动（例如nio的SubReactor），也可以用start()启动一个专用线程；
+ * 取消的Timeout不会立即从格子中移除，轮到它所在的格子时丢弃，取消时已经释放了对任务的引用
+ * @author: chenzhuo
+ * @create: 2021-04-06 20:30
+ */
+public class HashedWheelTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    // 尚未触发、尚未取消的Timeout个数
+    private final AtomicInteger pending = new AtomicInteger();
+    // 已经处理过的tick数，只在驱动线程上访问
+    private long tick;
+    private volatile Thread thread;
+
+    /**
+     * @param ticksPerWheel 格子数，向上取整到2的幂
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("invalid wheel: tickDuration=" + tickDuration
+                    + ", ticksPerWheel=" + ticksPerWheel);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.wheel = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheel.length - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * 在delay之后由驱动时间轮的线程执行task，可以在任意线程调用
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(delay) - startTime);
+        pending.incrementAndGet();
+        newTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * 尚未触发、尚未取消的Timeout个数
+     */
+    public int size() {
+        return pending.get();
+    }
+
+    /**
+     * 距离下一个tick的纳秒数，小于等于0表示已经到期，应当调用expireTimeouts()
+     */
+    public long nanosUntilNextTick(long now) {
+        return startTime + (tick + 1) * tickNanos - now;
+    }
+
+    /**
+     * 处理到now为止所有到期的tick，在驱动线程上执行到期的任务；只能由一个线程调用
+     */
+    public void expireTimeouts(long now) {
+        transferNewTimeouts();
+        long elapsed = now - startTime;
+        while ((tick + 1) * tickNanos <= elapsed) {
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    // 每次最多转移一定数量，避免一次添加大量Timeout时长时间占用驱动线程
+    private void transferNewTimeouts() {
+        for (int i = 0; i < 100_000; i++) {
+            Timeout timeout = newTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // 已经过期的放进当前格子，下一次处理时触发
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * 启动一个专用线程驱动时间轮，用于没有自己的事件循环的调用方（例如aio的channel group）
+     */
+    public synchronized void start(String name) {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            Thread current = Thread.currentThread();
+            while (!current.isInterrupted()) {
+                long now = System.nanoTime();
+                long waitNanos = nanosUntilNextTick(now);
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(this, waitNanos);
+                } else {
+                    expireTimeouts(now);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止start()启动的线程，尚未触发的Timeout不再执行
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public static final class Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private volatile Runnable task;
+        // 相对于时间轮启动时间的纳秒数
+        private final long deadline;
+        private volatile int state;
+        // 以下字段只在驱动线程上访问
+        private long remainingRounds;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消尚未触发的Timeout，可以在任意线程调用
+         *
+         * @return false表示已经触发或者已经取消
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            // 格子中的节点要等到下次轮到时才移除，先释放对任务（通常是连接）的引用
+            task = null;
+            timer.pending.decrementAndGet();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            timer.pending.decrementAndGet();
+            Runnable task = this.task;
+            this.task = null;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("定时任务执行失败", e);
+            }
+        }
+    }
+
+    // 单向链表，只在驱动线程上访问
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        // 触发剩余圈数为0的Timeout，丢弃已取消的，其余的圈数减一
+        void expire() {
+            Timeout prev = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                boolean remove = timeout.isCancelled() || timeout.remainingRounds <= 0;
+                if (remove) {
+                    if (prev == null) {
+                        head = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    if (timeout == tail) {
+                        tail = prev;
+                    }
+                    timeout.next = null;
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                    prev = timeout;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
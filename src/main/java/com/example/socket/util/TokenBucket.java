@@ -0,0 +1,69 @@
+package com.example.socket.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @description: 无锁令牌桶，每秒补充permitsPerSecond个令牌，最多积攒burst个
+ * 令牌数和上次补充的时间合成一个long：只记录"桶重新装满的时刻"fullAt，
+ * 当前令牌数就是(now + burst * 每个令牌的纳秒数 - fullAt) / 每个令牌的纳秒数，取走一个令牌就是把fullAt推后一个令牌的时间；
+ * 这样不用把时间戳截短塞进几十位里，也不会回绕，一次CAS就能同时更新令牌数和时间，多个线程共用一个桶（例如房间）时不需要加锁
+ * @author: chenzhuo
+ * @create: 2021-04-12 20:10
+ */
+public final class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long nanosPerPermit;
+    // burst个令牌对应的时间
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * 创建时桶是满的
+     */
+    public TokenBucket(long permitsPerSecond, long burst, long nowNanos) {
+        if (permitsPerSecond <= 0 || permitsPerSecond > NANOS_PER_SECOND || burst <= 0) {
+            throw new IllegalArgumentException("invalid token bucket: permitsPerSecond=" + permitsPerSecond
+                    + ", burst=" + burst);
+        }
+        this.nanosPerPermit = NANOS_PER_SECOND / permitsPerSecond;
+        if (burst > Long.MAX_VALUE / 4 / nanosPerPermit) {
+            throw new IllegalArgumentException("burst too large: " + burst);
+        }
+        this.burstNanos = burst * nanosPerPermit;
+        this.fullAt = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * 取走一个令牌，没有令牌时也取走（透支），由调用方按返回值暂停
+     *
+     * @return 距离下一个令牌可用的纳秒数，小于等于0表示还有令牌可以立即使用
+     */
+    public long acquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            // 桶早已装满时从现在开始算，空闲期间补充的令牌不会超过burst个
+            long next = (current - nowNanos < 0 ? nowNanos : current) + nanosPerPermit;
+            if (fullAt.compareAndSet(current, next)) {
+                return next - burstNanos + nanosPerPermit - nowNanos;
+            }
+        }
+    }
+
+    /**
+     * 当前可用的令牌数，透支时为0
+     */
+    public long available(long nowNanos) {
+        long debt = fullAt.get() - nowNanos;
+        if (debt <= 0) {
+            return burstNanos / nanosPerPermit;
+        }
+        return Math.max(0, (burstNanos - debt) / nanosPerPermit);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket(nanosPerPermit: " + nanosPerPermit + ", burst: " + burstNanos / nanosPerPermit + ")";
+    }
+}
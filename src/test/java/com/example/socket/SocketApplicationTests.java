@@ -1,13 +1,34 @@
 package com.example.socket;
 
+import com.example.socket.autoconfigure.ChatServerLifecycle;
+import com.example.socket.chat.Transport;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 端口0由操作系统分配，避免与本机正在运行的服务器冲突
+@SpringBootTest(properties = {"chat.server.nio.port=0", "chat.server.aio.enabled=true", "chat.server.aio.port=0"})
 class SocketApplicationTests {
 
+    @Autowired
+    private ChatServerLifecycle chatServerLifecycle;
+
+    @Autowired
+    private List<Transport> transports;
+
     @Test
     void contextLoads() {
     }
 
+    @Test
+    void startsOnlyEnabledTransports() {
+        assertTrue(chatServerLifecycle.isRunning());
+        assertEquals(2, transports.size());
+    }
+
 }
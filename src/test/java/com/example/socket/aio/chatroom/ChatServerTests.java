@@ -0,0 +1,279 @@
+package com.example.socket.aio.chatroom;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.BufferPoolMetrics;
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.ChatSession;
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.chat.RateLimitPolicy;
+import com.example.socket.codec.Framing;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatServerTests {
+
+    private static final String PAYLOAD = String.join("", Collections.nCopies(1000, "x"));
+
+    private ChatServer server;
+    // 消息帧从独立的池中分配，可以检查出站队列中的帧是否都已归还
+    private BufferPool pool = new BufferPool();
+    private ChatCore core = new ChatCore(Framing.LINE, StandardCharsets.UTF_8, pool);
+    private int port;
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void rateLimitedFramesAreDecodedAfterResume() throws Exception {
+        // 每200毫秒一个令牌，三个帧一次读进来，后两个在恢复之后由group线程解码
+        core.setSessionRateLimit(new RateLimitPolicy(5, 1));
+        ChatServer chatServer = newServer();
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect()) {
+            awaitSessions(2);
+            BufferedReader in = reader(recipient);
+            long start = System.nanoTime();
+            send(sender, "m1\nm2\nm3\n");
+
+            assertTrue(in.readLine().endsWith(":m1"));
+            assertTrue(in.readLine().endsWith(":m2"));
+            assertTrue(in.readLine().endsWith(":m3"));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // 时间轮的精度是100毫秒
+            assertTrue(millis >= 350 && millis < 1000, "m3 arrived after " + millis + "ms");
+        }
+    }
+
+    @Test
+    void concurrentWritesToOneClientArriveInOrderAndAreReleasedOnClose() throws Exception {
+        ChatServer chatServer = newServer();
+        chatServer.setChannelGroup(ChannelGroupType.FIXED, 4);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        // AIO不会暂停发送方，出站队列要能容纳接收方来不及读的部分
+        chatServer.setMaxPendingBytes(64 * 1024 * 1024);
+        chatServer.setFlushPolicy(new FlushPolicy(8 * 1024, 0, TimeUnit.MILLISECONDS));
+        start(chatServer);
+
+        int senders = 3;
+        int count = 3000;
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < senders; i++) {
+                sockets.add(connect());
+            }
+            // 接收窗口小，每次写只能写出gathering write的一部分
+            Socket recipient = connect(4096);
+            sockets.add(recipient);
+            awaitSessions(senders + 1);
+            long baseline = outstanding();
+
+            // 私聊给接收方，多个group线程同时向同一个出站队列入队
+            String prefix = "@" + idOf(recipient) + " ";
+            for (int i = 0; i < senders; i++) {
+                flood(sockets.get(i), prefix, count);
+            }
+            BufferedReader in = reader(recipient);
+            Map<String, Integer> next = new HashMap<>();
+            for (int i = 0; i < senders * count; i++) {
+                String[] parts = in.readLine().split(":", 3);
+                int expected = next.getOrDefault(parts[0], 0);
+                assertEquals(expected, Integer.parseInt(parts[1]), parts[0]);
+                assertEquals(PAYLOAD, parts[2]);
+                next.put(parts[0], expected + 1);
+            }
+            assertEquals(senders, next.size());
+
+            // 接收方不再读取，关闭时出站队列中的帧全部归还
+            for (int i = 0; i < senders; i++) {
+                flood(sockets.get(i), prefix, count);
+            }
+            awaitPending();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (core.sessionCount() > 0 || outstanding() != baseline) {
+                assertTrue(System.nanoTime() < deadline,
+                        "sessions " + core.sessionCount() + ", outstanding " + outstanding() + " > " + baseline);
+                Thread.sleep(10);
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    void closingDuringPendingWriteReleasesFramesAfterTheWriteEnds() throws Exception {
+        ChatServer chatServer = newServer();
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        // 接收方不读取，积压超过1MB时在发送方的读回调中关闭连接，这时gathering write还在进行
+        chatServer.setMaxPendingBytes(1024 * 1024);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect(4096)) {
+            awaitSessions(2);
+            long baseline = outstanding();
+            flood(sender, "@" + idOf(recipient) + " ", 20000);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (core.sessionCount() > 1 || outstanding() != baseline) {
+                assertTrue(System.nanoTime() < deadline,
+                        "sessions " + core.sessionCount() + ", outstanding " + outstanding() + " > " + baseline);
+                Thread.sleep(10);
+            }
+            assertEquals(0, core.pendingBytes());
+
+            // 关闭之前已经发出的内容都是发给接收方的完整消息，没有混入其它内容
+            List<String> lines = new ArrayList<>();
+            BufferedReader in = reader(recipient);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (SocketException e) {
+                // 服务器关闭时还有未发送的数据，连接被重置
+            }
+            assertTrue(lines.size() > 1, "received " + lines.size());
+            for (int i = 0; i < lines.size() - 1; i++) {
+                String[] parts = lines.get(i).split(":", 3);
+                assertEquals(i, Integer.parseInt(parts[1]));
+                assertEquals(PAYLOAD, parts[2]);
+            }
+        }
+    }
+
+    // 借出还没有归还的缓冲区个数，包括ChatCore预先编码的心跳帧
+    private long outstanding() {
+        BufferPoolMetrics metrics = pool.metrics();
+        return metrics.threadCacheHits() + metrics.poolHits() + metrics.allocations() + metrics.unpooledAllocations()
+                - metrics.releases();
+    }
+
+    private void awaitPending() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (core.pendingBytes() == 0) {
+            assertTrue(System.nanoTime() < deadline, "nothing queued");
+            Thread.sleep(5);
+        }
+    }
+
+    private ChatServer newServer() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer chatServer = new ChatServer(port);
+        chatServer.setChannelGroup(ChannelGroupType.FIXED, 2);
+        return chatServer;
+    }
+
+    private void start(ChatServer chatServer) {
+        server = chatServer;
+        Thread thread = new Thread(() -> chatServer.start(core), "aio-server-test");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        return connect(0);
+    }
+
+    // 服务器在另一个线程上启动，连接被拒绝时稍后重试；receiveBufferSize为0时使用操作系统默认值
+    private Socket connect(int receiveBufferSize) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                if (receiveBufferSize > 0) {
+                    socket.setReceiveBufferSize(receiveBufferSize);
+                }
+                socket.connect(new InetSocketAddress("localhost", port));
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (ConnectException e) {
+                socket.close();
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private void awaitSessions(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (core.sessionCount() < count) {
+            assertTrue(System.nanoTime() < deadline, "sessions not registered");
+            Thread.sleep(5);
+        }
+    }
+
+    // 在另一个线程上发送count条带序号的消息
+    private static void flood(Socket sender, String prefix, int count) {
+        Thread thread = new Thread(() -> {
+            try {
+                OutputStream out = new BufferedOutputStream(sender.getOutputStream(), 64 * 1024);
+                for (int i = 0; i < count; i++) {
+                    out.write((prefix + i + ":" + PAYLOAD + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // 测试结束时关闭了socket
+            }
+        }, "flood");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 连接名称以服务器看到的客户端端口结尾
+    private long idOf(Socket socket) {
+        String suffix = "[" + socket.getLocalPort() + "]";
+        for (long id = 1; id <= core.sessionCount(); id++) {
+            ChatSession session = core.session(id);
+            if (session != null && session.name().endsWith(suffix)) {
+                return id;
+            }
+        }
+        throw new AssertionError("no session for " + socket);
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String msg) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(msg.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.socket.bio.server;
+
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.IdlePolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatServerTests {
+
+    private static final String PAYLOAD = String.join("", Collections.nCopies(1000, "x"));
+
+    private ChatServer server;
+    private ChatCore core = new ChatCore();
+    private int port;
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void slowRecipientDoesNotBlockTheSenderOrTheRoom() throws Exception {
+        ChatServer chatServer = newServer();
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        // 出站队列要能容纳超出socket缓冲区的部分
+        chatServer.setMaxPendingBytes(64 * 1024 * 1024);
+        start(chatServer);
+
+        int count = 10_000;
+        try (Socket sender = connect(); Socket fast = connect(0); Socket slow = connect(4096)) {
+            awaitSessions(3);
+            flood(sender, count);
+
+            // 慢的接收方不读，积压在它自己的出站队列中，快的接收方照常收到全部消息
+            BufferedReader in = reader(fast);
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, sequence(in.readLine()));
+            }
+            assertTrue(core.pendingBytes() > 0, "slow recipient has nothing queued");
+
+            BufferedReader slowIn = reader(slow);
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, sequence(slowIn.readLine()));
+            }
+            assertTrue(core.awaitDrained(5, TimeUnit.SECONDS), "pending " + core.pendingBytes());
+        }
+    }
+
+    @Test
+    void recipientIsDisconnectedAboveMaxPendingBytes() throws Exception {
+        ChatServer chatServer = newServer();
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setMaxPendingBytes(256 * 1024);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket slow = connect(4096)) {
+            awaitSessions(2);
+            flood(sender, 20_000);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (core.sessionCount() > 1 || core.pendingBytes() > 0) {
+                assertTrue(System.nanoTime() < deadline,
+                        "sessions " + core.sessionCount() + ", pending " + core.pendingBytes());
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private ChatServer newServer() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        return new ChatServer(port, false, 4);
+    }
+
+    private void start(ChatServer chatServer) {
+        server = chatServer;
+        Thread thread = new Thread(() -> chatServer.start(core), "bio-server-test");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        return connect(0);
+    }
+
+    // 服务器在另一个线程上启动，连接被拒绝时稍后重试；receiveBufferSize为0时使用操作系统默认值
+    private Socket connect(int receiveBufferSize) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                if (receiveBufferSize > 0) {
+                    socket.setReceiveBufferSize(receiveBufferSize);
+                }
+                socket.connect(new InetSocketAddress("localhost", port));
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (ConnectException e) {
+                socket.close();
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private void awaitSessions(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (core.sessionCount() < count) {
+            assertTrue(System.nanoTime() < deadline, "sessions not registered");
+            Thread.sleep(5);
+        }
+    }
+
+    // 在另一个线程上发送count条带序号的消息
+    private static void flood(Socket sender, int count) {
+        Thread thread = new Thread(() -> {
+            try {
+                OutputStream out = new BufferedOutputStream(sender.getOutputStream(), 64 * 1024);
+                for (int i = 0; i < count; i++) {
+                    out.write((i + ":" + PAYLOAD + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // 测试结束时关闭了socket
+            }
+        }, "flood");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // "名称:序号:内容"
+    private static int sequence(String line) {
+        return Integer.parseInt(line.split(":", 3)[1]);
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+}
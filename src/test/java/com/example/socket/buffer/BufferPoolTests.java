@@ -0,0 +1,51 @@
+package com.example.socket.buffer;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTests {
+
+    @Test
+    void reusesReleasedBuffersOfSameSizeClass() {
+        BufferPool pool = new BufferPool(BufferPool.LeakDetection.PARANOID);
+        ByteBuffer first = pool.acquire(1000);
+        assertTrue(first.isDirect());
+        assertEquals(1024, first.capacity());
+        assertEquals(1000, first.limit());
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(600);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(600, second.limit());
+
+        BufferPoolMetrics metrics = pool.metrics();
+        assertEquals(1, metrics.allocations());
+        assertEquals(1, metrics.threadCacheHits());
+        assertEquals(1, metrics.releases());
+    }
+
+    @Test
+    void sharedBufferReturnsToPoolAfterLastRelease() {
+        BufferPool pool = new BufferPool(BufferPool.LeakDetection.DISABLED);
+        ByteBuffer buffer = pool.acquire(16);
+        buffer.put((byte) 1).flip();
+        SharedBuffer shared = new SharedBuffer(buffer, pool);
+        shared.retain();
+
+        ByteBuffer view = shared.view();
+        view.get();
+        assertEquals(1, shared.readableBytes());
+        assertTrue(view.isReadOnly());
+
+        assertFalse(shared.release());
+        assertTrue(shared.release());
+        assertSame(buffer, pool.acquire(16));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.socket.buffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ReceiveBufferSizerTests {
+
+    @Test
+    void sizesAreRoundedUpToPowersOfTwo() {
+        ReceiveBufferSizer sizer = new ReceiveBufferSizer(100, 1000, 60000);
+        assertEquals(128, sizer.minimum());
+        assertEquals(1024, sizer.initial());
+        assertEquals(64 * 1024, sizer.maximum());
+        assertThrows(IllegalArgumentException.class, () -> new ReceiveBufferSizer(1024, 256, 4096));
+    }
+
+    @Test
+    void growsQuicklyWhenReadsFillTheBuffer() {
+        ReceiveBufferSizer.Handle handle = ReceiveBufferSizer.DEFAULT.newHandle();
+        assertEquals(1024, handle.guess());
+        handle.record(1024);
+        assertEquals(16 * 1024, handle.guess());
+        handle.record(16 * 1024);
+        assertEquals(64 * 1024, handle.guess());
+        handle.record(64 * 1024);
+        assertEquals(64 * 1024, handle.guess());
+    }
+
+    @Test
+    void shrinksOneStepAfterTwoSmallReads() {
+        ReceiveBufferSizer.Handle handle = ReceiveBufferSizer.DEFAULT.newHandle();
+        handle.record(10);
+        assertEquals(1024, handle.guess());
+        handle.record(10);
+        assertEquals(512, handle.guess());
+        // 介于低一级和当前大小之间的读取不改变预测
+        handle.record(300);
+        assertEquals(512, handle.guess());
+        for (int i = 0; i < 10; i++) {
+            handle.record(10);
+        }
+        assertEquals(256, handle.guess());
+    }
+
+    @Test
+    void fixedNeverChanges() {
+        ReceiveBufferSizer.Handle handle = ReceiveBufferSizer.fixed(2048).newHandle();
+        handle.record(2048);
+        handle.record(1);
+        handle.record(1);
+        assertEquals(2048, handle.guess());
+    }
+}
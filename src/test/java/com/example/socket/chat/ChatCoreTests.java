@@ -0,0 +1,180 @@
+package com.example.socket.chat;
+
+import com.example.socket.buffer.SharedBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatCoreTests {
+
+    @Test
+    void forwardsOnlyWithinCurrentRoom() {
+        ChatCore core = new ChatCore();
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+        RecordingSession c = connect(core);
+
+        core.onMessage(a, "/join r1");
+        core.onMessage(b, "/join r1");
+        core.onMessage(a, "hello");
+
+        assertEquals(list("已进入房间[r1]"), a.received);
+        assertEquals(list("已进入房间[r1]", "[r1]" + a.name() + ":hello"), b.received);
+        assertTrue(c.received.isEmpty());
+    }
+
+    @Test
+    void directMessagesIgnoreRooms() {
+        ChatCore core = new ChatCore();
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+        core.onMessage(b, "/join r1");
+
+        core.onMessage(a, "@" + b.id() + " psst");
+        core.onMessage(a, "@999 anyone");
+
+        assertEquals(a.name() + "(私聊):psst", b.received.get(1));
+        assertEquals(list("客户端#999不在线"), a.received);
+    }
+
+    @Test
+    void quitIsForwardedThenDisconnects() {
+        ChatCore core = new ChatCore();
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+
+        assertFalse(core.onMessage(a, "quit"));
+
+        assertTrue(a.closed);
+        assertEquals(list(a.name() + ":quit"), b.received);
+        assertEquals(1, core.sessionCount());
+        core.onMessage(b, "still here");
+        assertEquals(0, a.received.size());
+    }
+
+    @Test
+    void heartbeatsAreAnsweredButNotForwarded() {
+        ChatCore core = new ChatCore();
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+
+        core.ping(a);
+        core.ping(a);
+        assertTrue(core.onMessage(a, "/pong"));
+        assertTrue(core.onMessage(b, "/ping"));
+
+        assertEquals(list("/ping", "/ping"), a.received);
+        assertEquals(list("/pong"), b.received);
+    }
+
+    @Test
+    void payloadBytesAreForwardedUnchanged() {
+        ChatCore core = new ChatCore();
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+        core.onMessage(a, ByteBuffer.wrap("/join 房间".getBytes(StandardCharsets.UTF_8)));
+        core.onMessage(b, ByteBuffer.wrap("/join 房间".getBytes(StandardCharsets.UTF_8)));
+
+        ByteBuffer frame = ByteBuffer.wrap("你好 /join quit".getBytes(StandardCharsets.UTF_8));
+        assertTrue(core.onMessage(a, frame));
+        core.onMessage(a, "/leave");
+        core.onMessage(a, "lobby again");
+
+        assertEquals(list("已进入房间[房间]", "已离开房间[房间]"), a.received);
+        assertEquals(list("已进入房间[房间]", "[房间]" + a.name() + ":你好 /join quit"), b.received);
+    }
+
+    @Test
+    void exhaustedSessionIsSuspendedAfterItsMessageIsForwarded() {
+        ChatCore core = new ChatCore();
+        core.setSessionRateLimit(new RateLimitPolicy(10, 2));
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+
+        assertTrue(core.onMessage(a, "1"));
+        assertFalse(core.onMessage(a, "2"));
+        // 不丢弃消息，只是暂停读取
+        assertEquals(list(a.name() + ":1", a.name() + ":2"), b.received);
+        assertEquals(1, a.suspensions.size());
+        assertTrue(a.suspensions.get(0) > 0 && a.suspensions.get(0) <= TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(a.closed);
+        assertTrue(core.onMessage(b, "b has its own bucket"));
+    }
+
+    @Test
+    void roomBucketIsSharedByAllSenders() {
+        ChatCore core = new ChatCore();
+        core.setRoomRateLimit(new RateLimitPolicy(10, 3));
+        RecordingSession a = connect(core);
+        RecordingSession b = connect(core);
+        RecordingSession c = connect(core);
+
+        assertTrue(core.onMessage(a, "1"));
+        assertTrue(core.onMessage(b, "2"));
+        assertFalse(core.onMessage(a, "3"));
+        assertFalse(core.onMessage(b, "4"));
+        assertEquals(list(a.name() + ":1", b.name() + ":2", a.name() + ":3", b.name() + ":4"), c.received);
+        // 命令不消耗房间的令牌，其它房间有自己的令牌桶
+        assertTrue(core.onMessage(c, "/join quiet"));
+        assertTrue(core.onMessage(c, "alone"));
+        assertEquals(1, a.suspensions.size());
+        assertEquals(1, b.suspensions.size());
+        assertTrue(c.suspensions.isEmpty());
+    }
+
+    private static RecordingSession connect(ChatCore core) {
+        long id = core.nextId();
+        RecordingSession session = new RecordingSession(id, ChatCore.clientName(id, 10000 + (int) id));
+        core.connected(session);
+        return session;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static final class RecordingSession extends ChatSession {
+        private final List<String> received = new ArrayList<>();
+        private final List<Long> suspensions = new ArrayList<>();
+        private boolean closed;
+
+        RecordingSession(long id, String name) {
+            super(id, name);
+        }
+
+        @Override
+        public boolean write(SharedBuffer frame, ChatSession sender) {
+            try {
+                ByteBuffer view = frame.view();
+                // 去掉行分隔符
+                view.limit(view.limit() - 1);
+                received.add(StandardCharsets.UTF_8.decode(view).toString());
+                return true;
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        protected void suspendRead(long delayNanos) {
+            suspensions.add(delayNanos);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
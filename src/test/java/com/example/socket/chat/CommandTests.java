@@ -0,0 +1,41 @@
+package com.example.socket.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandTests {
+
+    private static final Command JOIN = new Command("/join");
+
+    private static ByteBuffer frame(String msg) {
+        return ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void matchesOnBytesWithoutMovingPosition() {
+        ByteBuffer frame = frame("/join 大厅");
+        assertTrue(JOIN.matchesWithArgument(frame));
+        assertFalse(JOIN.matches(frame));
+        assertEquals(0, frame.position());
+        assertEquals("大厅", StandardCharsets.UTF_8.decode(JOIN.argument(frame)).toString());
+
+        assertTrue(JOIN.matches(frame("/join")));
+        assertTrue(JOIN.matchesWithOptionalArgument(frame("/join")));
+        assertFalse(JOIN.matchesWithArgument(frame("/join")));
+        assertEquals(0, JOIN.argument(frame("/join")).remaining());
+    }
+
+    @Test
+    void rejectsLookalikes() {
+        assertFalse(JOIN.matchesWithOptionalArgument(frame("/joinx")));
+        assertFalse(JOIN.matchesWithOptionalArgument(frame("/jo")));
+        assertFalse(JOIN.matchesWithOptionalArgument(frame(" /join r1")));
+        assertFalse(JOIN.matchesWithOptionalArgument(frame("加入/join r1")));
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.socket.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DirectMessageTests {
+
+    private static DirectMessage parse(String msg) {
+        return DirectMessage.parse(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void parsesRecipientAndText() {
+        DirectMessage direct = parse("@42 hello there");
+        assertEquals(42, direct.recipientId());
+        assertEquals("hello there", StandardCharsets.UTF_8.decode(direct.text()).toString());
+    }
+
+    @Test
+    void ordinaryMessagesAreNotDirect() {
+        assertNull(parse("hello"));
+        assertNull(parse("@bob hello"));
+        assertNull(parse("@42"));
+        assertNull(parse("@42 "));
+        assertNull(parse("@ hello"));
+        assertNull(parse("@99999999999999999999 hello"));
+        assertNull(parse(""));
+    }
+}
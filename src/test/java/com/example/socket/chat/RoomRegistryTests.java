@@ -0,0 +1,62 @@
+package com.example.socket.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomRegistryTests {
+
+    @Test
+    void routesOnlyToRoomMembers() {
+        RoomRegistry<String> rooms = new RoomRegistry<>();
+        rooms.join("a", 1, "one");
+        rooms.join("a", 2, "two");
+        rooms.join("b", 3, "three");
+
+        assertEquals(2, rooms.members("a").size());
+        assertTrue(rooms.members("a").contains("two"));
+        assertFalse(rooms.members("a").contains("three"));
+        assertTrue(rooms.members("missing").isEmpty());
+    }
+
+    @Test
+    void emptyRoomsAreRemoved() {
+        RoomRegistry<String> rooms = new RoomRegistry<>();
+        rooms.join("a", 1, "one");
+        rooms.join("b", 1, "one");
+        rooms.join("b", 2, "two");
+        assertTrue(rooms.leave("a", 1));
+        assertFalse(rooms.leave("a", 1));
+        assertEquals(1, rooms.roomCount());
+
+        rooms.leaveAll(1);
+        assertEquals(1, rooms.members("b").size());
+        assertTrue(rooms.rooms(1).isEmpty());
+        rooms.leaveAll(2);
+        assertEquals(0, rooms.roomCount());
+    }
+
+    @Test
+    void membershipChangesDuringIteration() {
+        RoomRegistry<String> rooms = new RoomRegistry<>();
+        for (long id = 0; id < 100; id++) {
+            rooms.join("a", id, "c" + id);
+        }
+        List<String> seen = new ArrayList<>();
+        long next = 100;
+        for (String member : rooms.members("a")) {
+            seen.add(member);
+            // 转发过程中有人加入、离开
+            if (next < 150) {
+                rooms.join("a", next++, "late");
+            }
+            rooms.leave("a", seen.size() - 1);
+        }
+        assertTrue(seen.size() >= 1);
+    }
+}
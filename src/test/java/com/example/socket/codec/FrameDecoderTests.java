@@ -0,0 +1,121 @@
+package com.example.socket.codec;
+
+import com.example.socket.buffer.BufferPool;
+import com.example.socket.buffer.ReceiveBufferSizer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameDecoderTests {
+
+    private static void feed(FrameDecoder decoder, byte[] bytes, List<String> frames) throws TooLongFrameException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer buffer = decoder.readBuffer();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+            decoder.decode(frame -> frames.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        }
+    }
+
+    @Test
+    void lineFramesSplitAndMerged() throws TooLongFrameException {
+        FrameDecoder decoder = Framing.LINE.newDecoder(16);
+        List<String> frames = new ArrayList<>();
+        feed(decoder, "a\nb\r\nc".getBytes(StandardCharsets.UTF_8), frames);
+        feed(decoder, "cc\n".getBytes(StandardCharsets.UTF_8), frames);
+        assertEquals(3, frames.size());
+        assertEquals("a", frames.get(0));
+        assertEquals("b", frames.get(1));
+        assertEquals("ccc", frames.get(2));
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test
+    void lengthFieldFramesLargerThanInitialBuffer() throws TooLongFrameException {
+        FrameDecoder decoder = Framing.LENGTH_FIELD.newDecoder(8192);
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            payload.append('x');
+        }
+        ByteBuffer first = Framing.LENGTH_FIELD.encode(StandardCharsets.UTF_8.encode(payload.toString()));
+        ByteBuffer second = Framing.LENGTH_FIELD.encode(StandardCharsets.UTF_8.encode("hi"));
+        byte[] bytes = new byte[first.remaining() + second.remaining()];
+        first.get(bytes, 0, first.remaining());
+        second.get(bytes, bytes.length - second.remaining(), second.remaining());
+
+        List<String> frames = new ArrayList<>();
+        feed(decoder, bytes, frames);
+        assertEquals(2, frames.size());
+        assertEquals(payload.toString(), frames.get(0));
+        assertEquals("hi", frames.get(1));
+    }
+
+    @Test
+    void rejectsFramesOverLimit() {
+        FrameDecoder lines = Framing.LINE.newDecoder(4);
+        assertThrows(TooLongFrameException.class,
+                () -> feed(lines, "abcdefgh".getBytes(StandardCharsets.UTF_8), new ArrayList<>()));
+
+        FrameDecoder lengthField = Framing.LENGTH_FIELD.newDecoder(4);
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(5);
+        assertThrows(TooLongFrameException.class,
+                () -> feed(lengthField, header.array(), new ArrayList<>()));
+    }
+
+    @Test
+    void drainsRawBytesFollowingFrame() throws IOException {
+        FrameDecoder decoder = Framing.LINE.newDecoder(16);
+        decoder.readBuffer().put("/file\nrawdatanext\n".getBytes(StandardCharsets.UTF_8));
+        List<String> frames = new ArrayList<>();
+        // 读到命令帧之后停止解码，剩下的是原始数据
+        decoder.decode(frame -> !frames.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        assertEquals(1, frames.size());
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        assertEquals(7, decoder.drainTo(Channels.newChannel(raw), 7));
+        assertEquals("rawdata", new String(raw.toByteArray(), StandardCharsets.UTF_8));
+
+        decoder.decode(frame -> frames.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        assertEquals("next", frames.get(1));
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test
+    void pooledBufferFollowsReadSizesAndIsReturnedWhenEmpty() throws TooLongFrameException {
+        BufferPool pool = new BufferPool(BufferPool.LeakDetection.DISABLED);
+        FrameDecoder decoder = Framing.LINE.newDecoder(64 * 1024, pool, ReceiveBufferSizer.DEFAULT);
+        ByteBuffer buffer = decoder.readBuffer();
+        assertEquals(1024, buffer.remaining());
+        // 一次读满，下一次准备更大的空间，半包保留
+        byte[] burst = new byte[1024];
+        burst[10] = '\n';
+        buffer.put(burst);
+        decoder.readComplete(burst.length);
+        List<String> frames = new ArrayList<>();
+        decoder.decode(frame -> frames.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        assertEquals(1, frames.size());
+        assertEquals(1013, decoder.pending());
+        assertTrue(decoder.readBuffer().remaining() >= 16 * 1024);
+
+        decoder.readBuffer().put((byte) '\n');
+        decoder.readComplete(1);
+        decoder.decode(frame -> frames.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        assertEquals(2, frames.size());
+        // 没有半包时缓冲区已经归还
+        assertEquals(0, decoder.pending());
+        assertEquals(pool.metrics().releases(), pool.metrics().allocations());
+        decoder.release();
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.socket.history;
+
+import com.example.socket.buffer.SharedBuffer;
+import com.example.socket.codec.FrameListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTests {
+
+    private File directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("message-log").toFile();
+    }
+
+    @AfterEach
+    void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    void replaysOnlyRequestedRoomAfterReopen() throws IOException {
+        // close()写完已经入队的消息
+        try (MessageLog log = new MessageLog(directory, 4096, 4)) {
+            log.append("lobby", frame("a"));
+            log.append("r1", frame("b"));
+            log.append("lobby", frame("c"));
+        }
+
+        try (MessageLog log = new MessageLog(directory, 4096, 4)) {
+            assertEquals(3, log.endOffset());
+            List<String> lobby = new ArrayList<>();
+            assertEquals(3, log.read(0, "lobby", 1024, collect(lobby)));
+            assertEquals(list("a", "c"), lobby);
+
+            List<String> fromOne = new ArrayList<>();
+            assertEquals(3, log.read(1, "lobby", 1024, collect(fromOne)));
+            assertEquals(list("c"), fromOne);
+
+            List<String> none = new ArrayList<>();
+            assertEquals(3, log.read(3, "r1", 1024, collect(none)));
+            assertTrue(none.isEmpty());
+        }
+    }
+
+    @Test
+    void rollsSegmentsAndDeletesOldest() throws IOException {
+        // 每条记录10字节头 + 5字节房间名 + 8字节帧，一个段放4条
+        try (MessageLog log = new MessageLog(directory, 100, 2)) {
+            for (int i = 0; i < 40; i++) {
+                log.append("lobby", frame(String.format("msg-%04d", i)));
+            }
+        }
+
+        try (MessageLog log = new MessageLog(directory, 100, 2)) {
+            assertEquals(40, log.endOffset());
+            assertEquals(2, directory.listFiles((dir, name) -> name.endsWith(".log")).length);
+            long start = log.startOffset();
+            assertTrue(start > 0);
+
+            List<String> frames = new ArrayList<>();
+            assertEquals(40, log.read(0, "lobby", 1024, collect(frames)));
+            assertEquals(40 - start, frames.size());
+            assertEquals(String.format("msg-%04d", start), frames.get(0));
+            assertEquals("msg-0039", frames.get(frames.size() - 1));
+        }
+    }
+
+    @Test
+    void truncatesCorruptRecordAndZeroesStaleTail() throws IOException {
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            for (int i = 0; i < 5; i++) {
+                log.append("lobby", frame("m" + i));
+            }
+        }
+        // 模拟崩溃时m3只有一部分落盘：CRC不匹配，m3和之后完整的m4都被丢弃
+        File segment = new File(directory, LogSegment.fileName(0) + MessageLog.LOG_SUFFIX);
+        byte[] content = Files.readAllBytes(segment.toPath());
+        content[indexOf(content, "m3") + 1] = 'X';
+        Files.write(segment.toPath(), content);
+
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            assertEquals(3, log.endOffset());
+            // 和m3一样长，写完之后的下一个位置正好是旧的m4
+            log.append("lobby", frame("n3"));
+        }
+
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            assertEquals(4, log.endOffset());
+            List<String> frames = new ArrayList<>();
+            assertEquals(4, log.read(0, "lobby", 1024, collect(frames)));
+            assertEquals(list("m0", "m1", "m2", "n3"), frames);
+        }
+    }
+
+    @Test
+    void stopsAfterMaxBytes() throws IOException {
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            for (int i = 0; i < 5; i++) {
+                log.append("lobby", frame("m" + i));
+            }
+        }
+
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            List<String> frames = new ArrayList<>();
+            long next = log.read(0, "lobby", 3, collect(frames));
+            assertEquals(list("m0", "m1"), frames);
+            assertEquals(2, next);
+            frames.clear();
+            assertEquals(5, log.read(next, "lobby", 1024, collect(frames)));
+            assertEquals(list("m2", "m3", "m4"), frames);
+        }
+    }
+
+    @Test
+    void pagesThroughOtherRoomsAfterMaxScanBytes() throws IOException {
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            for (int i = 0; i < 10; i++) {
+                log.append("r1", frame("m" + i));
+            }
+            log.append("lobby", frame("hello"));
+        }
+
+        try (MessageLog log = new MessageLog(directory, 4096, 1)) {
+            List<String> frames = new ArrayList<>();
+            // 每次只扫描几条其它房间的记录就返回，偏移量向前推进
+            long next = log.read(0, "lobby", 1024, 32, collect(frames));
+            assertTrue(next > 0 && next < 10, "next " + next);
+            assertTrue(frames.isEmpty());
+            int calls = 1;
+            while (next < log.endOffset()) {
+                next = log.read(next, "lobby", 1024, 32, collect(frames));
+                calls++;
+            }
+            assertEquals(11, next);
+            assertEquals(list("hello"), frames);
+            assertTrue(calls > 2, "calls " + calls);
+        }
+    }
+
+    private static SharedBuffer frame(String text) {
+        return new SharedBuffer(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    private static int indexOf(byte[] content, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i <= content.length - bytes.length; i++) {
+            int j = 0;
+            while (j < bytes.length && content[i + j] == bytes[j]) {
+                j++;
+            }
+            if (j == bytes.length) {
+                return i;
+            }
+        }
+        throw new AssertionError(text + " not found");
+    }
+
+    private static FrameListener collect(List<String> frames) {
+        return frame -> frames.add(StandardCharsets.UTF_8.decode(frame).toString());
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
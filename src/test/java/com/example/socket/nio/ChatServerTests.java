@@ -0,0 +1,501 @@
+package com.example.socket.nio;
+
+import com.example.socket.chat.ChatCore;
+import com.example.socket.chat.ChatSession;
+import com.example.socket.chat.FlushPolicy;
+import com.example.socket.chat.IdlePolicy;
+import com.example.socket.chat.RateLimitPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatServerTests {
+
+    // 总共约20MB，超过本机socket发送和接收缓冲区能容纳的数据量
+    private static final int FLOOD_MESSAGES = 20_000;
+    private static final String PAYLOAD = String.join("", Collections.nCopies(1000, "x"));
+    private static final int SLOW_READER_BUFFER = 4096;
+
+    private File fileDirectory;
+    private ChatServer server;
+    private ChatCore core;
+    private int port;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        fileDirectory = Files.createTempDirectory("chat-files").toFile();
+    }
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.close();
+        }
+        File[] files = fileDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        fileDirectory.delete();
+    }
+
+    @Test
+    void resumedMessageIsFlushedWithoutWaitingForAnotherWakeup() throws Exception {
+        core = new ChatCore();
+        // 每500毫秒一个令牌，没有空闲检查，worker上除了限速恢复之外没有其它定时任务
+        core.setSessionRateLimit(new RateLimitPolicy(2, 1));
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect()) {
+            awaitSessions(2);
+            BufferedReader in = reader(recipient);
+            long start = System.nanoTime();
+            send(sender, "m1\nm2\nm3\n");
+
+            assertTrue(in.readLine().endsWith(":m1"));
+            assertTrue(in.readLine().endsWith(":m2"));
+            long m2Millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(in.readLine().endsWith(":m3"));
+            long m3Millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // 恢复之后转发的消息在同一轮写出，不会再晚一个限速周期
+            assertTrue(m2Millis >= 400 && m2Millis < 850, "m2 arrived after " + m2Millis + "ms");
+            assertTrue(m3Millis >= 900 && m3Millis < 1350, "m3 arrived after " + m3Millis + "ms");
+        }
+    }
+
+    @Test
+    void oldestFilesAreDeletedBeyondLimitAndAllOnClose() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setMaxFiles(2);
+        start(chatServer);
+
+        try (Socket client = connect()) {
+            awaitSessions(1);
+            BufferedReader in = reader(client);
+            for (int i = 1; i <= 3; i++) {
+                send(client, "/sendfile 5 f" + i + ".txt\nfile" + i);
+            }
+            // 同一连接上的命令按顺序处理，到这里三个文件都已经上传完
+            send(client, "/getfile 1\n/getfile 3 4\n");
+
+            assertTrue(in.readLine().startsWith("文件不存在"));
+            assertEquals("/file 3 5 4 f3.txt", in.readLine());
+            assertEquals('3', in.read());
+            assertArrayEquals(new String[]{"2", "3"}, sortedFileNames());
+        }
+
+        server.close();
+        assertEquals(0, sortedFileNames().length);
+    }
+
+    @Test
+    void filesAreOnlyServedToTheRoomTheyWereUploadedIn() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        start(chatServer);
+
+        try (Socket uploader = connect(); Socket other = connect()) {
+            awaitSessions(2);
+            BufferedReader in = reader(other);
+            send(uploader, "/sendfile 5 f.txt\nfile1");
+            // 同在lobby，收到通知和推送的文件之后上传已经完成
+            assertTrue(in.readLine().endsWith("发送了文件[1]f.txt，5字节"));
+            assertEquals("/file 1 5 0 f.txt", in.readLine());
+            for (char c : "file1".toCharArray()) {
+                assertEquals(c, in.read());
+            }
+
+            send(other, "/join r1\n/getfile 1\n/leave\n/getfile 1\n");
+            assertEquals("已进入房间[r1]", in.readLine());
+            assertTrue(in.readLine().startsWith("文件不存在"));
+            in.readLine();
+            assertEquals("/file 1 5 0 f.txt", in.readLine());
+        }
+    }
+
+    @Test
+    void fileDownloadsCountAsPendingUntilWritten() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        start(chatServer);
+
+        int size = 8 * 1024 * 1024;
+        try (Socket uploader = connect(); Socket recipient = connect(SLOW_READER_BUFFER)) {
+            awaitSessions(2);
+            Thread upload = new Thread(() -> {
+                try {
+                    OutputStream out = new BufferedOutputStream(uploader.getOutputStream(), 64 * 1024);
+                    out.write(("/sendfile " + size + " big.txt\n").getBytes(StandardCharsets.UTF_8));
+                    for (int i = 0; i < size; i++) {
+                        out.write('a');
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // 测试结束时关闭了socket
+                }
+            }, "upload");
+            upload.setDaemon(true);
+            upload.start();
+
+            // 接收方不读，推送给它的文件留在出站队列中，计入待写字节数
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (core.pendingBytes() < size / 2) {
+                assertTrue(System.nanoTime() < deadline, "pending " + core.pendingBytes());
+                Thread.sleep(10);
+            }
+
+            BufferedReader in = reader(recipient);
+            assertTrue(in.readLine().endsWith("发送了文件[1]big.txt，" + size + "字节"));
+            assertEquals("/file 1 " + size + " 0 big.txt", in.readLine());
+            char[] chunk = new char[64 * 1024];
+            long received = 0;
+            while (received < size) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, size - received));
+                assertTrue(read > 0);
+                received += read;
+            }
+            assertTrue(core.awaitDrained(5, TimeUnit.SECONDS), "pending " + core.pendingBytes());
+        }
+    }
+
+    @Test
+    void pauseReaderStopsReadingTheSenderUntilTheRecipientDrains() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setWriteBufferWaterMark(new WriteBufferWaterMark(8 * 1024, 16 * 1024));
+        chatServer.setOverflowPolicy(OverflowPolicy.PAUSE_READER);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect(SLOW_READER_BUFFER)) {
+            awaitSessions(2);
+            Thread flood = flood(sender, FLOOD_MESSAGES);
+
+            // 接收方不读，发送方写满自己的socket缓冲区之后阻塞，出站队列停在高水位附近
+            flood.join(1000);
+            assertTrue(flood.isAlive(), "sender was never paused");
+            assertTrue(core.pendingBytes() < 256 * 1024, "pending " + core.pendingBytes());
+
+            // 接收方读到低水位以下之后恢复读取发送方，消息一条不少，顺序不变
+            BufferedReader in = reader(recipient);
+            for (int i = 0; i < FLOOD_MESSAGES; i++) {
+                assertEquals(i, sequence(in.readLine()));
+            }
+            flood.join(5000);
+            assertFalse(flood.isAlive());
+        }
+    }
+
+    @Test
+    void pauseReaderDropsAboveHardLimitWhenThereIsNoReaderToPause() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setWriteBufferWaterMark(new WriteBufferWaterMark(8 * 1024, 16 * 1024));
+        chatServer.setOverflowPolicy(OverflowPolicy.PAUSE_READER);
+        start(chatServer);
+
+        try (Socket recipient = connect(SLOW_READER_BUFFER)) {
+            awaitSessions(1);
+            // 没有发送方的系统消息，接收方不读，队列停在两倍高水位附近
+            ChatSession session = core.session(idOf(recipient));
+            int accepted = 0;
+            for (int i = 0; i < FLOOD_MESSAGES; i++) {
+                if (session.write(core.encode(PAYLOAD), null)) {
+                    accepted++;
+                }
+            }
+            assertTrue(accepted < FLOOD_MESSAGES, "accepted " + accepted);
+            assertTrue(core.pendingBytes() <= 2 * 16 * 1024 + PAYLOAD.length() + 64, "pending " + core.pendingBytes());
+            assertEquals(1, core.sessionCount());
+        }
+    }
+
+    @Test
+    void dropDiscardsAboveHighWaterMarkAndKeepsOrder() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setWriteBufferWaterMark(new WriteBufferWaterMark(8 * 1024, 16 * 1024));
+        chatServer.setOverflowPolicy(OverflowPolicy.DROP);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect(SLOW_READER_BUFFER)) {
+            awaitSessions(2);
+            // 服务器一直读取发送方，接收方太慢的部分被丢弃
+            Thread flood = flood(sender, FLOOD_MESSAGES);
+            flood.join(10_000);
+            assertFalse(flood.isAlive(), "sender was paused");
+            assertTrue(core.pendingBytes() <= 16 * 1024 + PAYLOAD.length() + 64, "pending " + core.pendingBytes());
+
+            // 接收方开始读取之后出站队列回落，之后的消息不再丢弃；结束标记也可能被丢弃，所以反复发送
+            ScheduledExecutorService ender = Executors.newSingleThreadScheduledExecutor();
+            ender.scheduleWithFixedDelay(() -> {
+                try {
+                    send(sender, "end\n");
+                } catch (IOException e) {
+                    // 测试结束时关闭了socket
+                }
+            }, 0, 50, TimeUnit.MILLISECONDS);
+            BufferedReader in = reader(recipient);
+            List<Integer> received = new ArrayList<>();
+            try {
+                String line;
+                while (!(line = in.readLine()).endsWith(":end")) {
+                    received.add(sequence(line));
+                }
+            } finally {
+                ender.shutdownNow();
+            }
+            assertTrue(received.size() > 0 && received.size() < FLOOD_MESSAGES, "received " + received.size());
+            for (int i = 1; i < received.size(); i++) {
+                assertTrue(received.get(i) > received.get(i - 1));
+            }
+            assertEquals(2, core.sessionCount());
+        }
+    }
+
+    @Test
+    void disconnectClosesTheSlowRecipientOnly() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setWriteBufferWaterMark(new WriteBufferWaterMark(8 * 1024, 16 * 1024));
+        chatServer.setOverflowPolicy(OverflowPolicy.DISCONNECT);
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect(SLOW_READER_BUFFER)) {
+            awaitSessions(2);
+            flood(sender, FLOOD_MESSAGES);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (core.sessionCount() > 1) {
+                assertTrue(System.nanoTime() < deadline, "slow recipient was not disconnected");
+                Thread.sleep(10);
+            }
+            // 已经在socket缓冲区中的数据读完之后是EOF，或者尚未写出的数据被丢弃导致连接被重置
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (recipient.getInputStream().read(buffer) >= 0) {
+                    // 读到连接关闭为止
+                }
+            } catch (IOException e) {
+                // 连接被重置
+            }
+            assertEquals(1, core.sessionCount());
+        }
+    }
+
+    @Test
+    void delayedFlushWaitsForMaxDelay() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setFlushPolicy(new FlushPolicy(64 * 1024, 300, TimeUnit.MILLISECONDS));
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect()) {
+            awaitSessions(2);
+            BufferedReader in = reader(recipient);
+            long start = System.nanoTime();
+            send(sender, "hello\n");
+
+            assertTrue(in.readLine().endsWith(":hello"));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis >= 250 && millis < 2000, "flushed after " + millis + "ms");
+        }
+    }
+
+    @Test
+    void fullBatchIsFlushedWithoutWaiting() throws Exception {
+        ChatServer chatServer = newServer(1);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setFlushPolicy(new FlushPolicy(4 * 1024, 10, TimeUnit.SECONDS));
+        start(chatServer);
+
+        try (Socket sender = connect(); Socket recipient = connect()) {
+            awaitSessions(2);
+            BufferedReader in = reader(recipient);
+            StringBuilder burst = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                burst.append(i).append(':').append(PAYLOAD).append('\n');
+            }
+            long start = System.nanoTime();
+            send(sender, burst.toString());
+
+            // 超过maxBatchBytes之后不再等待maxDelay，同一轮入队的消息一起写出
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, sequence(in.readLine()));
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis < 2000, "flushed after " + millis + "ms");
+        }
+    }
+
+    @Test
+    void gatheredWritesFromConcurrentSendersKeepOrder() throws Exception {
+        // 两个发送方在不同的worker上，同时向第三个连接转发；接收方读得慢，gathering write经常只写出一部分
+        ChatServer chatServer = newServer(3);
+        chatServer.setIdlePolicy(IdlePolicy.DISABLED);
+        chatServer.setWriteBufferWaterMark(new WriteBufferWaterMark(8 * 1024, 16 * 1024));
+        chatServer.setOverflowPolicy(OverflowPolicy.PAUSE_READER);
+        chatServer.setFlushPolicy(new FlushPolicy(8 * 1024, 1, TimeUnit.MILLISECONDS));
+        start(chatServer);
+
+        int count = FLOOD_MESSAGES / 4;
+        try (Socket a = connect(); Socket b = connect(); Socket recipient = connect(SLOW_READER_BUFFER)) {
+            awaitSessions(3);
+            // 私聊给接收方，两个发送方不会收到对方的消息
+            String prefix = "@" + idOf(recipient) + " ";
+            flood(a, prefix, count);
+            flood(b, prefix, count);
+
+            BufferedReader in = reader(recipient);
+            Map<String, Integer> next = new HashMap<>();
+            for (int i = 0; i < 2 * count; i++) {
+                String[] parts = in.readLine().split(":", 3);
+                int expected = next.getOrDefault(parts[0], 0);
+                assertEquals(expected, Integer.parseInt(parts[1]), parts[0]);
+                assertEquals(PAYLOAD, parts[2]);
+                next.put(parts[0], expected + 1);
+            }
+            assertEquals(2, next.size());
+        }
+    }
+
+    private String[] sortedFileNames() {
+        String[] names = fileDirectory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    private ChatServer newServer(int workers) throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ChatServer chatServer = new ChatServer(port, workers);
+        chatServer.setFileDirectory(fileDirectory);
+        return chatServer;
+    }
+
+    private void start(ChatServer chatServer) {
+        if (core == null) {
+            core = new ChatCore();
+        }
+        server = chatServer;
+        Thread boss = new Thread(() -> chatServer.start(core), "nio-boss-test");
+        boss.setDaemon(true);
+        boss.start();
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        return connect(0);
+    }
+
+    // 服务器在另一个线程上启动，连接被拒绝时稍后重试；receiveBufferSize为0时使用操作系统默认值
+    private Socket connect(int receiveBufferSize) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                if (receiveBufferSize > 0) {
+                    // 连接之前设置，接收方的窗口小，服务器端的出站队列更快积压
+                    socket.setReceiveBufferSize(receiveBufferSize);
+                }
+                socket.connect(new InetSocketAddress("localhost", port));
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (ConnectException e) {
+                socket.close();
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // 连接在worker线程上注册到ChatCore，之后才会收到转发的消息
+    private void awaitSessions(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (core.sessionCount() < count) {
+            assertTrue(System.nanoTime() < deadline, "sessions not registered");
+            Thread.sleep(5);
+        }
+    }
+
+    private static Thread flood(Socket sender, int count) {
+        return flood(sender, "", count);
+    }
+
+    // 在另一个线程上发送count条带序号的消息，写满socket缓冲区时阻塞
+    private static Thread flood(Socket sender, String prefix, int count) {
+        Thread thread = new Thread(() -> {
+            try {
+                OutputStream out = new BufferedOutputStream(sender.getOutputStream(), 64 * 1024);
+                for (int i = 0; i < count; i++) {
+                    out.write((prefix + i + ":" + PAYLOAD + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // 测试结束时关闭了socket
+            }
+        }, "flood");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // 连接名称以服务器看到的客户端端口结尾
+    private long idOf(Socket socket) {
+        String suffix = "[" + socket.getLocalPort() + "]";
+        for (long id = 1; id <= core.sessionCount(); id++) {
+            ChatSession session = core.session(id);
+            if (session != null && session.name().endsWith(suffix)) {
+                return id;
+            }
+        }
+        throw new AssertionError("no session for " + socket);
+    }
+
+    // 接收方收到的是"发送方名称:序号:内容"，私聊时名称之后带"(私聊)"
+    private static int sequence(String line) {
+        return Integer.parseInt(line.split(":", 3)[1]);
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String msg) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(msg.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
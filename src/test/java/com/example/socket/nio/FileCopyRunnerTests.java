@@ -0,0 +1,72 @@
+package com.example.socket.nio;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class FileCopyRunnerTests {
+
+    private static final int[] SIZES = {0, 1, 4095, 1024 * 1024, 3 * 1024 * 1024 + 17};
+
+    private File directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("file-copy").toFile();
+    }
+
+    @AfterEach
+    void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // 默认大小之外再用较小的窗口和分块，让1MB和3MB+17的文件跨越多个窗口和分块，最后一块不满
+    static Stream<Arguments> runners() {
+        FileCopyRunner[] runners = {
+                new MappedWindowCopy(),
+                new MappedWindowCopy(4096),
+                new ParallelChunkCopy(8192),
+                new ParallelChunkCopy(256 * 1024, 4096, ForkJoinPool.commonPool())
+        };
+        List<Arguments> arguments = new ArrayList<>();
+        for (FileCopyRunner runner : runners) {
+            for (int size : SIZES) {
+                arguments.add(Arguments.of(runner, size));
+            }
+        }
+        return arguments.stream();
+    }
+
+    @ParameterizedTest(name = "{0} {1} bytes")
+    @MethodSource("runners")
+    void copiesEveryByte(FileCopyRunner runner, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File source = new File(directory, "source");
+        File target = new File(directory, "target");
+        Files.write(source.toPath(), content);
+
+        runner.fileCopy(source, target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.socket.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 用超前的now驱动时间轮，不依赖真实的等待
+class HashedWheelTimerTests {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void expiresOnlyAfterDeadline() {
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 8);
+        List<String> fired = new ArrayList<>();
+        long now = System.nanoTime();
+        timer.newTimeout(() -> fired.add("a"), 5, TimeUnit.MILLISECONDS);
+        timer.newTimeout(() -> fired.add("b"), 3, TimeUnit.MILLISECONDS);
+
+        timer.expireTimeouts(now + 2 * MILLIS);
+        assertTrue(fired.isEmpty());
+        assertEquals(2, timer.size());
+
+        timer.expireTimeouts(System.nanoTime() + 10 * MILLIS);
+        assertEquals(2, fired.size());
+        assertEquals("b", fired.get(0));
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    void delaysLongerThanOneRoundWaitForRemainingRounds() {
+        // 一圈只有4毫秒
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 4);
+        List<String> fired = new ArrayList<>();
+        long now = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> fired.add("late"), 10, TimeUnit.MILLISECONDS);
+
+        timer.expireTimeouts(now + 6 * MILLIS);
+        assertTrue(fired.isEmpty());
+        assertFalse(timeout.isExpired());
+
+        timer.expireTimeouts(System.nanoTime() + 12 * MILLIS);
+        assertEquals(1, fired.size());
+        assertTrue(timeout.isExpired());
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() {
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 8);
+        List<String> fired = new ArrayList<>();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> fired.add("x"), 1, TimeUnit.MILLISECONDS);
+        timer.expireTimeouts(System.nanoTime());
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.size());
+        timer.expireTimeouts(System.nanoTime() + 5 * MILLIS);
+        assertTrue(fired.isEmpty());
+        assertTrue(timeout.isCancelled());
+    }
+}
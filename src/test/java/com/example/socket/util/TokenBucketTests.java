@@ -0,0 +1,73 @@
+package com.example.socket.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 传入的now由测试控制，不依赖真实的时间
+class TokenBucketTests {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void burstThenOnePermitPerInterval() {
+        long now = 0;
+        // 每10毫秒一个令牌
+        TokenBucket bucket = new TokenBucket(100, 3, now);
+        assertEquals(3, bucket.available(now));
+        assertTrue(bucket.acquire(now) <= 0);
+        assertTrue(bucket.acquire(now) <= 0);
+        // 取走最后一个令牌时就告诉调用方下一个令牌还要等多久
+        assertEquals(10 * MILLIS, bucket.acquire(now));
+        assertEquals(0, bucket.available(now));
+
+        now += 10 * MILLIS;
+        assertEquals(1, bucket.available(now));
+        assertEquals(10 * MILLIS, bucket.acquire(now));
+    }
+
+    @Test
+    void overdraftDelaysTheNextPermit() {
+        TokenBucket bucket = new TokenBucket(100, 1, 0);
+        assertEquals(10 * MILLIS, bucket.acquire(0));
+        assertEquals(20 * MILLIS, bucket.acquire(0));
+        assertEquals(0, bucket.available(15 * MILLIS));
+        assertEquals(1, bucket.available(20 * MILLIS));
+    }
+
+    @Test
+    void idleTimeRefillsAtMostBurst() {
+        TokenBucket bucket = new TokenBucket(100, 2, 0);
+        bucket.acquire(0);
+        bucket.acquire(0);
+        assertEquals(2, bucket.available(TimeUnit.SECONDS.toNanos(60)));
+    }
+
+    @Test
+    void concurrentAcquiresNeverLosePermits() throws InterruptedException {
+        int threads = 4;
+        int perThread = 10_000;
+        TokenBucket bucket = new TokenBucket(1000, threads * perThread, 0);
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    if (bucket.acquire(0) <= 0) {
+                        granted.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // 最后一个令牌被取走时返回的是等待时间，其余都是立即可用
+        assertEquals(threads * perThread - 1, granted.get());
+        assertEquals(0, bucket.available(0));
+    }
+}